@@ -229,8 +229,12 @@ public class QuickShop extends JavaPlugin {
     @Getter
     private SignUpdateWatcher signUpdateWatcher;
     @Getter
+    private ShopSaveWatcher shopSaveWatcher;
+    @Getter
     private ShopContainerWatcher shopContainerWatcher;
     @Getter
+    private DormantShopWatcher dormantShopWatcher;
+    @Getter
     private @Deprecated
     DisplayDupeRemoverWatcher displayDupeRemoverWatcher;
     @Getter
@@ -625,6 +629,11 @@ public class QuickShop extends JavaPlugin {
             VirtualDisplayItem.VirtualDisplayItemManager.unload();
         }
 
+        Util.debugLog("Saving the changed shops...");
+        if (this.shopSaveWatcher != null) {
+            this.shopSaveWatcher.flush();
+        }
+
         Util.debugLog("Cleaning up database queues...");
         if (this.getDatabaseManager() != null) {
             this.getDatabaseManager().unInit();
@@ -861,7 +870,8 @@ public class QuickShop extends JavaPlugin {
             this.shopCache = null;
         }
 
-        signUpdateWatcher = new SignUpdateWatcher();
+        signUpdateWatcher = new SignUpdateWatcher(this);
+        shopSaveWatcher = new ShopSaveWatcher();
         shopContainerWatcher = new ShopContainerWatcher();
         if (display && DisplayItem.getNowUsing() != DisplayType.VIRTUALITEM) {
             displayDupeRemoverWatcher = new DisplayDupeRemoverWatcher();
@@ -881,6 +891,7 @@ public class QuickShop extends JavaPlugin {
         new ChatListener(this).register();
         new ChunkListener(this).register();
         new CustomInventoryListener(this).register();
+        new ShopChestListener(this).register();
         new ShopProtectionListener(this, this.shopCache).register();
         new PluginListener(this).register();
         new EconomySetupListener(this).register();
@@ -919,8 +930,14 @@ public class QuickShop extends JavaPlugin {
         Util.debugLog("Registering watchers...");
         calendarWatcher = new CalendarWatcher(this);
         // shopVaildWatcher.runTaskTimer(this, 0, 20 * 60); // Nobody use it
-        timerTaskList.add(signUpdateWatcher.runTaskTimer(this, 0, 10));
+        timerTaskList.add(signUpdateWatcher.runTaskTimer(this, 0, 1));
+        long shopSaveInterval = Math.max(1, getConfig().getLong("database.shop-save-interval", 5) * 20);
+        timerTaskList.add(shopSaveWatcher.runTaskTimer(this, shopSaveInterval, shopSaveInterval));
         timerTaskList.add(shopContainerWatcher.runTaskTimer(this, 0, 5)); // Nobody use it
+        if (shopManager.isLazyLoad()) {
+            dormantShopWatcher = new DormantShopWatcher(this);
+            timerTaskList.add(dormantShopWatcher.runTaskTimer(this, 20 * 60, 20 * 30));
+        }
 
         if (logWatcher != null) {
             timerTaskList.add(logWatcher.runTaskTimerAsynchronously(this, 10, 10));
@@ -1051,7 +1068,7 @@ public class QuickShop extends JavaPlugin {
             metrics.addCustomChart(new Metrics.SimplePie("use_stack_item", () -> String.valueOf(this.isAllowStack())));
             metrics.addCustomChart(new Metrics.SimplePie("chat_adapter", () -> this.getQuickChatType().name()));
             metrics.addCustomChart(new Metrics.SimplePie("event_adapter", () -> eventAdapter));
-            metrics.addCustomChart(new Metrics.SingleLineChart("shops_created_on_all_servers", () -> this.getShopManager().getAllShops().size()));
+            metrics.addCustomChart(new Metrics.SingleLineChart("shops_created_on_all_servers", () -> this.getShopManager().getShopCount()));
             // Exp for stats, maybe i need improve this, so i add this.// Submit now!
             getLogger().info("Metrics submitted.");
         } else {
@@ -1887,6 +1904,66 @@ public class QuickShop extends JavaPlugin {
             getConfig().set("integration.towny.whitelist-mode", true);
             getConfig().set("config-version", ++selectedVersion);
         }
+        if (selectedVersion == 139) {
+            getConfig().set("shop.sign-update-time-budget", 5);
+            getConfig().set("config-version", ++selectedVersion);
+        }
+        if (selectedVersion == 140) {
+            getConfig().set("shop.lazy-sign-update", true);
+            getConfig().set("config-version", ++selectedVersion);
+        }
+        if (selectedVersion == 141) {
+            getConfig().set("database.shop-save-interval", 5);
+            getConfig().set("config-version", ++selectedVersion);
+        }
+        if (selectedVersion == 142) {
+            getConfig().set("database.rewrite-batched-statements", true);
+            getConfig().set("config-version", ++selectedVersion);
+        }
+        if (selectedVersion == 143) {
+            getConfig().set("database.pool.size", 8);
+            getConfig().set("database.pool.acquire-timeout", 30);
+            getConfig().set("database.pool.validation-interval", 30);
+            getConfig().set("config-version", ++selectedVersion);
+        }
+        if (selectedVersion == 144) {
+            // Dedicated database writer thread, always queued
+            getConfig().set("database.queue", null);
+            getConfig().set("database.queue-commit-interval", null);
+            getConfig().set("database.queue-capacity", 20000);
+            getConfig().set("database.queue-overflow-policy", "BLOCK");
+            getConfig().set("database.queue-block-timeout", 3000);
+            getConfig().set("database.queue-linger", 50);
+            getConfig().set("config-version", ++selectedVersion);
+        }
+        if (selectedVersion == 145) {
+            getConfig().set("database.sqlite.performance-mode", true);
+            getConfig().set("database.sqlite.mmap-size", 64);
+            getConfig().set("database.sqlite.cache-size", 16);
+            getConfig().set("database.sqlite.statement-cache-size", 32);
+            getConfig().set("database.sqlite.checkpoint-interval", 300);
+            getConfig().set("config-version", ++selectedVersion);
+        }
+        if (selectedVersion == 146) {
+            getConfig().set("shop.loader.parallelism", 0);
+            getConfig().set("shop.loader.attach-time-budget", 20);
+            getConfig().set("config-version", ++selectedVersion);
+        }
+        if (selectedVersion == 147) {
+            getConfig().set("shop.lazy-load.enable", false);
+            getConfig().set("shop.lazy-load.idle-time", 300);
+            getConfig().set("config-version", ++selectedVersion);
+        }
+        if (selectedVersion == 148) {
+            getConfig().set("shop.item-cache-size", 4096);
+            getConfig().set("config-version", ++selectedVersion);
+        }
+        if (selectedVersion == 149) {
+            getConfig().set("database.binary-items.enable", true);
+            getConfig().set("database.binary-items.compression", true);
+            getConfig().set("database.binary-items.keep-yaml-copy", false);
+            getConfig().set("config-version", ++selectedVersion);
+        }
 
         if (getConfig().getInt("matcher.work-type") != 0 && GameVersion.get(ReflectFactory.getServerVersion()).name().contains("1_16")) {
             getLogger().warning("You are not using QS Matcher, it may meeting item comparing issue mentioned there: https://hub.spigotmc.org/jira/browse/SPIGOT-5063");
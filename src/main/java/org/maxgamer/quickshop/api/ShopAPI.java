@@ -32,6 +32,7 @@ import org.maxgamer.quickshop.shop.Shop;
 
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @AllArgsConstructor
 public class ShopAPI {
@@ -39,13 +40,37 @@ public class ShopAPI {
 
     /**
      * Gets the shops on this server
+     * <p>
+     * The unloaded shops are loaded on the main thread. Called from another thread, it waits for the main thread,
+     * if the main thread doesn't respond in time the unloaded shops are left out of the result and a warning is logged,
+     * compare {@link org.maxgamer.quickshop.shop.ShopManager#getPartialResultCount()} before and after to know it.
      *
-     * @return All shops included unloaded and loaded
+     * @return All shops included unloaded and loaded, an immutable snapshot
      */
     public List<Shop> getAllShops() {
         return plugin.getShopManager().getAllShops();
     }
 
+    /**
+     * Gets a stream of the shops on this server, it may leave the unloaded shops out the same as {@link #getAllShops()}
+     *
+     * @return The stream of all shops included unloaded and loaded
+     */
+    public Stream<Shop> stream() {
+        return plugin.getShopManager().stream();
+    }
+
+    /**
+     * Gets a parallel stream of the shops on this server, the world shouldn't be accessed in it
+     * <p>
+     * It may leave the unloaded shops out the same as {@link #getAllShops()}
+     *
+     * @return The parallel stream of all shops included unloaded and loaded
+     */
+    public Stream<Shop> parallelStream() {
+        return plugin.getShopManager().parallelStream();
+    }
+
     /**
      * Gets the shops that loaded
      *
@@ -59,7 +84,7 @@ public class ShopAPI {
      * Gets shops in specific world
      *
      * @param world world
-     * @return The shops in specific world
+     * @return The shops in specific world, an immutable snapshot
      */
     public List<Shop> getShops(World world) {
         return plugin.getShopManager().getShopsInWorld(world);
@@ -147,6 +172,7 @@ public class ShopAPI {
 
     @Deprecated
     public @NotNull List<Shop> getShopsInWorld(@NotNull World world) {
+        // The old callers may modify it, keep returning a copy
         return new ArrayList<>(plugin.getShopManager().getShopsInWorld(world));
     }
 
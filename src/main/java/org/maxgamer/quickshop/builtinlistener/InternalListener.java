@@ -71,6 +71,12 @@ public class InternalListener implements Listener {
         }
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void reload(QSReloadEvent event) {
+        // Messages and formats may be changed
+        plugin.getShopManager().invalidateSignTexts();
+    }
+
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void shopDelete(ShopDeleteEvent event) {
         if (loggingAction) {
@@ -62,6 +62,7 @@ public class SubCommand_Empty implements CommandHandler<Player> {
                 }
 
                 cs.getInventory().clear();
+                cs.invalidateStockCache();
                 MsgUtil.sendMessage(sender, "empty-success");
             } else {
                 MsgUtil.sendMessage(sender, "not-looking-at-shop");
@@ -24,16 +24,17 @@ import lombok.AllArgsConstructor;
 import org.bukkit.Location;
 import org.bukkit.entity.Player;
 import org.bukkit.event.player.PlayerTeleportEvent;
-import org.bukkit.util.Vector;
 import org.jetbrains.annotations.NotNull;
 import org.maxgamer.quickshop.QuickShop;
 import org.maxgamer.quickshop.command.CommandHandler;
 import org.maxgamer.quickshop.shop.Shop;
+import org.maxgamer.quickshop.shop.search.TopKCollector;
 import org.maxgamer.quickshop.util.MsgUtil;
 import org.maxgamer.quickshop.util.Util;
 
-import java.util.*;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 @AllArgsConstructor
 public class SubCommand_Find implements CommandHandler<Player> {
@@ -48,7 +49,6 @@ public class SubCommand_Find implements CommandHandler<Player> {
         }
 
         final Location loc = sender.getLocation().clone();
-        final Vector playerVector = loc.toVector();
 
         //Combing command args
         final StringBuilder sb = new StringBuilder(cmdArg[0]);
@@ -64,74 +64,45 @@ public class SubCommand_Find implements CommandHandler<Player> {
         final boolean allShops = plugin.getConfig().getBoolean("shop.finding.all");
         final boolean excludeOutOfStock = plugin.getConfig().getBoolean("shop.finding.exclude-out-of-stock");
 
-        //Rewrite by Ghost_chu - Use vector to replace old chunks finding.
-
-        Map<Shop, Double> aroundShops = new HashMap<>();
-
-        //Choose finding source
-        Collection<Shop> scanPool;
-        if (allShops) {
-            scanPool = plugin.getShopManager().getAllShops();
-        } else {
-            scanPool = plugin.getShopManager().getLoadedShops();
-        }
-        //Calc distance between player and shop
-        for (Shop shop : scanPool) {
-            if (!Objects.equals(shop.getLocation().getWorld(), loc.getWorld())) {
-                continue;
-            }
-            if (aroundShops.size() == shopLimit) {
-                break;
-            }
-            Vector shopVector = shop.getLocation().toVector();
-            double distance = shopVector.distance(playerVector);
-            //Check distance
-            if (distance <= maxDistance) {
-                //Collect valid shop that trading items we want
-                if (!Util.getItemStackName(shop.getItem()).toLowerCase().contains(lookFor)) {
-                    if (!shop.getItem().getType().name().toLowerCase().contains(lookFor)) {
-                        continue;
-                    }
-                }
-                if (excludeOutOfStock) {
-                    if (shop.isSelling()) {
-                        if (shop.getRemainingStock() == 0) {
-                            continue;
-                        }
-                    } else if (shop.isBuying()) {
-                        if (shop.getRemainingSpace() == 0) {
-                            continue;
+        plugin.getShopManager().materializeAround(loc, maxDistance);
+        //Only the candidates from item index or nearby chunks will be touched, stock checks only run on nearest ones
+        List<TopKCollector.Scored<Shop>> nearestShops = plugin.getShopManager().getSearchEngine()
+                .search(loc, maxDistance, lookFor, Math.max(1, shopLimit), !allShops, shop -> {
+                    if (excludeOutOfStock) {
+                        if (shop.isSelling()) {
+                            return shop.getRemainingStock() != 0;
+                        } else if (shop.isBuying()) {
+                            return shop.getRemainingSpace() != 0;
                         }
                     }
-                }
-                aroundShops.put(shop, distance);
-            }
-        }
+                    return true;
+                });
         //Check if no shops found
-        if (aroundShops.isEmpty()) {
+        if (nearestShops.isEmpty()) {
             MsgUtil.sendMessage(sender, "no-nearby-shop", lookFor);
             return;
         }
 
-        //Okay now all shops is our wanted shop in Map
+        //Okay now all shops is our wanted shop in list
 
-        List<Map.Entry<Shop, Double>> sortedShops = aroundShops.entrySet().stream().sorted(Map.Entry.<Shop, Double>comparingByValue(Double::compare).reversed())
-                .collect(Collectors.toList());
+        List<TopKCollector.Scored<Shop>> sortedShops = new ArrayList<>(nearestShops);
+        Collections.reverse(sortedShops);
 
         //Function
         if (usingOldLogic) {
-            Map.Entry<Shop, Double> closest = sortedShops.get(0);
-            Location lookAt = closest.getKey().getLocation().clone().add(0.5, 0.5, 0.5);
+            TopKCollector.Scored<Shop> closest = nearestShops.get(0);
+            Location lookAt = closest.getElement().getLocation().clone().add(0.5, 0.5, 0.5);
             PaperLib.teleportAsync(sender, Util.lookAt(sender.getEyeLocation(), lookAt).add(0, -1.62, 0),
                     PlayerTeleportEvent.TeleportCause.UNKNOWN);
-            MsgUtil.sendMessage(sender, "nearby-shop-this-way", String.valueOf(closest.getValue().intValue()));
+            MsgUtil.sendMessage(sender, "nearby-shop-this-way", String.valueOf((int) closest.getScore()));
         } else {
             StringBuilder stringBuilder = new StringBuilder(MsgUtil.getMessage("nearby-shop-header", sender, lookFor)).append("\n");
-            for (Map.Entry<Shop, Double> shopDoubleEntry : sortedShops) {
-                Shop shop = shopDoubleEntry.getKey();
+            for (TopKCollector.Scored<Shop> scoredShop : sortedShops) {
+                Shop shop = scoredShop.getElement();
                 Location location = shop.getLocation();
+                String[] signText = shop.getSignText();
                 //  "nearby-shop-entry": "&a- Info:{0} &aPrice:&b{1} &ax:&b{2} &ay:&b{3} &az:&b{4} &adistance: &b{5} &ablock(s)"
-                stringBuilder.append(MsgUtil.getMessage("nearby-shop-entry", sender, shop.getSignText()[1], shop.getSignText()[3], location.getBlockX(), location.getBlockY(), location.getBlockZ(), shopDoubleEntry.getValue().intValue())).append("\n");
+                stringBuilder.append(MsgUtil.getMessage("nearby-shop-entry", sender, signText[1], signText[3], location.getBlockX(), location.getBlockY(), location.getBlockZ(), (int) scoredShop.getScore())).append("\n");
             }
             MsgUtil.sendDirectMessage(sender, stringBuilder.toString());
         }
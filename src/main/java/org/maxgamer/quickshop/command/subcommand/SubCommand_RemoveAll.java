@@ -30,7 +30,6 @@ import org.maxgamer.quickshop.command.CommandHandler;
 import org.maxgamer.quickshop.shop.Shop;
 import org.maxgamer.quickshop.util.MsgUtil;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -44,8 +43,8 @@ public class SubCommand_RemoveAll implements CommandHandler<CommandSender> {
     @Override
     public void onCommand(@NotNull CommandSender sender, @NotNull String commandLabel, @NotNull String[] cmdArg) {
         if (cmdArg.length == 1) {
-            //copy it first
-            List<Shop> tempList = new ArrayList<>(plugin.getShopManager().getAllShops());
+            //it is a snapshot, removing shops won't affect it
+            List<Shop> tempList = plugin.getShopManager().getAllShops();
             OfflinePlayer shopOwner = null;
             for (OfflinePlayer player : plugin.getServer().getOfflinePlayers()) {
                 if (player.getName() != null && player.getName().equalsIgnoreCase(cmdArg[0])) {
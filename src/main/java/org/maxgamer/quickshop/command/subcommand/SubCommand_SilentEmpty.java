@@ -60,6 +60,7 @@ public class SubCommand_SilentEmpty implements CommandHandler<Player> {
         }
 
         inventory.clear();
+        cs.invalidateStockCache();
         MsgUtil.sendControlPanelInfo(sender, shop);
         MsgUtil.sendMessage(sender, "empty-success");
     }
@@ -67,6 +67,7 @@ public class SubCommand_Size implements CommandHandler<Player> {
                         return;
                     }
                     shop.getItem().setAmount(amount);
+                    shop.invalidateStockCache();
                     shop.refresh();
                     MsgUtil.sendMessage(sender, "command.bulk-size-now", Integer.toString(shop.getItem().getAmount()), Util.getItemStackName(shop.getItem()));
                     return;
@@ -47,6 +47,33 @@ public abstract class AbstractDatabaseCore {
         }
     }
 
+    /**
+     * Wait for a released connection at most the given time
+     *
+     * @param nanos The max waiting time in nanoseconds
+     */
+    void waitForConnection(long nanos) {
+        lock.lock();
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            conditionLock.awaitNanos(nanos);
+        } catch (InterruptedException e) {
+            getPlugin().getLogger().log(Level.SEVERE, "Exception when waiting new database connection", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called when a connection released by its user
+     *
+     * @param connection The released connection
+     */
+    void returnConnection(@NotNull DatabaseConnection connection) {
+        signalForNewConnection();
+    }
+
     void signalForNewConnection() {
         lock.lock();
         try {
@@ -63,18 +90,28 @@ public abstract class AbstractDatabaseCore {
     abstract void close();
 
     /**
-     * Gets the database connection for executing queries on.
+     * Gets the database connection for executing queries on, the returned connection is already marked as using.
      *
      * @return The database connection, PLEASE MAKE SURE USING DatabaseConnection#release to CLOSE THE CONNECTION
      */
     @NotNull
-    synchronized DatabaseConnection getConnection() {
-        DatabaseConnection databaseConnection = getConnection0();
-        databaseConnection.markUsing();
-        return databaseConnection;
+    abstract DatabaseConnection getConnection();
+
+    /**
+     * Gets the connection for reading only, the core may give a dedicated one which won't block the writer.
+     *
+     * @return The database connection, PLEASE MAKE SURE USING DatabaseConnection#release to CLOSE THE CONNECTION
+     */
+    @NotNull
+    DatabaseConnection getReadConnection() {
+        return getConnection();
     }
 
-    abstract protected DatabaseConnection getConnection0();
+    /**
+     * Called periodically on the database writer thread when it is idle, for the housekeeping works
+     */
+    void maintain() {
+    }
 
     /**
      * Getting DatabaseCore impl name
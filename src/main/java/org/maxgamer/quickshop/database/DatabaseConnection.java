@@ -19,18 +19,108 @@
 
 package org.maxgamer.quickshop.database;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DatabaseConnection implements AutoCloseable {
 
     private final Connection connection;
     private final AbstractDatabaseCore databaseCore;
-    private volatile boolean using;
+    private final AtomicBoolean using = new AtomicBoolean(false);
+    /* SQL text -> prepared statement, least recently used first, only touched by the holder */
+    @Nullable
+    private final Map<String, PreparedStatement> statementCache;
+    private final int statementCacheSize;
 
     public DatabaseConnection(AbstractDatabaseCore databaseCore, Connection connection) {
+        this(databaseCore, connection, 0);
+    }
+
+    /**
+     * Create a connection with prepared statement cache
+     *
+     * @param databaseCore       The owner
+     * @param connection         The JDBC connection
+     * @param statementCacheSize Max cached statements, 0 to disable
+     */
+    public DatabaseConnection(AbstractDatabaseCore databaseCore, Connection connection, int statementCacheSize) {
         this.databaseCore = databaseCore;
         this.connection = connection;
+        this.statementCacheSize = statementCacheSize;
+        this.statementCache = statementCacheSize > 0 ? new LinkedHashMap<>(16, 0.75f, true) : null;
+    }
+
+    /**
+     * Prepare the statement, reuse the cached one if the cache is enabled.
+     * Must give it back with {@link #finishStatement(PreparedStatement)} instead of closing it.
+     *
+     * @param sql The SQL text
+     * @return The statement
+     * @throws SQLException If failed to prepare
+     */
+    @NotNull
+    PreparedStatement prepareStatement(@NotNull String sql) throws SQLException {
+        Connection connection = get();
+        if (statementCache == null) {
+            return connection.prepareStatement(sql);
+        }
+        PreparedStatement statement = statementCache.get(sql);
+        if (statement != null && !statement.isClosed()) {
+            return statement;
+        }
+        statement = connection.prepareStatement(sql);
+        statementCache.put(sql, statement);
+        if (statementCache.size() > statementCacheSize) {
+            Iterator<PreparedStatement> eldest = statementCache.values().iterator();
+            closeQuietly(eldest.next());
+            eldest.remove();
+        }
+        return statement;
+    }
+
+    /**
+     * Give back the statement got from {@link #prepareStatement(String)}
+     *
+     * @param statement The statement
+     */
+    void finishStatement(@NotNull PreparedStatement statement) {
+        if (statementCache == null || !statementCache.containsValue(statement)) {
+            closeQuietly(statement);
+            return;
+        }
+        try {
+            statement.clearBatch();
+            statement.clearParameters();
+        } catch (SQLException e) {
+            // Broken, don't reuse it
+            statementCache.values().remove(statement);
+            closeQuietly(statement);
+        }
+    }
+
+    private void clearStatementCache() {
+        if (statementCache == null) {
+            return;
+        }
+        for (PreparedStatement statement : statementCache.values()) {
+            closeQuietly(statement);
+        }
+        statementCache.clear();
+    }
+
+    private static void closeQuietly(@NotNull PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+        }
     }
 
     public synchronized boolean isValid() {
@@ -44,10 +134,24 @@ public class DatabaseConnection implements AutoCloseable {
         }
     }
 
+    /**
+     * Check the connection is closed without a round trip to the database
+     *
+     * @return true if closed
+     */
+    boolean isClosed() {
+        try {
+            return connection.isClosed();
+        } catch (SQLException ignored) {
+            return true;
+        }
+    }
+
     @Override
     public synchronized void close() {
         try {
             markUsing();
+            clearStatementCache();
             Connection connection = get();
             if (!connection.isClosed()) {
                 if (!connection.getAutoCommit()) {
@@ -61,34 +165,45 @@ public class DatabaseConnection implements AutoCloseable {
         }
     }
 
+    /**
+     * Close the underlying connection without touching the using state, for dropping it from pool
+     */
+    void discard() {
+        clearStatementCache();
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
 
-    synchronized void markUsing() {
-        if (!using) {
-            using = true;
-        } else {
+    void markUsing() {
+        if (!tryMarkUsing()) {
             throw new ConnectionIsUsingException();
         }
     }
 
-    public synchronized Connection get() {
-        if (using) {
+    boolean tryMarkUsing() {
+        return using.compareAndSet(false, true);
+    }
+
+    public Connection get() {
+        if (using.get()) {
             return connection;
         } else {
             throw new ConnectionIsNotUsingException();
         }
     }
 
-    public synchronized void release() {
-        if (using) {
-            using = false;
-            databaseCore.signalForNewConnection();
+    public void release() {
+        if (using.compareAndSet(true, false)) {
+            databaseCore.returnConnection(this);
         } else {
             throw new ConnectionIsNotUsingException();
         }
     }
 
-    public synchronized boolean isUsing() {
-        return using;
+    public boolean isUsing() {
+        return using.get();
     }
 
     public static class ConnectionIsUsingException extends IllegalStateException {
@@ -32,7 +32,11 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 
@@ -40,7 +44,7 @@ import java.util.logging.Level;
  * A Util to execute all SQLs.
  */
 public class DatabaseHelper {
-
+    private static final String SCHEMA_VERSION_KEY = "schema_version";
 
     @NotNull
     private final DatabaseManager manager;
@@ -48,16 +52,165 @@ public class DatabaseHelper {
     @NotNull
     private final QuickShop plugin;
 
+    /* Write the items in binary format into itemData column, itemConfig keeps empty unless keepYamlItems */
+    private final boolean binaryItems;
+
+    /* Also write the YAML item into itemConfig next to the binary one, so the older versions can read it */
+    private final boolean keepYamlItems;
+
     public DatabaseHelper(@NotNull QuickShop plugin, @NotNull DatabaseManager manager) throws SQLException {
         this.plugin = plugin;
         this.manager = manager;
+        this.binaryItems = plugin.getConfig().getBoolean("database.binary-items.enable", true);
+        this.keepYamlItems = plugin.getConfig().getBoolean("database.binary-items.keep-yaml-copy", false);
         if (!manager.hasTable(plugin.getDbPrefix() + "shops")) {
             createShopsTable();
         }
         if (!manager.hasTable(plugin.getDbPrefix() + "messages")) {
             createMessagesTable();
         }
-        checkColumns();
+        if (!manager.hasTable(plugin.getDbPrefix() + "metadata")) {
+            createMetadataTable();
+        }
+        upgradeSchema();
+    }
+
+    /**
+     * The schema migrations, the schema version is the count of applied migrations.
+     * Append only, every migration must be idempotent, it will run again if the version failed to save.
+     */
+    private List<Migration> getMigrations() {
+        return Arrays.asList(
+                // 1: The column checks before schema versioning
+                this::checkColumns,
+                // 2: The binary item column
+                this::addItemDataColumn,
+                // 3: The indexes for cleaning messages and looking up shops
+                () -> createIndex("messages", "owner")
+                        && createIndex("messages", "time")
+                        && createIndex("shops", "owner")
+                        && createIndex("shops", "world")
+        );
+    }
+
+    /**
+     * Apply the migrations newer than the schema version in database
+     */
+    private void upgradeSchema() throws SQLException {
+        List<Migration> migrations = getMigrations();
+        int version = getSchemaVersion();
+        if (version > migrations.size()) {
+            plugin.getLogger().warning("The database schema version " + version + " is newer than this QuickShop supports (" + migrations.size() + "), did you downgrade QuickShop?");
+            return;
+        }
+        while (version < migrations.size()) {
+            plugin.getLogger().info("Upgrading the database schema to version " + (version + 1) + ", it may take a while...");
+            if (!migrations.get(version).migrate()) {
+                plugin.getLogger().warning("Failed to upgrade the database schema to version " + (version + 1) + ", it will be retried at next startup.");
+                return;
+            }
+            version++;
+            setSchemaVersion(version);
+        }
+        Util.debugLog("Database schema version: " + version);
+    }
+
+    /**
+     * Creates the database table 'metadata', a key-value table for the database itself (e.g the schema version)
+     */
+    private void createMetadataTable() {
+        String createTable = "CREATE TABLE " + plugin.getDbPrefix()
+                + "metadata (meta_key VARCHAR(64) NOT NULL, meta_value TEXT, PRIMARY KEY (meta_key) );";
+        manager.runInstantTask(new DatabaseTask(createTable));
+    }
+
+    private int getSchemaVersion() throws SQLException {
+        DatabaseConnection connection = manager.getDatabase().getConnection();
+        try (PreparedStatement ps = connection.get().prepareStatement("SELECT meta_value FROM " + plugin.getDbPrefix() + "metadata WHERE meta_key = ?")) {
+            ps.setString(1, SCHEMA_VERSION_KEY);
+            try (ResultSet rs = ps.executeQuery()) {
+                // No version means a database before schema versioning, all migrations will run
+                return rs.next() ? Integer.parseInt(rs.getString(1)) : 0;
+            }
+        } finally {
+            connection.release();
+        }
+    }
+
+    private void setSchemaVersion(int version) {
+        // No portable upsert between SQLite and MySQL
+        manager.runInstantTask(new DatabaseTask("DELETE FROM " + plugin.getDbPrefix() + "metadata WHERE meta_key = ?", ps -> ps.setString(1, SCHEMA_VERSION_KEY)));
+        manager.runInstantTask(new DatabaseTask("INSERT INTO " + plugin.getDbPrefix() + "metadata (meta_key, meta_value) VALUES (?, ?)", ps -> {
+            ps.setString(1, SCHEMA_VERSION_KEY);
+            ps.setString(2, String.valueOf(version));
+        }));
+    }
+
+    private boolean addItemDataColumn() {
+        try {
+            if (manager.hasColumn(plugin.getDbPrefix() + "shops", "itemData")) {
+                return true;
+            }
+            String sqlString;
+            if (manager.getDatabase() instanceof MySQLCore) {
+                sqlString = "ALTER TABLE " + plugin
+                        .getDbPrefix() + "shops ADD itemData MEDIUMBLOB";
+            } else {
+                sqlString = "ALTER TABLE " + plugin
+                        .getDbPrefix() + "shops ADD COLUMN itemData BLOB";
+            }
+            Util.debugLog("Setting up the column ITEMDATA...");
+            return runMigrationTask(sqlString);
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "Error to create ITEMDATA column", e);
+            return false;
+        }
+    }
+
+    /**
+     * Create the index if not exists, the index named as {prefix}idx_{table}_{column}
+     *
+     * @param table  The table without prefix
+     * @param column The column
+     * @return The index exists now
+     */
+    private boolean createIndex(@NotNull String table, @NotNull String column) {
+        String tableName = plugin.getDbPrefix() + table;
+        String indexName = plugin.getDbPrefix() + "idx_" + table + "_" + column;
+        try {
+            if (manager.hasIndex(tableName, indexName)) {
+                return true;
+            }
+            String sqlString;
+            if (manager.getDatabase() instanceof MySQLCore) {
+                // The owner columns are VARCHAR(255), 191 utf8mb4 chars fit the 767 bytes key limit of old InnoDB
+                String key = "owner".equals(column) ? column + "(191)" : column;
+                sqlString = "CREATE INDEX " + indexName + " ON " + tableName + " (" + key + ")";
+            } else {
+                sqlString = "CREATE INDEX IF NOT EXISTS " + indexName + " ON " + tableName + " (" + column + ")";
+            }
+            Util.debugLog("Creating the index " + indexName + "...");
+            return runMigrationTask(sqlString);
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "Error to create the index " + indexName, e);
+            return false;
+        }
+    }
+
+    private boolean runMigrationTask(@NotNull String sqlString) {
+        AtomicBoolean success = new AtomicBoolean(true);
+        manager.runInstantTask(new DatabaseTask(sqlString, new DatabaseTask.Task() {
+            @Override
+            public void edit(PreparedStatement ps) {
+            }
+
+            @Override
+            public void onFailed(SQLException e) {
+                success.set(false);
+                plugin.getLogger().log(Level.WARNING, "Failed to execute the database migration: " + sqlString, e);
+            }
+        }));
+        return success.get();
     }
 
     /**
@@ -89,7 +242,7 @@ public class DatabaseHelper {
     /**
      * Verifies that all required columns exist.
      */
-    private void checkColumns() {
+    private boolean checkColumns() {
         plugin.getLogger().info("Checking and updating database columns, it may take a while...");
         DatabaseTask.Task checkTask = new DatabaseTask.Task() {
             @Override
@@ -137,7 +290,6 @@ public class DatabaseHelper {
             Util.debugLog("Error to create EXTRA column: " + e.getMessage());
             //ignore
         }
-
         if (manager.getDatabase() instanceof MySQLCore) {
             manager.runInstantTask(new DatabaseTask("ALTER TABLE " + plugin
                     .getDbPrefix() + "messages MODIFY COLUMN message text CHARACTER SET utf8mb4 NOT NULL AFTER owner", checkTask));
@@ -145,6 +297,8 @@ public class DatabaseHelper {
                     .getDbPrefix() + "shops MODIFY COLUMN itemConfig text CHARACTER SET utf8mb4 NOT NULL AFTER price", checkTask));
         }
         plugin.getLogger().info("Finished!");
+        // These checks were always best-effort
+        return true;
     }
 
     public void cleanMessage(long weekAgo) {
@@ -160,7 +314,7 @@ public class DatabaseHelper {
 
     public void createShop(@NotNull Shop shop, @Nullable Runnable onSuccess, @Nullable Consumer<SQLException> onFailed) {
         removeShop(shop); //First purge old exist shop before create new shop.
-        String sqlString = "INSERT INTO " + plugin.getDbPrefix() + "shops (owner, price, itemConfig, x, y, z, world, unlimited, type, extra) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        String sqlString = "INSERT INTO " + plugin.getDbPrefix() + "shops (owner, price, itemConfig, x, y, z, world, unlimited, type, extra, itemData) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
         manager.addDelayTask(new DatabaseTask(sqlString, new DatabaseTask.Task() {
             @Override
             public void edit(PreparedStatement ps) throws SQLException {
@@ -168,7 +322,7 @@ public class DatabaseHelper {
                 //plugin.getDB().execute(q, owner, price, Util.serialize(item), x, y, z, world, unlimited, shopType);
                 ps.setString(1, ShopModerator.serialize(shop.getModerator()));
                 ps.setDouble(2, shop.getPrice());
-                ps.setString(3, Util.serialize(shop.getItem()));
+                setItem(ps, 3, 11, shop.getItem());
                 ps.setInt(4, location.getBlockX());
                 ps.setInt(5, location.getBlockY());
                 ps.setInt(6, location.getBlockZ());
@@ -241,8 +395,12 @@ public class DatabaseHelper {
     }
 
     private WarpedResultSet selectTable(String table) throws SQLException {
-        DatabaseConnection databaseConnection = manager.getDatabase().getConnection();
+        DatabaseConnection databaseConnection = manager.getDatabase().getReadConnection();
         Statement st = databaseConnection.get().createStatement();
+        if (manager.getDatabase() instanceof MySQLCore) {
+            // Stream the rows instead of reading the whole table into memory
+            st.setFetchSize(Integer.MIN_VALUE);
+        }
         String selectAllShops = "SELECT * FROM " + plugin.getDbPrefix() + table;
         ResultSet resultSet = st.executeQuery(selectAllShops);
         return new WarpedResultSet(st, resultSet, databaseConnection);
@@ -282,23 +440,45 @@ public class DatabaseHelper {
     public void updateShop(@NotNull String owner, @NotNull ItemStack item, int unlimited, int shopType,
                            double price, int x, int y, int z, String world, String extra) {
         String sqlString = "UPDATE " + plugin
-                .getDbPrefix() + "shops SET owner = ?, itemConfig = ?, unlimited = ?, type = ?, price = ?, extra = ? WHERE x = ? AND y = ? and z = ? and world = ?";
+                .getDbPrefix() + "shops SET owner = ?, itemConfig = ?, itemData = ?, unlimited = ?, type = ?, price = ?, extra = ? WHERE x = ? AND y = ? and z = ? and world = ?";
         manager.addDelayTask(new DatabaseTask(sqlString, ps -> {
             ps.setString(1, owner);
-            ps.setString(2, Util.serialize(item));
-            ps.setInt(3, unlimited);
-            ps.setInt(4, shopType);
-            ps.setDouble(5, price);
-            ps.setString(6, extra);
-            ps.setInt(7, x);
-            ps.setInt(8, y);
-            ps.setInt(9, z);
-            ps.setString(10, world);
+            // The legacy YAML rows get their binary copy here
+            setItem(ps, 2, 3, item);
+            ps.setInt(4, unlimited);
+            ps.setInt(5, shopType);
+            ps.setDouble(6, price);
+            ps.setString(7, extra);
+            ps.setInt(8, x);
+            ps.setInt(9, y);
+            ps.setInt(10, z);
+            ps.setString(11, world);
         }));
         //db.execute(q, owner, Util.serialize(item), unlimited, shopType, price, x, y, z, world);
 
     }
 
+    private void setItem(@NotNull PreparedStatement ps, int configIndex, int dataIndex, @NotNull ItemStack item) throws SQLException {
+        byte[] itemData = binaryItems ? Util.serializeBinary(item) : null;
+        if (itemData == null) {
+            ps.setString(configIndex, Util.serialize(item));
+            ps.setNull(dataIndex, Types.BLOB);
+        } else {
+            ps.setString(configIndex, keepYamlItems ? Util.serialize(item) : "");
+            ps.setBytes(dataIndex, itemData);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Migration {
+        /**
+         * Apply the migration
+         *
+         * @return true if succeed, the schema version will be bumped
+         */
+        boolean migrate();
+    }
+
     private void bakeTraceIfNeeded() {
         if (plugin.getConfig().getBoolean("debug.shop-deletion")) {
             for (StackTraceElement stackTraceElement : new Exception().getStackTrace()) {
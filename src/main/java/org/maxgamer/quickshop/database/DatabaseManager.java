@@ -20,26 +20,66 @@
 package org.maxgamer.quickshop.database;
 
 import lombok.Getter;
-import org.bukkit.plugin.IllegalPluginAccessException;
-import org.bukkit.scheduler.BukkitTask;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.maxgamer.quickshop.QuickShop;
 import org.maxgamer.quickshop.util.Timer;
-import org.maxgamer.quickshop.util.Util;
 import org.maxgamer.quickshop.util.WarningSender;
 
 import java.sql.*;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 
 /**
  * Queued database manager. Use queue to solve run SQL make server lagg issue.
+ * <p>
+ * The queue is drained by a dedicated writer thread, it wakes up when a task enqueued,
+ * lingers a short time to collect more tasks into the same transaction and then commits them.
  */
 public class DatabaseManager {
 
-    private final Queue<DatabaseTask> sqlQueue = new LinkedBlockingQueue<>();
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private final BlockingQueue<DatabaseTask> sqlQueue;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final long lingerMillis;
+
+    private final long blockTimeoutMillis;
+
+    private final Thread writerThread;
+
+    private volatile boolean running = true;
+
+    /* Only changed by the thread running tasks, the tasks taken from queue but not committed yet */
+    private final Deque<DatabaseTask> carriedTasks = new ConcurrentLinkedDeque<>();
+
+    private final Object flushLock = new Object();
+
+    /* Guards the handover of the queue from the writer thread to the callers after the writer stopped */
+    private final Object stopLock = new Object();
+
+    private final AtomicLong enqueued = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final LongAdder overflowed = new LongAdder();
+
+    private final LongAdder flushes = new LongAdder();
+
+    private final LongAdder flushNanos = new LongAdder();
+
+    private final AtomicLong maxFlushNanos = new AtomicLong();
 
     @NotNull
     @Getter
@@ -50,9 +90,6 @@ public class DatabaseManager {
 
     @NotNull
     private final WarningSender warningSender;
-    private final boolean useQueue;
-    @Nullable
-    private BukkitTask task;
 
     /**
      * Queued database manager. Use queue to solve run SQL make server lagg issue.
@@ -74,22 +111,76 @@ public class DatabaseManager {
         }
 
         this.database = dbCore;
-        this.useQueue = plugin.getConfig().getBoolean("database.queue");
+        this.sqlQueue = new LinkedBlockingQueue<>(Math.max(1, plugin.getConfig().getInt("database.queue-capacity", 20000)));
+        this.overflowPolicy = OverflowPolicy.fromString(plugin.getConfig().getString("database.queue-overflow-policy"));
+        this.lingerMillis = Math.max(0, plugin.getConfig().getLong("database.queue-linger", 50));
+        this.blockTimeoutMillis = Math.max(0, plugin.getConfig().getLong("database.queue-block-timeout", 3000));
+        this.writerThread = new Thread(this::writerLoop, "QuickShop-Database-Writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
 
-        if (useQueue) {
+    private void writerLoop() {
+        while (running || !sqlQueue.isEmpty() || !carriedTasks.isEmpty()) {
             try {
-                task = plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, () -> {
-                    if (!task.isCancelled()) {
-                        plugin.getDatabaseManager().runTask();
+                if (carriedTasks.isEmpty()) {
+                    // Wake up on enqueue
+                    DatabaseTask task = sqlQueue.poll(1, TimeUnit.SECONDS);
+                    if (task == null) {
+                        database.maintain();
+                        continue;
+                    }
+                    carriedTasks.add(task);
+                    if (lingerMillis > 0 && running) {
+                        // Give the following tasks a chance to join this transaction
+                        Thread.sleep(lingerMillis);
                     }
-                }, 1, plugin.getConfig().getLong("database.queue-commit-interval") * 20);
-            } catch (IllegalPluginAccessException e) {
-                Util.debugLog("Plugin is disabled but trying create database task, move to Main Thread...");
-                plugin.getDatabaseManager().runTask();
+                }
+                if (!runTask()) {
+                    // Waiting next cycle and hope it success reconnected.
+                    Thread.sleep(1000);
+                    continue;
+                }
+                database.maintain();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.WARNING, "Database writer got an unexpected error", e);
             }
         }
     }
 
+    @Nullable
+    private DatabaseTask nextTask() {
+        DatabaseTask task = carriedTasks.pollFirst();
+        return task != null ? task : sqlQueue.poll();
+    }
+
+    @Nullable
+    private DatabaseTask peekTask() {
+        DatabaseTask task = carriedTasks.peekFirst();
+        return task != null ? task : sqlQueue.peek();
+    }
+
+    /**
+     * Put the tasks of the rolled back transaction back to the head, they will run again in the same order
+     *
+     * @param tasks The tasks
+     */
+    private void carryBack(@NotNull List<DatabaseTask> tasks) {
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            carriedTasks.addFirst(tasks.get(i));
+        }
+    }
+
+    private void markCompleted(int count) {
+        completed.addAndGet(count);
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
+    }
+
     /**
      * Returns true if the table exists
      *
@@ -145,31 +236,75 @@ public class DatabaseManager {
     }
 
     /**
-     * Internal method, runTasks in queue.
+     * Returns true if the given table has the given index
+     *
+     * @param table The table
+     * @param index The index name
+     * @return True if the given table has the given index
+     * @throws SQLException If the database isn't connected
      */
-    private synchronized void runTask() { // synchronized for QUICKSHOP-WX
-            if (sqlQueue.isEmpty()) {
-                return;
+    public boolean hasIndex(@NotNull String table, @NotNull String index) throws SQLException {
+        DatabaseConnection connection = database.getConnection();
+        // Current catalog, MySQL may search all databases if it is null
+        try (ResultSet rs = connection.get().getMetaData().getIndexInfo(connection.get().getCatalog(), null, table, false, true)) {
+            while (rs.next()) {
+                if (index.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            connection.release();
+        }
+    }
+
+    /**
+     * Internal method, runTasks in queue. Only called by the writer thread, or after it stopped.
+     *
+     * @return false if the connection lost and the tasks are kept for next run
+     */
+    private boolean runTask() {
+            if (carriedTasks.isEmpty() && sqlQueue.isEmpty()) {
+                return true;
             }
+            long beginTime = System.nanoTime();
             DatabaseConnection dbconnection = this.database.getConnection();
+            // The tasks in current transaction, a lost connection rolls back all of them
+            List<DatabaseTask> transaction = new ArrayList<>();
+            // Callbacks of the tasks, only called after the transaction committed
+            List<Runnable> callbacks = new ArrayList<>();
 
-            try (Connection connection = dbconnection.get()) {
+            // Don't close the connection, it goes back to the pool when released
+            try {
+                Connection connection = dbconnection.get();
                 //start our commit
                 connection.setAutoCommit(false);
                 Timer ctimer = new Timer(true);
                 while (true) {
-                    if (!dbconnection.isValid()) {
+                    // The pool validates the idle connections in background, only do the local check here
+                    if (dbconnection.isClosed()) {
                         warningSender.sendWarn("Database connection may lost, we are trying reconnecting, if this message appear too many times, you should check your database file(sqlite) and internet connection(mysql).");
-                        return; // Waiting next crycle and hope it success reconnected.
+                        carryBack(transaction);
+                        return false; // Waiting next crycle and hope it success reconnected.
                     }
 
                     Timer timer = new Timer(true);
-                    DatabaseTask task = sqlQueue.poll();
+                    DatabaseTask task = nextTask();
                     if (task == null) {
                         break;
                     }
+                    // Consecutive tasks with same statement share one PreparedStatement and one round trip
+                    List<DatabaseTask> batch = new ArrayList<>();
+                    batch.add(task);
+                    DatabaseTask next;
+                    while (batch.size() < MAX_BATCH_SIZE
+                            && (next = peekTask()) != null
+                            && next.getStatement().equals(task.getStatement())) {
+                        batch.add(nextTask());
+                    }
 
-                    task.run(connection);
+                    transaction.addAll(batch);
+                    DatabaseTask.runBatch(dbconnection, batch, callbacks);
                     long tookTime = timer.stopAndGetTimePassed();
                     if (tookTime > 300) {
                         warningSender.sendWarn(
@@ -182,6 +317,12 @@ public class DatabaseManager {
                     connection.commit();
                     connection.setAutoCommit(true);
                 }
+                markCompleted(transaction.size());
+                runCallbacks(callbacks);
+                long flushTime = System.nanoTime() - beginTime;
+                flushes.increment();
+                flushNanos.add(flushTime);
+                maxFlushNanos.accumulateAndGet(flushTime, Math::max);
                 long tookTime = ctimer.stopAndGetTimePassed();
                 if (tookTime > 5500) {
                     warningSender.sendWarn(
@@ -195,9 +336,32 @@ public class DatabaseManager {
                 this.plugin
                         .getLogger()
                         .log(Level.WARNING, "Database connection may lost, we are trying reconnecting, if this message appear too many times, you should check your database file(sqlite) and internet connection(mysql).", sqle);
+                if (DatabaseTask.isConnectionLost(sqle)) {
+                    // Drop the broken connection, and retry the whole transaction on a new one
+                    dbconnection.discard();
+                    carryBack(transaction);
+                    return false;
+                }
+                // Rolled back, none of the tasks took effect
+                markCompleted(transaction.size());
+                List<Runnable> failures = new ArrayList<>(transaction.size());
+                for (DatabaseTask task : transaction) {
+                    failures.add(() -> task.fail(sqle));
+                }
+                runCallbacks(failures);
             } finally {
+                // Drop the unfinished transaction before the connection goes back to pool
+                try {
+                    Connection connection = dbconnection.get();
+                    if (!connection.isClosed() && !connection.getAutoCommit()) {
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                } catch (SQLException ignored) {
+                }
                 dbconnection.release();
             }
+            return true;
 
 //        try {
 //            this.database.getConnection().commit();
@@ -209,6 +373,16 @@ public class DatabaseManager {
 //        }
     }
 
+    private void runCallbacks(@NotNull List<Runnable> callbacks) {
+        for (Runnable callback : callbacks) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.WARNING, "Failed to run the callback of a database task", e);
+            }
+        }
+    }
+
     /**
      * Add DatabaseTask to queue waiting flush to database,
      *
@@ -216,8 +390,11 @@ public class DatabaseManager {
      */
     public void runInstantTask(DatabaseTask task) {
         DatabaseConnection connection = database.getConnection();
-        task.run(connection.get());
-        connection.release();
+        try {
+            task.run(connection);
+        } finally {
+            connection.release();
+        }
     }
 
     /**
@@ -226,25 +403,187 @@ public class DatabaseManager {
      * @param task The DatabaseTask you want add in queue.
      */
     public void addDelayTask(DatabaseTask task) {
-        if (useQueue) {
-            sqlQueue.offer(task);
-        } else {
+        if (running && sqlQueue.offer(task)) {
+            enqueued.incrementAndGet();
+            return;
+        }
+        if (!running && addWhileStopping(task)) {
+            return;
+        }
+        overflowed.increment();
+        switch (overflowPolicy) {
+            case CALLER_RUNS:
+                warningSender.sendWarn("Database queue is full (" + sqlQueue.size() + " tasks), running the tasks on the calling thread! Check your database performance.");
+                // The queued tasks must go first, or an older change may overwrite the newer one
+                if (!flush(blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    warningSender.sendWarn("Database queue didn't drain in " + blockTimeoutMillis + "ms, running the task ahead of the queued tasks! Check your database performance.");
+                }
+                runInstantTask(task);
+                break;
+            case DISCARD:
+                warningSender.sendWarn("Database queue is full (" + sqlQueue.size() + " tasks), the new tasks are discarded! Check your database performance.");
+                task.fail(new SQLException("Database queue is full"));
+                break;
+            case BLOCK:
+            default:
+                try {
+                    if (sqlQueue.offer(task, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                        enqueued.incrementAndGet();
+                        break;
+                    }
+                    warningSender.sendWarn("Database queue is still full after waiting " + blockTimeoutMillis + "ms, the new tasks are discarded! Check your database performance.");
+                    task.fail(new SQLException("Database queue is full"));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    task.fail(new SQLException("Interrupted while waiting for database queue space"));
+                }
+        }
+    }
+
+    /**
+     * Handle the task added after the writer was told to stop, keeping the order with the queued tasks
+     *
+     * @param task The task
+     * @return false if the queue is full and the task should go to the overflow policy
+     */
+    private boolean addWhileStopping(@NotNull DatabaseTask task) {
+        synchronized (stopLock) {
+            if (writerThread.isAlive()) {
+                // The writer drains the whole queue before exiting
+                if (sqlQueue.offer(task)) {
+                    enqueued.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+            // Writer stopped, nobody will drain the queue, run the leftovers first
+            runTask();
             runInstantTask(task);
+            return true;
+        }
+    }
+
+    /**
+     * Wait until all tasks enqueued before this call are committed
+     *
+     * @param timeout The max waiting time
+     * @param unit    The time unit
+     * @return true if all flushed, false if timed out
+     */
+    public boolean flush(long timeout, @NotNull TimeUnit unit) {
+        long target = enqueued.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (flushLock) {
+            while (completed.get() < target) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0 || !writerThread.isAlive()) {
+                    return completed.get() >= target;
+                }
+                try {
+                    flushLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
         }
+        return true;
     }
 
     /**
      * Unload the DatabaseManager, run at onDisable()
      */
     public synchronized void unInit() {
-        if (task != null && !task.isCancelled()) {
-            task.cancel();
-        }
         plugin.getLogger().info("Please wait for the data to flush its data...");
-        runTask();
+        // The writer drains the rest of queue before exiting
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(60));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            plugin.getLogger().warning("Database writer didn't finish in time, " + getQueueDepth() + " tasks may be lost.");
+        } else {
+            synchronized (stopLock) {
+                // Tasks added while the writer stopping
+                if (!runTask()) {
+                    plugin.getLogger().warning("Database connection lost, " + getQueueDepth() + " tasks may be lost.");
+                }
+            }
+        }
         database.close();
     }
 
+    public int getQueueDepth() {
+        return sqlQueue.size() + carriedTasks.size();
+    }
+
+    public int getQueueCapacity() {
+        return sqlQueue.size() + sqlQueue.remainingCapacity();
+    }
+
+    public long getCompletedTasks() {
+        return completed.get();
+    }
+
+    /**
+     * Gets how many tasks met the full queue and handled by the overflow policy
+     *
+     * @return The overflow count
+     */
+    public long getOverflowedTasks() {
+        return overflowed.sum();
+    }
+
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+
+    /**
+     * Gets the average time of a flush, from getting connection to commit
+     *
+     * @return The average flush latency in milliseconds
+     */
+    public double getAverageFlushMillis() {
+        long count = flushes.sum();
+        return count == 0 ? 0 : flushNanos.sum() / (double) count / 1_000_000;
+    }
+
+    public double getMaxFlushMillis() {
+        return maxFlushNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * What to do when the database queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until the queue has space, the task is dropped if it is still full after the block timeout
+         */
+        BLOCK,
+        /**
+         * Run the task on the calling thread after the queued tasks are committed
+         */
+        CALLER_RUNS,
+        /**
+         * Drop the task and call its onFailed
+         */
+        DISCARD;
+
+        @NotNull
+        public static OverflowPolicy fromString(@Nullable String name) {
+            if (name != null) {
+                for (OverflowPolicy policy : values()) {
+                    if (policy.name().equals(name.toUpperCase(Locale.ROOT))) {
+                        return policy;
+                    }
+                }
+            }
+            return BLOCK;
+        }
+    }
+
 
     /**
      * Represents a connection error, generally when the server can't connect to MySQL or something.
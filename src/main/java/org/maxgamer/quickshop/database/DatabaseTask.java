@@ -20,18 +20,26 @@
 package org.maxgamer.quickshop.database;
 
 
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.ToString;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
 @ToString()
 public class DatabaseTask {
 
     private final static Task emptyTask = ps -> {
     };
+    @Getter
     private final String statement;
     private final Task task;
 
@@ -47,7 +55,7 @@ public class DatabaseTask {
 
 
     public void run(@NonNull Connection connection) {
-        try (PreparedStatement ps = connection.prepareStatement(statement)) { //TODO Use addBatch to improve performance
+        try (PreparedStatement ps = connection.prepareStatement(statement)) {
             task.edit(ps);
             ps.execute();
             task.onSuccess();
@@ -56,6 +64,154 @@ public class DatabaseTask {
         }
     }
 
+    /**
+     * Run the task with the statement cache of the connection
+     *
+     * @param connection The connection in using
+     */
+    public void run(@NonNull DatabaseConnection connection) {
+        List<Runnable> callbacks = new ArrayList<>(1);
+        try {
+            execute(connection, callbacks);
+        } catch (SQLException e) {
+            task.onFailed(e);
+            return;
+        }
+        callbacks.forEach(Runnable::run);
+    }
+
+    /**
+     * Run the task with the statement cache of the connection, the callback is collected instead of called,
+     * so the caller can call it after the transaction committed
+     *
+     * @param connection The connection in using
+     * @param callbacks  The collected callbacks
+     * @throws SQLException If the connection lost, the task should be retried on another connection
+     */
+    void execute(@NonNull DatabaseConnection connection, @NonNull List<Runnable> callbacks) throws SQLException {
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(statement);
+            task.edit(ps);
+            ps.execute();
+        } catch (SQLException e) {
+            if (isConnectionLost(e)) {
+                throw e;
+            }
+            callbacks.add(() -> task.onFailed(e));
+            return;
+        } finally {
+            if (ps != null) {
+                connection.finishStatement(ps);
+            }
+        }
+        callbacks.add(task::onSuccess);
+    }
+
+    /**
+     * Check the exception is caused by a broken connection (SQLState class 08), not by the statement itself
+     *
+     * @param e The exception
+     * @return true if the connection lost
+     */
+    static boolean isConnectionLost(@NonNull SQLException e) {
+        String state = e.getSQLState();
+        return (state != null && state.startsWith("08"))
+                || e instanceof SQLNonTransientConnectionException
+                || e instanceof SQLTransientConnectionException;
+    }
+
+    /**
+     * Fail the task without running it
+     *
+     * @param e The reason
+     */
+    void fail(@NonNull SQLException e) {
+        task.onFailed(e);
+    }
+
+    /**
+     * Run the tasks which have the same statement as one batch on a single PreparedStatement,
+     * callbacks of every task will be collected like they run one by one.
+     *
+     * @param connection The connection
+     * @param tasks      The tasks, all of them must have the same statement
+     * @param callbacks  The collected callbacks, call them after the transaction committed
+     * @throws SQLException If the connection lost, the whole transaction should be retried and its callbacks dropped
+     */
+    static void runBatch(@NonNull DatabaseConnection connection, @NonNull List<DatabaseTask> tasks, @NonNull List<Runnable> callbacks) throws SQLException {
+        if (tasks.size() == 1) {
+            tasks.get(0).execute(connection, callbacks);
+            return;
+        }
+        List<DatabaseTask> batched = new ArrayList<>(tasks.size());
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(tasks.get(0).statement);
+            for (DatabaseTask databaseTask : tasks) {
+                try {
+                    databaseTask.task.edit(ps);
+                    ps.addBatch();
+                    batched.add(databaseTask);
+                } catch (SQLException e) {
+                    ps.clearParameters();
+                    callbacks.add(() -> databaseTask.task.onFailed(e));
+                }
+            }
+            if (batched.isEmpty()) {
+                return;
+            }
+            try {
+                ps.executeBatch();
+            } catch (BatchUpdateException e) {
+                if (isConnectionLost(e)) {
+                    throw e;
+                }
+                handleBatchFailure(connection, batched, e, callbacks);
+                return;
+            }
+        } catch (SQLException e) {
+            if (isConnectionLost(e)) {
+                throw e;
+            }
+            for (DatabaseTask databaseTask : batched) {
+                callbacks.add(() -> databaseTask.task.onFailed(e));
+            }
+            return;
+        } finally {
+            if (ps != null) {
+                connection.finishStatement(ps);
+            }
+        }
+        for (DatabaseTask databaseTask : batched) {
+            callbacks.add(databaseTask.task::onSuccess);
+        }
+    }
+
+    private static void handleBatchFailure(@NonNull DatabaseConnection connection, @NonNull List<DatabaseTask> batched,
+                                           @NonNull BatchUpdateException e, @NonNull List<Runnable> callbacks) throws SQLException {
+        int[] counts = e.getUpdateCounts();
+        if (counts == null) {
+            counts = new int[0];
+        }
+        for (int i = 0; i < batched.size(); i++) {
+            DatabaseTask databaseTask = batched.get(i);
+            if (i < counts.length) {
+                if (counts[i] == Statement.EXECUTE_FAILED) {
+                    callbacks.add(() -> databaseTask.task.onFailed(e));
+                } else {
+                    callbacks.add(databaseTask.task::onSuccess);
+                }
+            } else if (i == counts.length) {
+                // The driver stopped at this statement
+                callbacks.add(() -> databaseTask.task.onFailed(e));
+            } else {
+                // Never executed, run it alone
+                databaseTask.execute(connection, callbacks);
+            }
+        }
+    }
+
     interface Task {
         void edit(PreparedStatement ps) throws SQLException;
 
@@ -20,19 +20,33 @@
 package org.maxgamer.quickshop.database;
 
 import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.maxgamer.quickshop.QuickShop;
 
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Deque;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * MySQL database core with a built-in connection pool.
+ * <p>
+ * Borrowing and returning never lock, the idle connections are kept in a lock-free stack and
+ * validated in background instead of on every borrow. Borrowers only wait when the pool is exhausted,
+ * and give up after the acquisition timeout.
+ */
 public class MySQLCore extends AbstractDatabaseCore {
 
-    private static final int MAX_CONNECTIONS = 8;
-    private final List<DatabaseConnection> POOL = new ArrayList<>();
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
     /**
      * The connection properties... user, pass, autoReconnect..
      */
@@ -45,6 +59,33 @@ public class MySQLCore extends AbstractDatabaseCore {
     @NotNull
     private final QuickShop plugin;
 
+    private final int maxConnections;
+
+    private final long acquireTimeoutNanos;
+
+    /* All opened connections, for closing */
+    private final Set<DatabaseConnection> connections = ConcurrentHashMap.newKeySet();
+
+    /* Idle connections, the most recently used one on the top */
+    private final Deque<DatabaseConnection> idleConnections = new ConcurrentLinkedDeque<>();
+
+    private final AtomicInteger totalConnections = new AtomicInteger();
+
+    private final LongAdder acquired = new LongAdder();
+
+    private final LongAdder waitNanos = new LongAdder();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private final LongAdder timeouts = new LongAdder();
+
+    private final LongAdder evicted = new LongAdder();
+
+    @Nullable
+    private BukkitTask validationTask;
+
+    private volatile boolean closed;
+
     public MySQLCore(
             @NotNull QuickShop plugin,
             @NotNull String host,
@@ -63,68 +104,181 @@ public class MySQLCore extends AbstractDatabaseCore {
         //info.setProperty("maxReconnects", "65535");
         // info.setProperty("failOverReadOnly", "false");
         info.setProperty("useSSL", String.valueOf(useSSL));
-        if (false) { //TODO Option for addBatch to improve performance
-            info.setProperty("rewriteBatchedStatements", "true");
-        }
+        // Let the driver send the batched statements in one multi-row statement
+        info.setProperty("rewriteBatchedStatements", String.valueOf(plugin.getConfig().getBoolean("database.rewrite-batched-statements", true)));
         this.url = "jdbc:mysql://" + host + ":" + port + "/" + database;
-        for (int i = 0; i < MAX_CONNECTIONS; i++) {
-            POOL.add(null);
+        this.maxConnections = Math.max(1, plugin.getConfig().getInt("database.pool.size", 8));
+        this.acquireTimeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(1, plugin.getConfig().getLong("database.pool.acquire-timeout", 30)));
+        long validationInterval = plugin.getConfig().getLong("database.pool.validation-interval", 30) * 20;
+        if (validationInterval > 0) {
+            this.validationTask = plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, this::validateIdleConnections, validationInterval, validationInterval);
         }
     }
 
     @Override
     synchronized void close() {
-        for (DatabaseConnection databaseConnection : POOL) {
-            if (databaseConnection == null || !databaseConnection.isValid()) {
+        closed = true;
+        if (validationTask != null) {
+            validationTask.cancel();
+        }
+        long deadline = System.nanoTime() + acquireTimeoutNanos;
+        for (DatabaseConnection databaseConnection : connections) {
+            //Wait until the connection is finished
+            while (databaseConnection.isUsing() && System.nanoTime() < deadline) {
+                waitForConnection(WAIT_SLICE_NANOS);
+            }
+            databaseConnection.discard();
+        }
+        connections.clear();
+        idleConnections.clear();
+        totalConnections.set(0);
+    }
+
+    @Override
+    @NotNull
+    DatabaseConnection getConnection() {
+        long begin = System.nanoTime();
+        while (true) {
+            DatabaseConnection connection = tryAcquire();
+            if (connection != null) {
+                long waited = System.nanoTime() - begin;
+                acquired.increment();
+                waitNanos.add(waited);
+                maxWaitNanos.accumulateAndGet(waited, Math::max);
+                return connection;
+            }
+            long remaining = acquireTimeoutNanos - (System.nanoTime() - begin);
+            if (remaining <= 0) {
+                timeouts.increment();
+                throw new IllegalStateException("Timed out waiting for a database connection after "
+                        + TimeUnit.NANOSECONDS.toMillis(acquireTimeoutNanos) + "ms, all " + maxConnections + " connections are in use");
+            }
+            // Short slices, so a missed signal only costs a slice
+            waitForConnection(Math.min(remaining, WAIT_SLICE_NANOS));
+        }
+    }
+
+    /**
+     * Take an idle connection or open a new one if the pool isn't full
+     *
+     * @return The connection marked as using, null if the pool exhausted
+     */
+    @Nullable
+    private DatabaseConnection tryAcquire() {
+        DatabaseConnection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            if (!connection.tryMarkUsing()) {
                 continue;
             }
-            if (!databaseConnection.isUsing()) {
-                databaseConnection.close();
-            } else {
-                //Wait until the connection is finished
-                try {
-                    Thread.sleep(2000);
-                } catch (InterruptedException ignored) {
-                } finally {
-                    close();
-                }
+            if (connection.isClosed()) {
+                evict(connection);
+                continue;
+            }
+            return connection;
+        }
+        int total;
+        while ((total = totalConnections.get()) < maxConnections) {
+            if (totalConnections.compareAndSet(total, total + 1)) {
+                connection = openConnection();
+                connection.markUsing();
+                return connection;
             }
         }
+        return null;
     }
 
     @Override
-    synchronized protected DatabaseConnection getConnection0() {
-        for (int i = 0; i < MAX_CONNECTIONS; i++) {
-            DatabaseConnection connection = POOL.get(i);
-            // If we have a current connection, fetch it
+    void returnConnection(@NotNull DatabaseConnection connection) {
+        if (closed || connection.isClosed()) {
+            evict(connection);
+        } else {
+            idleConnections.offerFirst(connection);
+        }
+        super.returnConnection(connection);
+    }
+
+    private void evict(@NotNull DatabaseConnection connection) {
+        if (connections.remove(connection)) {
+            totalConnections.decrementAndGet();
+            evicted.increment();
+        }
+        connection.discard();
+    }
+
+    /**
+     * Validate the idle connections, the broken ones will be dropped from pool
+     */
+    private void validateIdleConnections() {
+        // Check each idle connection once, from the least recently used one
+        int count = idleConnections.size();
+        for (int i = 0; i < count && !closed; i++) {
+            DatabaseConnection connection = idleConnections.pollLast();
             if (connection == null) {
-                return genConnection(i);
-            } else if (!connection.isUsing()) {
-                if (connection.isValid()) {
-                    return connection;
-                } else {
-                    // Else, it is invalid, return another connection.
-                    connection.close();
-                    return genConnection(i);
-                }
+                return;
+            }
+            if (!connection.tryMarkUsing()) {
+                continue;
+            }
+            if (connection.isValid()) {
+                connection.release();
+            } else {
+                evict(connection);
+                signalForNewConnection();
             }
-
         }
-        //If all connection is unusable, wait a moment
-        waitForConnection();
-        return getConnection0();
     }
 
-    synchronized private DatabaseConnection genConnection(int index) {
+    @NotNull
+    private DatabaseConnection openConnection() {
         try {
             DatabaseConnection connection = new DatabaseConnection(this, DriverManager.getConnection(this.url, info));
-            POOL.set(index, connection);
+            connections.add(connection);
             return connection;
         } catch (SQLException e) {
+            totalConnections.decrementAndGet();
             throw new RuntimeException("Unable to create a new connection", e);
         }
     }
 
+    public int getActiveConnections() {
+        return Math.max(0, totalConnections.get() - idleConnections.size());
+    }
+
+    public int getIdleConnections() {
+        return idleConnections.size();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Gets the average time spent on acquiring a connection
+     *
+     * @return The average wait time in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long count = acquired.sum();
+        return count == 0 ? 0 : waitNanos.sum() / (double) count / 1_000_000;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    public long getAcquireTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Gets how many connections dropped because they are closed or broken
+     *
+     * @return The evicted count
+     */
+    public long getEvictedConnections() {
+        return evicted.sum();
+    }
+
     @Override
     public @NotNull String getName() {
         return "BuiltIn-MySQL";
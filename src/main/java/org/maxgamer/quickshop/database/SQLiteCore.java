@@ -19,6 +19,7 @@
 
 package org.maxgamer.quickshop.database;
 
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.plugin.Plugin;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -26,52 +27,167 @@ import org.maxgamer.quickshop.QuickShop;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 public class SQLiteCore extends AbstractDatabaseCore {
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    /* SQLITE_OPEN_READONLY */
+    private static final String OPEN_MODE_READ_ONLY = "1";
+
     private final File dbFile;
 
     @NotNull
     private final QuickShop plugin;
     private DatabaseConnection connection;
 
+    /* WAL journal, tuned pragmas, statement cache and a dedicated reading connection */
+    private final boolean performanceMode;
+    private final long mmapSize;
+    private final long cacheSizeKiB;
+    private final int statementCacheSize;
+    private final long checkpointIntervalNanos;
+
+    private final Object readLock = new Object();
+    @Nullable
+    private volatile DatabaseConnection readConnection;
+    private volatile long lastCheckpoint = System.nanoTime();
+
     public SQLiteCore(@NotNull QuickShop plugin, @NotNull File dbFile) {
         this.plugin = plugin;
         this.dbFile = dbFile;
+        ConfigurationSection section = plugin.getConfig().getConfigurationSection("database.sqlite");
+        if (section == null) {
+            this.performanceMode = false;
+            this.mmapSize = 0;
+            this.cacheSizeKiB = 0;
+            this.statementCacheSize = 0;
+            this.checkpointIntervalNanos = 0;
+        } else {
+            this.performanceMode = section.getBoolean("performance-mode", true);
+            this.mmapSize = Math.max(0, section.getLong("mmap-size", 64)) * 1024 * 1024;
+            this.cacheSizeKiB = Math.max(0, section.getLong("cache-size", 16)) * 1024;
+            this.statementCacheSize = Math.max(0, section.getInt("statement-cache-size", 32));
+            this.checkpointIntervalNanos = TimeUnit.SECONDS.toNanos(Math.max(0, section.getLong("checkpoint-interval", 300)));
+        }
     }
 
     @Override
     synchronized void close() {
-        if (!connection.isUsing()) {
-            if (connection != null && !connection.isValid()) {
+        DatabaseConnection reading = readConnection;
+        if (reading != null) {
+            waitAndClose(reading);
+            readConnection = null;
+        }
+        if (connection != null) {
+            waitAndClose(connection);
+        }
+    }
+
+    private void waitAndClose(@NotNull DatabaseConnection databaseConnection) {
+        //Wait until the connection is finished
+        while (databaseConnection.isUsing()) {
+            waitForConnection(WAIT_SLICE_NANOS);
+        }
+        // Closing the last connection also checkpoints and removes the WAL file
+        databaseConnection.close();
+    }
+
+
+    @Override
+    @NotNull
+    synchronized DatabaseConnection getConnection() {
+        while (true) {
+            if (this.connection == null) {
+                connection = genConnection();
+            } else if (!this.connection.isUsing() && !connection.isValid()) {
                 connection.close();
+                connection = genConnection();
             }
-        } else {
-            //Wait until the connection is finished
-            waitForConnection();
-            close();
+            // If we have a current connection, fetch it
+            if (this.connection.tryMarkUsing()) {
+                return this.connection;
+            }
+            //If all connection is unusable, wait a moment
+            waitForConnection(WAIT_SLICE_NANOS);
         }
     }
 
-
     @Override
-    synchronized protected DatabaseConnection getConnection0() {
+    @NotNull
+    DatabaseConnection getReadConnection() {
+        if (!performanceMode) {
+            return getConnection();
+        }
+        // Make sure the database file and WAL mode are ready
         if (this.connection == null) {
-            return connection = genConnection();
+            getConnection().release();
         }
-        // If we have a current connection, fetch it
-        if (!this.connection.isUsing()) {
-            if (connection.isValid()) {
-                return this.connection;
-            } else {
-                connection.close();
-                return connection = genConnection();
+        while (true) {
+            synchronized (readLock) {
+                DatabaseConnection reading = this.readConnection;
+                if (reading == null || (!reading.isUsing() && reading.isClosed())) {
+                    reading = this.readConnection = genReadConnection();
+                }
+                if (reading.tryMarkUsing()) {
+                    return reading;
+                }
             }
+            waitForConnection(WAIT_SLICE_NANOS);
+        }
+    }
+
+    @Override
+    void maintain() {
+        if (!performanceMode || checkpointIntervalNanos <= 0 || System.nanoTime() - lastCheckpoint < checkpointIntervalNanos) {
+            return;
+        }
+        lastCheckpoint = System.nanoTime();
+        DatabaseConnection databaseConnection = getConnection();
+        try (Statement statement = databaseConnection.get().createStatement()) {
+            // Passive, never wait the readers
+            statement.execute("PRAGMA wal_checkpoint(PASSIVE)");
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to checkpoint the SQLite WAL file", e);
+        } finally {
+            databaseConnection.release();
+        }
+    }
+
+    /**
+     * Copy the database file with the committed changes still in the WAL file
+     * <p>
+     * The writing connection is held while copying, so no commit can slip in between the checkpoint and the copy.
+     *
+     * @param target The backup file
+     * @throws SQLException Failed to checkpoint
+     * @throws IOException  Failed to copy
+     */
+    public void backup(@NotNull File target) throws SQLException, IOException {
+        DatabaseConnection databaseConnection = getConnection();
+        try {
+            boolean busy;
+            try (Statement statement = databaseConnection.get().createStatement();
+                 ResultSet result = statement.executeQuery("PRAGMA wal_checkpoint(TRUNCATE)")) {
+                // The first column is 1 if a reader blocked the checkpoint to complete
+                busy = result.next() && result.getInt(1) != 0;
+            }
+            Files.copy(dbFile.toPath(), target.toPath());
+            File walFile = new File(dbFile.getPath() + "-wal");
+            if (busy && walFile.exists()) {
+                // SQLite picks the WAL file next to the backup up when it opened
+                Files.copy(walFile.toPath(), new File(target.getPath() + "-wal").toPath());
+            }
+        } finally {
+            databaseConnection.release();
         }
-        //If all connection is unusable, wait a moment
-        waitForConnection();
-        return getConnection0();
     }
 
     @Nullable
@@ -79,7 +195,11 @@ public class SQLiteCore extends AbstractDatabaseCore {
         if (this.dbFile.exists()) {
             try {
                 Class.forName("org.sqlite.JDBC");
-                this.connection = new DatabaseConnection(this, DriverManager.getConnection("jdbc:sqlite:" + this.dbFile));
+                Connection jdbcConnection = DriverManager.getConnection("jdbc:sqlite:" + this.dbFile);
+                if (performanceMode) {
+                    applyPragmas(jdbcConnection, true);
+                }
+                this.connection = new DatabaseConnection(this, jdbcConnection, performanceMode ? statementCacheSize : 0);
                 return this.connection;
             } catch (ClassNotFoundException e) {
                 throw new IllegalStateException("Sqlite driver is not found", e);
@@ -101,6 +221,38 @@ public class SQLiteCore extends AbstractDatabaseCore {
         }
     }
 
+    @NotNull
+    private DatabaseConnection genReadConnection() {
+        try {
+            Class.forName("org.sqlite.JDBC");
+            Properties properties = new Properties();
+            properties.setProperty("open_mode", OPEN_MODE_READ_ONLY);
+            Connection jdbcConnection = DriverManager.getConnection("jdbc:sqlite:" + this.dbFile, properties);
+            applyPragmas(jdbcConnection, false);
+            return new DatabaseConnection(this, jdbcConnection);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Sqlite driver is not found", e);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Start sqlite read-only database connection failed", e);
+        }
+    }
+
+    private void applyPragmas(@NotNull Connection jdbcConnection, boolean writer) throws SQLException {
+        try (Statement statement = jdbcConnection.createStatement()) {
+            if (writer) {
+                // The journal mode is persistent in database file, readers will follow it
+                statement.execute("PRAGMA journal_mode=WAL");
+                // Safe in WAL mode, only the last commits may roll back on power loss
+                statement.execute("PRAGMA synchronous=NORMAL");
+            }
+            statement.execute("PRAGMA mmap_size=" + mmapSize);
+            if (cacheSizeKiB > 0) {
+                // Negative value means KiB instead of pages
+                statement.execute("PRAGMA cache_size=-" + cacheSizeKiB);
+            }
+        }
+    }
+
     @Override
     public @NotNull String getName() {
         return "BuiltIn-SQLite";
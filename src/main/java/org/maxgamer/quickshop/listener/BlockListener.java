@@ -200,6 +200,36 @@ public class BlockListener extends ProtectionListenerBase {
         }
     }
 
+    /*
+     * Refresh the known sign positions of the shops around the changed block
+     */
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onSignChanged(SignChangeEvent event) {
+        invalidateSignsAround(event.getBlock());
+    }
+
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onPlaceAround(BlockPlaceEvent event) {
+        invalidateSignsAround(event.getBlock());
+    }
+
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onBreakAround(BlockBreakEvent event) {
+        invalidateSignsAround(event.getBlock());
+    }
+
+    private void invalidateSignsAround(@NotNull Block block) {
+        if (!plugin.getShopManager().mightBeShopBlock(block.getLocation())) {
+            return;
+        }
+        for (BlockFace face : Util.getVerticalFacing()) {
+            Shop shop = plugin.getShopManager().getShop(block.getRelative(face).getLocation(), true);
+            if (shop != null) {
+                shop.invalidateSignCache();
+            }
+        }
+    }
+
     /*
      * Listens for chest placement, so a doublechest shop can't be created.
      */
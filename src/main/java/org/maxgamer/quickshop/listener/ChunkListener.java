@@ -41,6 +41,8 @@ public class ChunkListener extends QSListener {
         if (e.isNewChunk()) {
             return;
         }
+        plugin.getShopManager().markChunkLoaded(e.getChunk());
+        // The dormant shops in this chunk will be materialized here
         final Map<Location, Shop> inChunk = plugin.getShopManager().getShops(e.getChunk());
         if (inChunk == null) {
             return;
@@ -55,7 +57,7 @@ public class ChunkListener extends QSListener {
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onChunkUnload(ChunkUnloadEvent e) {
         final Map<Location, Shop> inChunk = plugin.getShopManager().getShops(e.getChunk());
-        if (inChunk == null) {
+        if (inChunk == null || inChunk.isEmpty()) {
             return;
         }
         for (Shop shop : inChunk.values()) {
@@ -63,5 +65,6 @@ public class ChunkListener extends QSListener {
                 shop.onUnload();
             }
         }
+        plugin.getShopManager().markChunkUnloaded(e.getChunk());
     }
 }
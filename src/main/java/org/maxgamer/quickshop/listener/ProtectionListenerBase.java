@@ -50,6 +50,10 @@ public class ProtectionListenerBase extends QSListener {
     @SuppressWarnings("SpellCheckingInspection")
     @Nullable
     public Shop getShopRedstone(@NotNull Location location, boolean includeAttached) {
+        // Most of redstone and nature blocks are not shops, reject them before touching the cache
+        if (!plugin.getShopManager().mightBeShopBlock(location)) {
+            return null;
+        }
         if (cache != null) {
             return cache.getCaching(location, includeAttached);
         } else {
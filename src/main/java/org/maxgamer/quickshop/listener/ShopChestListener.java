@@ -18,83 +18,85 @@
  */
 
 package org.maxgamer.quickshop.listener;
-//
-//import lombok.AllArgsConstructor;
-//import org.bukkit.entity.Player;
-//import org.bukkit.event.Event;
-//import org.bukkit.event.EventHandler;
-//import org.bukkit.event.Listener;
-//import org.bukkit.event.inventory.InventoryClickEvent;
-//import org.bukkit.event.inventory.InventoryDragEvent;
-//import org.bukkit.event.inventory.InventoryMoveItemEvent;
-//import org.bukkit.event.inventory.InventoryType;
-//import org.bukkit.inventory.Inventory;
-//import org.jetbrains.annotations.Nullable;
-//import org.maxgamer.quickshop.QuickShop;
-//import org.maxgamer.quickshop.shop.Shop;
-//
-//@AllArgsConstructor
-//public class ShopChestListener implements Listener {
-//    @EventHandler(ignoreCancelled = true)
-//    public void onClick(InventoryClickEvent e){
-//        Inventory inventory = e.getClickedInventory();
-//        if(inventory == null){
-//            return;
-//        }
-//        if(!(e.getWhoClicked() instanceof Player)){
-//            return;
-//        }
-//        if(e.getCurrentItem() == null){
-//            return;
-//        }
-//        if (e.getCursor() == null) {
-//            return;
-//        }
-//        if (e.getSlotType() == InventoryType.SlotType.QUICKBAR) {
-//            return;
-//        }
-//        Shop shop = getShop(inventory);
-//        if (shop == null){
-//            return;
-//        }
-////        if(!shop.matches(e.getCursor())){
-////            e.setCancelled(true);
-////            e.setResult(Event.Result.DENY);
-////            return;
-////        }
-////        if(!shop.matches(e.getCurrentItem())){
-////            e.setCancelled(true);
-////            e.setResult(Event.Result.DENY);
-////            return;
-////        }
-////        if(!shop.matches(e.getCursor())){
-////            e.setCancelled(true);
-////            e.setResult(Event.Result.DENY);
-////            return;
-////        }
-//
-//    }
-//    @EventHandler(ignoreCancelled = true)
-//    public void onDrag(InventoryMoveItemEvent e){
-//        if(getShop(e.getDestination()) != null){
-//            e.setCancelled(true);
-//        }
-//    }
-//    @EventHandler(ignoreCancelled = true)
-//    public void onDrag(InventoryDragEvent e){
-//        if(getShop(e.getInventory()) != null){
-//            e.setCancelled(true);
-//            e.setResult(Event.Result.DENY);
-//        }
-//    }
-//    @Nullable
-//    private Shop getShop(@Nullable Inventory inventory){
-//        if(inventory == null){
-//            return null;
-//        }
-//        if(inventory.getLocation() == null){
-//            return null;
-//        }
-//        return QuickShop.instance.getShopManager().getShopIncludeAttached(inventory.getLocation(),true);
-//    }
-//}
+
+import org.bukkit.Location;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
+import org.bukkit.event.inventory.InventoryMoveItemEvent;
+import org.bukkit.inventory.Inventory;
+import org.jetbrains.annotations.Nullable;
+import org.maxgamer.quickshop.QuickShop;
+import org.maxgamer.quickshop.shop.Shop;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Keeps the cached stock and space of shops correct when their containers changed by players or hoppers.
+ * <p>
+ * Those events fire before the items actually moved, so the shops will be invalidated again at next tick,
+ * a recount happened between them won't be trusted for long.
+ */
+public class ShopChestListener extends QSListener {
+    /* Main thread only, identity based because shop's hashCode changes with its data */
+    private final Set<Shop> pendingShops = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private boolean flushScheduled = false;
+
+    public ShopChestListener(QuickShop plugin) {
+        super(plugin);
+    }
+
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onInventoryMove(InventoryMoveItemEvent event) {
+        invalidate(event.getSource());
+        invalidate(event.getDestination());
+    }
+
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onInventoryClick(InventoryClickEvent event) {
+        // Top inventory, shift click from player inventory changes it too
+        invalidate(event.getInventory());
+    }
+
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onInventoryDrag(InventoryDragEvent event) {
+        invalidate(event.getInventory());
+    }
+
+    @EventHandler(priority = EventPriority.HIGHEST)
+    public void onInventoryClose(InventoryCloseEvent event) {
+        invalidate(event.getInventory());
+    }
+
+    private void invalidate(@Nullable Inventory inventory) {
+        if (inventory == null) {
+            return;
+        }
+        Location location = inventory.getLocation();
+        if (location == null) {
+            return;
+        }
+        Shop shop = plugin.getShopManager().getShopIncludeAttached(location);
+        if (shop == null) {
+            return;
+        }
+        shop.invalidateStockCache();
+        if (pendingShops.add(shop) && !flushScheduled) {
+            flushScheduled = true;
+            plugin.getServer().getScheduler().runTask(plugin, this::flush);
+        }
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        for (Shop shop : pendingShops) {
+            shop.invalidateStockCache();
+        }
+        pendingShops.clear();
+    }
+}
@@ -76,7 +76,7 @@ public class ShopProtectionListener extends ProtectionListenerBase {
         }
         Util.debugLog("QuickShop is scanning all worlds settings about disableHopperMoveEvents disabled worlds");
         plugin.getServer().getWorlds().forEach(world -> {
-            if (plugin.getShopManager().getShopsInWorld(world).isEmpty()) {
+            if (plugin.getShopManager().getShopCount(world.getName()) == 0) {
                 return;
             }
             try {
@@ -31,8 +31,6 @@ import org.maxgamer.quickshop.shop.Shop;
 import org.maxgamer.quickshop.shop.ShopChunk;
 
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class WorldListener extends QSListener {
 
@@ -51,32 +49,20 @@ public class WorldListener extends QSListener {
         final World world = e.getWorld();
 
         plugin.getShopLoader().loadShops(world.getName());
-        // New world data
-        final Map<ShopChunk, Map<Location, Shop>> inWorld = new ConcurrentHashMap<>(1);
         // Old world data
         final Map<ShopChunk, Map<Location, Shop>> oldInWorld =
-                plugin.getShopManager().getShops(world.getName());
+                plugin.getShopManager().getMaterializedShops(world.getName());
         // Nothing in the old world, therefore we don't care. No locations to
         // update.
         if (oldInWorld == null) {
             return;
         }
-
-        for (Entry<ShopChunk, Map<Location, Shop>> oldInChunk : oldInWorld.entrySet()) {
-            final Map<Location, Shop> inChunk = new ConcurrentHashMap<>(1);
-            // Put the new chunk were the old chunk was
-            inWorld.put(oldInChunk.getKey(), inChunk);
-
-            for (Entry<Location, Shop> entry : oldInChunk.getValue().entrySet()) {
-                final Shop shop = entry.getValue();
-
+        // The shop index is keyed by world name and block coordinates, only the locations need the new world
+        for (Map<Location, Shop> oldInChunk : oldInWorld.values()) {
+            for (final Shop shop : oldInChunk.values()) {
                 shop.getLocation().setWorld(world);
-                inChunk.put(shop.getLocation(), shop);
             }
         }
-        // Done - Now we can store the new world dataz!
-
-        plugin.getShopManager().getShops().put(world.getName(), inWorld);
         // This is a workaround, because I don't get parsed chunk events when a
         // world first loads....
         // So manually tell all of these shops they're loaded.
@@ -21,6 +21,7 @@ package org.maxgamer.quickshop.shop;
 
 import com.lishid.openinv.OpenInv;
 import io.papermc.lib.PaperLib;
+import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
 import org.bukkit.*;
 import org.bukkit.block.Block;
@@ -32,6 +33,7 @@ import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.enchantments.Enchantment;
 import org.bukkit.entity.Player;
+import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
@@ -45,6 +47,11 @@ import org.maxgamer.quickshop.event.*;
 import org.maxgamer.quickshop.util.MsgUtil;
 import org.maxgamer.quickshop.util.PriceLimiter;
 import org.maxgamer.quickshop.util.Util;
+import org.maxgamer.quickshop.util.matcher.item.ItemFingerprint;
+import org.maxgamer.quickshop.util.matcher.item.ItemMatcher;
+import org.maxgamer.quickshop.util.matcher.item.ItemScanResult;
+import org.maxgamer.quickshop.watcher.ShopSaveWatcher;
+import org.maxgamer.quickshop.watcher.SignUpdateWatcher;
 
 import java.util.*;
 import java.util.logging.Level;
@@ -88,6 +95,21 @@ public class ContainerShop implements Shop {
     private volatile boolean isDisplayItemChanged = false;
     @EqualsAndHashCode.Exclude
     private volatile boolean dirty;
+    /* Cached result of countItems/countSpace, -1 means need recount */
+    @EqualsAndHashCode.Exclude
+    private volatile int cachedStock = -1;
+    @EqualsAndHashCode.Exclude
+    private volatile int cachedSpace = -1;
+    @EqualsAndHashCode.Exclude
+    @Nullable
+    private volatile ItemFingerprint itemFingerprint;
+    @EqualsAndHashCode.Exclude
+    @Nullable
+    private volatile RenderedSignText renderedSignText;
+    /* The faces of attached signs, null means unknown and need a scan (never cached empty, signs may appear without events) */
+    @EqualsAndHashCode.Exclude
+    @Nullable
+    private volatile BlockFace[] signFaces;
 
 
     @SuppressWarnings("CopyConstructorMissesField")
@@ -202,6 +224,7 @@ public class ContainerShop implements Shop {
             Objects.requireNonNull(inv).addItem(item);
             remains -= stackSize;
         }
+        invalidateStockCache();
         this.setSignText();
     }
 
@@ -212,6 +235,7 @@ public class ContainerShop implements Shop {
         boolean result = this.moderator.addStaff(player);
         update();
         if (result) {
+            plugin.getShopManager().reindexModerator(this, getOwner(), Collections.emptyList());
             Util.mainThreadRun(() -> plugin.getServer().getPluginManager()
                     .callEvent(new ShopModeratorChangedEvent(this, this.moderator)));
         }
@@ -235,17 +259,14 @@ public class ContainerShop implements Shop {
             this.sell(buyer, buyerInventory, loc2Drop, -amount);
         }
         ItemStack[] contents = buyerInventory.getContents();
+        // Only walk the matched slots
+        int[] slots = plugin.getItemMatcher().scan(getItemFingerprint(), contents).getSlots();
         if (this.isUnlimited()) {
-            for (int i = 0; amount > 0 && i < contents.length; i++) {
-                ItemStack stack = contents[i];
-                if (stack == null || stack.getType() == Material.AIR) {
-                    continue; // No item
-                }
-                if (matches(stack)) {
-                    int stackSize = Math.min(amount, stack.getAmount());
-                    stack.setAmount(stack.getAmount() - stackSize);
-                    amount -= stackSize;
-                }
+            for (int i = 0; amount > 0 && i < slots.length; i++) {
+                ItemStack stack = contents[slots[i]];
+                int stackSize = Math.min(amount, stack.getAmount());
+                stack.setAmount(stack.getAmount() - stackSize);
+                amount -= stackSize;
             }
             // Send the players new inventory to them
             buyerInventory.setContents(contents);
@@ -264,27 +285,25 @@ public class ContainerShop implements Shop {
             }
         } else {
             Inventory chestInv = this.getInventory();
-            for (int i = 0; amount > 0 && i < contents.length; i++) {
-                ItemStack item = contents[i];
-                if (item != null && this.matches(item)) {
-                    // Copy it, we don't want to interfere
-                    item = item.clone();
-                    // Amount = total, item.getAmount() = how many items in the
-                    // stack
-                    int stackSize = Math.min(amount, item.getAmount());
-                    // If Amount is item.getAmount(), then this sets the amount
-                    // to 0
-                    // Else it sets it to the remainder
-                    contents[i].setAmount(contents[i].getAmount() - stackSize);
-                    // We can modify this, it is a copy.
-                    item.setAmount(stackSize);
-                    // Add the items to the players inventory
-                    Objects.requireNonNull(chestInv).addItem(item);
-                    amount -= stackSize;
-                }
+            for (int i = 0; amount > 0 && i < slots.length; i++) {
+                // Copy it, we don't want to interfere
+                ItemStack item = contents[slots[i]].clone();
+                // Amount = total, item.getAmount() = how many items in the
+                // stack
+                int stackSize = Math.min(amount, item.getAmount());
+                // If Amount is item.getAmount(), then this sets the amount
+                // to 0
+                // Else it sets it to the remainder
+                contents[slots[i]].setAmount(contents[slots[i]].getAmount() - stackSize);
+                // We can modify this, it is a copy.
+                item.setAmount(stackSize);
+                // Add the items to the players inventory
+                Objects.requireNonNull(chestInv).addItem(item);
+                amount -= stackSize;
             }
             // Now update the players inventory.
             buyerInventory.setContents(contents);
+            invalidateStockCache();
 
             //Update sign
             this.setSignText();
@@ -344,7 +363,9 @@ public class ContainerShop implements Shop {
     @Override
     public void clearStaffs() {
         setDirty();
+        List<UUID> previousStaffs = new ArrayList<>(this.moderator.getStaffs());
         this.moderator.clearStaffs();
+        plugin.getShopManager().reindexModerator(this, getOwner(), previousStaffs);
         Util.mainThreadRun(() -> plugin.getServer().getPluginManager()
                 .callEvent(new ShopModeratorChangedEvent(this, this.moderator)));
         update();
@@ -357,6 +378,7 @@ public class ContainerShop implements Shop {
         boolean result = this.moderator.delStaff(player);
         update();
         if (result) {
+            plugin.getShopManager().reindexModerator(this, getOwner(), Collections.singletonList(player));
             Util.mainThreadRun(() -> plugin.getServer().getPluginManager().callEvent(new ShopModeratorChangedEvent(this, this.moderator)));
         }
         return result;
@@ -431,7 +453,22 @@ public class ContainerShop implements Shop {
      */
     @Override
     public boolean matches(@Nullable ItemStack item) {
-        return plugin.getItemMatcher().matches(this.item, item);
+        return plugin.getItemMatcher().matches(getItemFingerprint(), item);
+    }
+
+    /**
+     * Gets the fingerprint of shop item, it will be recomputed after item changed or matcher changed
+     *
+     * @return The fingerprint
+     */
+    public @NotNull ItemFingerprint getItemFingerprint() {
+        ItemFingerprint fingerprint = this.itemFingerprint;
+        ItemMatcher matcher = plugin.getItemMatcher();
+        if (fingerprint == null || fingerprint.getPrototype() != this.item || fingerprint.getMatcher() != matcher) {
+            fingerprint = matcher.fingerprint(this.item);
+            this.itemFingerprint = fingerprint;
+        }
+        return fingerprint;
     }
 
     @Override
@@ -472,6 +509,10 @@ public class ContainerShop implements Shop {
         update();
         this.isLoaded = false;
         plugin.getShopManager().getLoadedShops().remove(this);
+        SignUpdateWatcher signUpdateWatcher = plugin.getSignUpdateWatcher();
+        if (signUpdateWatcher != null) {
+            signUpdateWatcher.forget(this);
+        }
         ShopUnloadEvent shopUnloadEvent = new ShopUnloadEvent(this);
         plugin.getServer().getPluginManager().callEvent(shopUnloadEvent);
     }
@@ -520,6 +561,7 @@ public class ContainerShop implements Shop {
             Objects.requireNonNull(inv).removeItem(item);
             remains -= stackSize;
         }
+        invalidateStockCache();
         this.setSignText();
     }
 
@@ -552,28 +594,27 @@ public class ContainerShop implements Shop {
             }
         } else {
             ItemStack[] chestContents = Objects.requireNonNull(this.getInventory()).getContents();
-            for (int i = 0; amount > 0 && i < chestContents.length; i++) {
-                // Can't clone it here, it could be null
-                ItemStack item = chestContents[i];
-                if (item != null && item.getType() != Material.AIR && this.matches(item)) {
-                    // Copy it, we don't want to interfere
-                    item = item.clone();
-                    // Amount = total, item.getAmount() = how many items in the
-                    // stack
-                    int stackSize = Math.min(amount, item.getAmount());
-                    // If Amount is item.getAmount(), then this sets the amount
-                    // to 0
-                    // Else it sets it to the remainder
-                    chestContents[i].setAmount(chestContents[i].getAmount() - stackSize);
-                    // We can modify this, it is a copy.
-                    item.setAmount(stackSize);
-                    // Add the items to the players inventory
-                    floor.addAll(sellerInventory.addItem(item).values());
-                    amount -= stackSize;
-                }
+            // Only walk the matched slots
+            int[] slots = plugin.getItemMatcher().scan(getItemFingerprint(), chestContents).getSlots();
+            for (int i = 0; amount > 0 && i < slots.length; i++) {
+                // Copy it, we don't want to interfere
+                ItemStack item = chestContents[slots[i]].clone();
+                // Amount = total, item.getAmount() = how many items in the
+                // stack
+                int stackSize = Math.min(amount, item.getAmount());
+                // If Amount is item.getAmount(), then this sets the amount
+                // to 0
+                // Else it sets it to the remainder
+                chestContents[slots[i]].setAmount(chestContents[slots[i]].getAmount() - stackSize);
+                // We can modify this, it is a copy.
+                item.setAmount(stackSize);
+                // Add the items to the players inventory
+                floor.addAll(sellerInventory.addItem(item).values());
+                amount -= stackSize;
             }
             // We now have to update the chests inventory manually.
             this.getInventory().setContents(chestContents);
+            invalidateStockCache();
             //Update sign
             this.setSignText();
             if (attachedShop != null) {
@@ -603,6 +644,29 @@ public class ContainerShop implements Shop {
     @Override
     public String[] getSignText() {
         Util.ensureThread(false);
+        int shopRemaining;
+        switch (shopType) {
+            case BUYING:
+                shopRemaining = getRemainingSpace();
+                break;
+            case SELLING:
+                shopRemaining = getRemainingStock();
+                break;
+            default:
+                shopRemaining = 0;
+        }
+        // Owner lookup, placeholders, item name and price format are expensive, only render again when the shown state changed
+        SignTextKey key = new SignTextKey(this.getOwner(), this.unlimited, this.shopType, this.item.getAmount(), shopRemaining,
+                this.price, this.getCurrency(), getItemFingerprint(), plugin.getShopManager().getSignTextGeneration());
+        RenderedSignText rendered = this.renderedSignText;
+        if (rendered == null || !rendered.key.equals(key)) {
+            rendered = new RenderedSignText(key, renderSignText(shopRemaining));
+            this.renderedSignText = rendered;
+        }
+        return rendered.lines.clone();
+    }
+
+    private String[] renderSignText(int shopRemaining) {
         String[] lines = new String[4];
 
         //Line 1
@@ -613,21 +677,17 @@ public class ContainerShop implements Shop {
         //Line 2
         String tradingStringKey;
         String noRemainingStringKey;
-        int shopRemaining;
 
         switch (shopType) {
             case BUYING:
-                shopRemaining = getRemainingSpace();
                 tradingStringKey = isStackingShop() ? "signs.stack-buying" : "signs.buying";
                 noRemainingStringKey = "signs.out-of-space";
                 break;
             case SELLING:
-                shopRemaining = getRemainingStock();
                 tradingStringKey = isStackingShop() ? "signs.stack-selling" : "signs.selling";
                 noRemainingStringKey = "signs.out-of-stock";
                 break;
             default:
-                shopRemaining = 0;
                 tradingStringKey = "MissingKey for shop type:" + shopType;
                 noRemainingStringKey = "MissingKey for shop type:" + shopType;
         }
@@ -703,6 +763,11 @@ public class ContainerShop implements Shop {
         if (!Util.isLoaded(this.location)) {
             return;
         }
+        SignUpdateWatcher signUpdateWatcher = plugin.getSignUpdateWatcher();
+        if (signUpdateWatcher != null && signUpdateWatcher.deferIfUnseen(this)) {
+            // Nobody can see it, render it when the chunk sent to a player
+            return;
+        }
         this.setSignText(getSignText());
     }
 
@@ -713,7 +778,6 @@ public class ContainerShop implements Shop {
      */
     @Override
     public void update() {
-        //TODO: check isDirty()
         Util.ensureThread(false);
         if (updating) {
             return;
@@ -723,6 +787,24 @@ public class ContainerShop implements Shop {
             Util.debugLog("The Shop update action was canceled by a plugin.");
             return;
         }
+        this.dirty = true;
+        ShopSaveWatcher shopSaveWatcher = plugin.getShopSaveWatcher();
+        if (shopSaveWatcher == null) {
+            save();
+        } else {
+            // Many changes in an interval will be saved as one row
+            shopSaveWatcher.scheduleSave(this);
+        }
+    }
+
+    /**
+     * Write the shop into database right now, {@link #update()} will call it at next save interval.
+     */
+    public void save() {
+        Util.ensureThread(false);
+        if (updating) {
+            return;
+        }
         updating = true;
         int x = this.getLocation().getBlockX();
         int y = this.getLocation().getBlockY();
@@ -775,6 +857,8 @@ public class ContainerShop implements Shop {
             return;
         }
         this.item = item;
+        invalidateStockCache();
+        plugin.getShopManager().getSearchEngine().updateItem(this);
         notifyDisplayItemChange();
         update();
         refresh();
@@ -828,6 +912,9 @@ public class ContainerShop implements Shop {
         if (Util.fireCancellableEvent(shopLoadEvent)) {
             return;
         }
+        // The chest and signs may changed while it unloaded
+        invalidateStockCache();
+        invalidateSignCache();
         this.isLoaded = true;
         //Shop manger done this already
         //plugin.getShopManager().loadShop(this.getLocation().getWorld().getName(), this);
@@ -880,7 +967,9 @@ public class ContainerShop implements Shop {
     public void setModerator(@NotNull ShopModerator shopModerator) {
         Util.ensureThread(false);
         setDirty();
+        ShopModerator previous = this.moderator;
         this.moderator = shopModerator;
+        plugin.getShopManager().reindexModerator(this, previous.getOwner(), previous.getStaffs());
         update();
         plugin.getServer().getPluginManager().callEvent(new ShopModeratorChangedEvent(this, this.moderator));
     }
@@ -901,7 +990,9 @@ public class ContainerShop implements Shop {
     @Override
     public void setOwner(@NotNull UUID owner) {
         Util.ensureThread(false);
+        UUID previousOwner = this.moderator.getOwner();
         this.moderator.setOwner(owner);
+        plugin.getShopManager().reindexModerator(this, previousOwner, this.moderator.getStaffs());
         setSignText();
         update();
         plugin.getServer().getPluginManager().callEvent(new ShopModeratorChangedEvent(this, this.moderator));
@@ -945,7 +1036,11 @@ public class ContainerShop implements Shop {
         if (this.unlimited) {
             return -1;
         }
-        return Util.countSpace(this.getInventory(), this.getItem());
+        int space = this.cachedSpace;
+        if (space == -1) {
+            space = scanInventory()[1];
+        }
+        return space;
     }
 
     /**
@@ -959,7 +1054,51 @@ public class ContainerShop implements Shop {
         if (this.unlimited) {
             return -1;
         }
-        return Util.countItems(this.getInventory(), this.getItem());
+        int stock = this.cachedStock;
+        if (stock == -1) {
+            stock = scanInventory()[0];
+        }
+        return stock;
+    }
+
+    /**
+     * Count stock and space in one pass and cache them, sign text needs both of them
+     *
+     * @return {stock, space}
+     */
+    private int[] scanInventory() {
+        Inventory inventory = this.getInventory();
+        if (inventory == null) {
+            return new int[]{0, 0};
+        }
+        ItemScanResult result = plugin.getItemMatcher().scan(getItemFingerprint(), inventory.getStorageContents());
+        int stock = result.getTotalAmount() / this.item.getAmount();
+        int space = result.getFreeSpace() / this.item.getAmount();
+        if (isStockCacheable(inventory)) {
+            this.cachedStock = stock;
+            this.cachedSpace = space;
+        }
+        return new int[]{stock, space};
+    }
+
+    private boolean isStockCacheable(@Nullable Inventory inventory) {
+        // Can't see the changes of OpenInv ender chest from this location
+        return inventory != null && inventory.getType() != InventoryType.ENDER_CHEST;
+    }
+
+    /**
+     * Drop the cached stock and space, they will be recounted at next query.
+     * The attached shop shares the same inventory so it will be invalidated too.
+     */
+    @Override
+    public void invalidateStockCache() {
+        this.cachedStock = -1;
+        this.cachedSpace = -1;
+        ContainerShop attached = this.attachedShop;
+        if (attached != null) {
+            attached.cachedStock = -1;
+            attached.cachedSpace = -1;
+        }
     }
 
     @Override
@@ -997,20 +1136,55 @@ public class ContainerShop implements Shop {
     @Override
     public @NotNull List<Sign> getSigns() {
         Util.ensureThread(false);
-        List<Sign> signs = new ArrayList<>(4);
         if (this.getLocation().getWorld() == null) {
             return Collections.emptyList();
         }
-        Block[] blocks = new Block[4];
-        blocks[0] = location.getBlock().getRelative(BlockFace.EAST);
-        blocks[1] = location.getBlock().getRelative(BlockFace.NORTH);
-        blocks[2] = location.getBlock().getRelative(BlockFace.SOUTH);
-        blocks[3] = location.getBlock().getRelative(BlockFace.WEST);
-        for (Block b : blocks) {
-            if (b == null) {
-                continue;
+        BlockFace[] faces = this.signFaces;
+        if (faces != null) {
+            List<Sign> signs = getKnownSigns(faces);
+            if (signs != null) {
+                return signs;
+            }
+        }
+        return scanSigns();
+    }
+
+    /**
+     * Gets the signs at the known positions
+     *
+     * @param faces The faces of known signs
+     * @return The signs, null if any of them is gone, detached or no longer a shop sign
+     */
+    @Nullable
+    private List<Sign> getKnownSigns(@NotNull BlockFace[] faces) {
+        List<Sign> signs = new ArrayList<>(faces.length);
+        Block shopBlock = location.getBlock();
+        for (BlockFace face : faces) {
+            Block b = shopBlock.getRelative(face);
+            // Check the type first, it is much cheaper than the state snapshot
+            if (!Util.isWallSign(b.getType())) {
+                return null;
+            }
+            // Another plugin may have replaced or rewritten the sign without any event
+            if (!isAttached(b)) {
+                return null;
             }
+            BlockState state = PaperLib.getBlockState(b, false).getState();
+            if (!(state instanceof Sign) || !isShopSign(((Sign) state).getLines())) {
+                return null;
+            }
+            signs.add((Sign) state);
+        }
+        return signs;
+    }
 
+    @NotNull
+    private List<Sign> scanSigns() {
+        List<Sign> signs = new ArrayList<>(4);
+        List<BlockFace> faces = new ArrayList<>(4);
+        Block shopBlock = location.getBlock();
+        for (BlockFace face : Util.getVerticalFacing()) {
+            Block b = shopBlock.getRelative(face);
             BlockState state = PaperLib.getBlockState(b, false).getState();
             if (!(state instanceof Sign)) {
                 continue;
@@ -1019,37 +1193,44 @@ public class ContainerShop implements Shop {
                 continue;
             }
             Sign sign = (Sign) state;
-            String[] lines = sign.getLines();
-            if (lines[0].isEmpty() && lines[1].isEmpty() && lines[2].isEmpty() && lines[3].isEmpty()) {
-                signs.add(sign); //NEW SIGN
-                continue;
-            }
-
-            if (lines[1].startsWith(shopSignPattern)) {
+            if (isShopSign(sign.getLines())) {
                 signs.add(sign);
-            } else {
-                String header = lines[0];
-                String adminShopHeader = MsgUtil.getMessage("signs.header", null, MsgUtil.getMessage("admin-shop", null));
-                String signHeaderUsername = MsgUtil.getMessage("signs.header", null, this.ownerName(true));
-                if (header.contains(adminShopHeader) || header.contains(signHeaderUsername)) {
-                    signs.add(sign);
-                    //TEXT SIGN
-                    //continue
-                } else {
-                    adminShopHeader = MsgUtil.getMessage("signs.header", null, MsgUtil.getMessage("admin-shop", null), "");
-                    signHeaderUsername = MsgUtil.getMessage("signs.header", null, this.ownerName(true), "");
-                    adminShopHeader = ChatColor.stripColor(adminShopHeader).trim();
-                    signHeaderUsername = ChatColor.stripColor(signHeaderUsername).trim();
-                    if (header.contains(adminShopHeader) || header.contains(signHeaderUsername)) {
-                        signs.add(sign);
-                    }
-                }
+                faces.add(face);
             }
         }
-
+        // Don't remember no signs, a sign placed by WorldEdit or other plugins fires no event to invalidate it
+        this.signFaces = faces.isEmpty() ? null : faces.toArray(new BlockFace[0]);
         return signs;
     }
 
+    private boolean isShopSign(@NotNull String[] lines) {
+        if (lines[0].isEmpty() && lines[1].isEmpty() && lines[2].isEmpty() && lines[3].isEmpty()) {
+            return true; //NEW SIGN
+        }
+        if (lines[1].startsWith(shopSignPattern)) {
+            return true;
+        }
+        String header = lines[0];
+        String adminShopHeader = MsgUtil.getMessage("signs.header", null, MsgUtil.getMessage("admin-shop", null));
+        String signHeaderUsername = MsgUtil.getMessage("signs.header", null, this.ownerName(true));
+        if (header.contains(adminShopHeader) || header.contains(signHeaderUsername)) {
+            return true; //TEXT SIGN
+        }
+        adminShopHeader = MsgUtil.getMessage("signs.header", null, MsgUtil.getMessage("admin-shop", null), "");
+        signHeaderUsername = MsgUtil.getMessage("signs.header", null, this.ownerName(true), "");
+        adminShopHeader = ChatColor.stripColor(adminShopHeader).trim();
+        signHeaderUsername = ChatColor.stripColor(signHeaderUsername).trim();
+        return header.contains(adminShopHeader) || header.contains(signHeaderUsername);
+    }
+
+    /**
+     * Forget the known sign positions, the signs will be scanned again at next query.
+     */
+    @Override
+    public void invalidateSignCache() {
+        this.signFaces = null;
+    }
+
     /**
      * @return The list of players who can manage the shop.
      */
@@ -1462,4 +1643,28 @@ public class ContainerShop implements Shop {
     public ShopInfoStorage saveToInfoStorage() {
         return new ShopInfoStorage(ShopModerator.serialize(getModerator()), getPrice(), Util.serialize(getItem()), isUnlimited() ? 1 : 0, getShopType().toID(), saveExtraToYaml());
     }
+
+    /**
+     * Everything the sign text depends on
+     */
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static class SignTextKey {
+        private final UUID owner;
+        private final boolean unlimited;
+        private final ShopType shopType;
+        private final int itemAmount;
+        private final int remaining;
+        private final double price;
+        private final String currency;
+        /* Compared by identity, a new fingerprint means the item changed */
+        private final ItemFingerprint itemFingerprint;
+        private final long generation;
+    }
+
+    @AllArgsConstructor
+    private static class RenderedSignText {
+        private final SignTextKey key;
+        private final String[] lines;
+    }
 }
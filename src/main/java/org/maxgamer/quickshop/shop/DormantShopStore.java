@@ -0,0 +1,246 @@
+/*
+ * This file is a part of project QuickShop, the name is DormantShopStore.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.maxgamer.quickshop.shop;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.maxgamer.quickshop.util.LongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The shops that not constructed yet, they stay as the raw database rows until their chunk loaded
+ * or someone asks for them.
+ * <p>
+ * Position lookups are lock-free, all mutations are serialized.
+ */
+class DormantShopStore {
+    private final Map<String, LongObjectHashMap<DormantShop>> positions = new ConcurrentHashMap<>();
+
+    private final Map<String, LongObjectHashMap<List<DormantShop>>> chunks = new ConcurrentHashMap<>();
+
+    private final Map<UUID, Set<DormantShop>> owners = new ConcurrentHashMap<>();
+
+    private volatile int size;
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    synchronized int size(@NotNull String world) {
+        LongObjectHashMap<DormantShop> inWorld = positions.get(world);
+        return inWorld == null ? 0 : inWorld.size();
+    }
+
+    /**
+     * Count the dormant shops of the owner
+     *
+     * @param owner            The owner
+     * @param includeUnlimited Whether count the unlimited shops
+     * @return The count
+     */
+    synchronized int countOwned(@NotNull UUID owner, boolean includeUnlimited) {
+        Set<DormantShop> owned = owners.get(owner);
+        if (owned == null) {
+            return 0;
+        }
+        if (includeUnlimited) {
+            return owned.size();
+        }
+        int count = 0;
+        for (DormantShop shop : owned) {
+            if (!shop.getRaw().isUnlimited()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    synchronized void add(@NotNull DormantShop shop) {
+        ShopLoader.ShopRawDatabaseInfo raw = shop.getRaw();
+        DormantShop replaced = positions.computeIfAbsent(raw.getWorld(), k -> new LongObjectHashMap<>())
+                .put(ShopLocationIndex.pack(raw.getX(), raw.getY(), raw.getZ()), shop);
+        if (replaced != null) {
+            unlink(replaced);
+        } else {
+            size++;
+        }
+        LongObjectHashMap<List<DormantShop>> inWorld = chunks.computeIfAbsent(raw.getWorld(), k -> new LongObjectHashMap<>());
+        long key = chunkKey(raw.getX() >> 4, raw.getZ() >> 4);
+        List<DormantShop> inChunk = inWorld.get(key);
+        if (inChunk == null) {
+            inChunk = new ArrayList<>(1);
+            inWorld.put(key, inChunk);
+        }
+        inChunk.add(shop);
+        owners.computeIfAbsent(shop.getModerator().getOwner(), k -> Collections.newSetFromMap(new ConcurrentHashMap<>())).add(shop);
+    }
+
+    /**
+     * Gets the dormant shop on the position, lock-free
+     *
+     * @return The dormant shop, null if there is no dormant shop
+     */
+    @Nullable
+    DormantShop get(@NotNull String world, int x, int y, int z) {
+        LongObjectHashMap<DormantShop> inWorld = positions.get(world);
+        return inWorld == null ? null : inWorld.get(ShopLocationIndex.pack(x, y, z));
+    }
+
+    /**
+     * Check the dormant shop is still in the store, lock-free
+     *
+     * @param shop The dormant shop
+     * @return Still dormant
+     */
+    boolean contains(@NotNull DormantShop shop) {
+        ShopLoader.ShopRawDatabaseInfo raw = shop.getRaw();
+        return get(raw.getWorld(), raw.getX(), raw.getY(), raw.getZ()) == shop;
+    }
+
+    /**
+     * Remove the dormant shop, only if it is still in the store
+     *
+     * @param shop The dormant shop
+     * @return true if removed
+     */
+    synchronized boolean remove(@NotNull DormantShop shop) {
+        ShopLoader.ShopRawDatabaseInfo raw = shop.getRaw();
+        LongObjectHashMap<DormantShop> inWorld = positions.get(raw.getWorld());
+        if (inWorld == null || !inWorld.remove(ShopLocationIndex.pack(raw.getX(), raw.getY(), raw.getZ()), shop)) {
+            return false;
+        }
+        unlink(shop);
+        size--;
+        return true;
+    }
+
+    synchronized boolean hasChunk(@NotNull String world, int chunkX, int chunkZ) {
+        LongObjectHashMap<List<DormantShop>> inWorld = chunks.get(world);
+        return inWorld != null && inWorld.containsKey(chunkKey(chunkX, chunkZ));
+    }
+
+    /*
+     * The lookups below return snapshots, the shops stay in the store until they are removed one by one
+     */
+
+    @NotNull
+    synchronized List<DormantShop> inChunk(@NotNull String world, int chunkX, int chunkZ) {
+        LongObjectHashMap<List<DormantShop>> inWorld = chunks.get(world);
+        if (inWorld == null) {
+            return Collections.emptyList();
+        }
+        List<DormantShop> inChunk = inWorld.get(chunkKey(chunkX, chunkZ));
+        return inChunk == null ? Collections.emptyList() : new ArrayList<>(inChunk);
+    }
+
+    @NotNull
+    synchronized List<DormantShop> inWorld(@NotNull String world) {
+        LongObjectHashMap<DormantShop> inWorld = positions.get(world);
+        return inWorld == null ? Collections.emptyList() : inWorld.values();
+    }
+
+    @NotNull
+    synchronized List<DormantShop> ownedBy(@NotNull UUID owner) {
+        Set<DormantShop> owned = owners.get(owner);
+        return owned == null ? Collections.emptyList() : new ArrayList<>(owned);
+    }
+
+    @NotNull
+    synchronized List<DormantShop> filter(@NotNull Predicate<DormantShop> filter) {
+        List<DormantShop> matched = new ArrayList<>();
+        for (LongObjectHashMap<DormantShop> inWorld : positions.values()) {
+            for (DormantShop shop : inWorld.values()) {
+                if (filter.test(shop)) {
+                    matched.add(shop);
+                }
+            }
+        }
+        return matched;
+    }
+
+    @NotNull
+    List<DormantShop> all() {
+        return filter(shop -> true);
+    }
+
+    synchronized void clear() {
+        positions.clear();
+        chunks.clear();
+        owners.clear();
+        size = 0;
+    }
+
+    private void unlink(@NotNull DormantShop shop) {
+        ShopLoader.ShopRawDatabaseInfo raw = shop.getRaw();
+        LongObjectHashMap<List<DormantShop>> inWorld = chunks.get(raw.getWorld());
+        if (inWorld != null) {
+            long key = chunkKey(raw.getX() >> 4, raw.getZ() >> 4);
+            List<DormantShop> inChunk = inWorld.get(key);
+            if (inChunk != null && inChunk.remove(shop) && inChunk.isEmpty()) {
+                inWorld.remove(key);
+            }
+        }
+        UUID owner = shop.getModerator().getOwner();
+        Set<DormantShop> owned = owners.get(owner);
+        if (owned != null && owned.remove(shop) && owned.isEmpty()) {
+            owners.remove(owner);
+        }
+    }
+
+    /**
+     * A shop kept as its database row, only the moderator parsed for the owner indexes
+     */
+    static class DormantShop {
+        private final ShopLoader.ShopRawDatabaseInfo raw;
+        private final ShopModerator moderator;
+
+        DormantShop(@NotNull ShopLoader.ShopRawDatabaseInfo raw, @NotNull ShopModerator moderator) {
+            this.raw = raw;
+            this.moderator = moderator;
+        }
+
+        @NotNull
+        ShopLoader.ShopRawDatabaseInfo getRaw() {
+            return raw;
+        }
+
+        @NotNull
+        ShopModerator getModerator() {
+            return moderator;
+        }
+    }
+}
@@ -398,6 +398,19 @@ public interface Shop {
      */
     void setDirty();
 
+    /**
+     * Drop the cached stock and space of the shop, call it after changed the shop inventory
+     * without the shop methods (add, remove, buy and sell already did it).
+     */
+    default void invalidateStockCache() {
+    }
+
+    /**
+     * Forget the known positions of the attached signs, call it after the blocks around the shop changed.
+     */
+    default void invalidateSignCache() {
+    }
+
 
     /**
      * Save the plugin extra data to Json format
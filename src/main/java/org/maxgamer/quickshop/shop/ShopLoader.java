@@ -26,16 +26,19 @@ import lombok.Getter;
 import lombok.Setter;
 import org.apache.commons.lang.StringUtils;
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitRunnable;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.maxgamer.quickshop.QuickShop;
 import org.maxgamer.quickshop.database.WarpedResultSet;
+import org.maxgamer.quickshop.util.ItemCodec;
 import org.maxgamer.quickshop.util.JsonUtil;
 import org.maxgamer.quickshop.util.Timer;
 import org.maxgamer.quickshop.util.Util;
@@ -43,8 +46,10 @@ import org.maxgamer.quickshop.util.Util;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,6 +57,10 @@ import java.util.logging.Logger;
  * A class allow plugin load shops fast and simply.
  */
 public class ShopLoader {
+    private static final Future<ShopDatabaseInfo> END_OF_STREAM = CompletableFuture.completedFuture(null);
+    private static final int HANDOFF_QUEUE_CAPACITY = 4096;
+    private static final int PROGRESS_STEP = 10000;
+
     private final List<Long> loadTimes = new ArrayList<>();
 
     private final Map<Timer, Double> timeCostCache = new HashMap<>();
@@ -60,7 +69,11 @@ public class ShopLoader {
     /* This may contains broken shop, must use null check before load it. */
     private final List<Shop> shopsInDatabase = new CopyOnWriteArrayList<>();
     private final List<ShopRawDatabaseInfo> shopRawDatabaseInfoList = new CopyOnWriteArrayList<>();
-    private int errors;
+    private final AtomicInteger errors = new AtomicInteger();
+    @Getter
+    private final ItemFormatStatistics yamlItemStatistics = new ItemFormatStatistics("YAML");
+    @Getter
+    private final ItemFormatStatistics binaryItemStatistics = new ItemFormatStatistics("binary");
     //private final WarningSender warningSender;
 
     /**
@@ -79,6 +92,14 @@ public class ShopLoader {
 
     /**
      * Load all shops in the specified world
+     * <p>
+     * The loading is a pipeline: a reader thread streams the rows and hands them to a ForkJoin pool for
+     * deserialization, the futures are queued in the reading order and the calling (main) thread takes them
+     * to create the shops and put them into memory. Attaching the shops to the world (block checks, onLoad)
+     * is spread over the following ticks under the time budget.
+     * <p>
+     * With lazy loading, the shops in the unloaded chunks only have their moderator deserialized and stay
+     * as raw rows in ShopManager, they will be materialized when their chunk loaded or someone asks for them.
      *
      * @param worldName The world name, null if load all shops
      */
@@ -87,34 +108,65 @@ public class ShopLoader {
         this.plugin.getLogger().info("Fetching shops from the database...If plugin stuck there, check your database connection.");
         int loadAfterChunkLoaded = 0;
         int loadAfterWorldLoaded = 0;
+        int dormant = 0;
         List<Shop> pendingLoadShops = new ArrayList<>();
-        try (WarpedResultSet warpRS = plugin.getDatabaseHelper().selectAllShops(); ResultSet rs = warpRS.getResultSet()) {
-            this.plugin.getLogger().info("Loading shops from the database...");
-            while (rs.next()) {
-                ShopRawDatabaseInfo origin = new ShopRawDatabaseInfo(rs);
-                shopRawDatabaseInfoList.add(origin);
-                if (worldName != null && !origin.getWorld().equals(worldName)) {
+        List<Shop> createdShops = new ArrayList<>();
+        LoadStatistics statistics = new LoadStatistics();
+        BlockingQueue<Future<ShopDatabaseInfo>> handoffQueue = new ArrayBlockingQueue<>(HANDOFF_QUEUE_CAPACITY);
+        ForkJoinPool deserializePool = new ForkJoinPool(getParallelism());
+        Map<String, Set<Long>> loadedChunks = plugin.getShopManager().isLazyLoad() ? getLoadedChunks() : null;
+        Thread readerThread = new Thread(() -> readShops(worldName, loadedChunks, handoffQueue, deserializePool, statistics), "QuickShop-Shop-Reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+        this.plugin.getLogger().info("Loading shops from the database...");
+        long createBegin = System.nanoTime();
+        try {
+            while (true) {
+                Future<ShopDatabaseInfo> future = handoffQueue.take();
+                if (future == END_OF_STREAM) {
+                    break;
+                }
+                ShopDatabaseInfo data;
+                try {
+                    data = future.get();
+                } catch (ExecutionException e) {
+                    exceptionHandler(e, null);
                     continue;
                 }
-                ShopDatabaseInfo data = new ShopDatabaseInfo(origin);
+                ShopRawDatabaseInfo origin = data.getOrigin();
                 //World unloaded and not found
                 if (data.getWorld() == null) {
                     ++loadAfterWorldLoaded;
                     continue;
                 }
-                Shop shop =
-                        new ContainerShop(plugin,
-                                data.getLocation(),
-                                data.getPrice(),
-                                data.getItem(),
-                                data.getModerators(),
-                                data.isUnlimited(),
-                                data.getType(),
-                                data.getExtra());
+                if (data.isDormant()) {
+                    if (data.getModerators() != null && !data.needUpdate.get()) {
+                        plugin.getShopManager().addDormantShop(origin, data.getModerators());
+                        ++dormant;
+                        continue;
+                    }
+                    // The old format rows need to be upgraded, load them now
+                    data = new ShopDatabaseInfo(origin);
+                }
+                Shop shop;
+                try {
+                    shop = new ContainerShop(plugin,
+                            data.getLocation(),
+                            data.getPrice(),
+                            data.getItem(),
+                            data.getModerators(),
+                            data.isUnlimited(),
+                            data.getType(),
+                            data.getExtra());
+                } catch (Exception e) {
+                    Util.debugLog("Trouble database loading debug: " + data);
+                    exceptionHandler(e, data.getLocation());
+                    continue;
+                }
                 if (data.needUpdate.get()) {
                     shop.setDirty();
                 }
-                shopsInDatabase.add(shop);
+                createdShops.add(shop);
                 if (shopNullCheck(shop)) {
                     if (plugin.getConfig().getBoolean("debug.delete-corrupt-shops", false)) {
                         plugin.getLogger().warning("Deleting shop " + shop + " caused by corrupted.");
@@ -133,40 +185,115 @@ public class ShopLoader {
                 // Load to RAM
                 plugin.getShopManager().loadShop(data.getWorld().getName(), shop);
                 if (Util.isLoaded(shop.getLocation())) {
-                    // Load to World
-                    if (!Util.canBeShop(shop.getLocation().getBlock())) {
-                        Util.debugLog("Target block can't be a shop, removing it from the memory...");
-                        // shop.delete();
-                        plugin.getShopManager().removeShop(shop); // Remove from Mem
-                        //TODO: Only remove from memory, so if it actually is a bug, user won't lost all shops.
-                        //TODO: Old shop will be deleted when in same location creating new shop.
-                    } else {
-                        pendingLoadShops.add(shop);
-                    }
+                    pendingLoadShops.add(shop);
                 } else {
                     loadAfterChunkLoaded++;
                 }
+                if (createdShops.size() % PROGRESS_STEP == 0) {
+                    this.plugin.getLogger().info("Loaded " + createdShops.size() + " shops into memory...");
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            plugin.getLogger().log(Level.WARNING, "Interrupted while loading shops, some shops may not be loaded", e);
+        } finally {
+            deserializePool.shutdown();
+        }
+        statistics.createNanos = System.nanoTime() - createBegin;
+        // The chunks loaded while reading missed their ChunkLoadEvent
+        pendingLoadShops.addAll(plugin.getShopManager().materializeLoadedChunks());
+        // One copy instead of copying for each shop
+        this.shopsInDatabase.addAll(createdShops);
+        this.shopRawDatabaseInfoList.addAll(statistics.rawInfos);
+        if (statistics.readError != null) {
+            exceptionHandler(statistics.readError, null);
+        }
+        this.plugin.getLogger().info("Read " + statistics.rawInfos.size() + " shops in " + TimeUnit.NANOSECONDS.toMillis(statistics.readNanos)
+                + "ms, deserialized in " + TimeUnit.NANOSECONDS.toMillis(statistics.deserializeNanos.sum()) + "ms (CPU time, " + deserializePool.getParallelism()
+                + " threads), created in " + TimeUnit.NANOSECONDS.toMillis(statistics.createNanos) + "ms.");
+        this.plugin.getLogger().info("Items: " + yamlItemStatistics + ", " + binaryItemStatistics + ".");
+        new ShopAttachTask(pendingLoadShops).runTaskTimer(plugin, 1, 1);
+        this.plugin.getLogger().info("Scheduled " + pendingLoadShops.size() + " shops to load in next ticks, " + loadAfterChunkLoaded
+                + " shops will load after chunk have loaded, "
+                + dormant
+                + " shops stay dormant until their chunk loaded, "
+                + loadAfterWorldLoaded
+                + " shops will load after the world has loaded.");
+    }
 
-            Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                this.plugin.getLogger().info("Loading the shops in worlds...");
-                for (Shop shop : pendingLoadShops) {
-                    shop.onLoad();
-                    shop.update();
+    private int getParallelism() {
+        int parallelism = plugin.getConfig().getInt("shop.loader.parallelism", 0);
+        if (parallelism <= 0) {
+            // Leave one core for the main thread
+            parallelism = Runtime.getRuntime().availableProcessors() - 1;
+        }
+        return Math.max(1, parallelism);
+    }
+
+    /**
+     * Snapshot the loaded chunks for the reader thread, it can't touch the worlds
+     *
+     * @return World name -> chunk keys
+     */
+    private @NotNull Map<String, Set<Long>> getLoadedChunks() {
+        Map<String, Set<Long>> loadedChunks = new HashMap<>();
+        for (World world : plugin.getServer().getWorlds()) {
+            Set<Long> chunks = new HashSet<>();
+            for (Chunk chunk : world.getLoadedChunks()) {
+                chunks.add(chunkKey(chunk.getX(), chunk.getZ()));
+            }
+            loadedChunks.put(world.getName(), chunks);
+        }
+        return loadedChunks;
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The reader stage, runs on the reader thread
+     *
+     * @param loadedChunks The loaded chunks snapshot, null if lazy loading disabled
+     */
+    private void readShops(@Nullable String worldName, @Nullable Map<String, Set<Long>> loadedChunks, @NotNull BlockingQueue<Future<ShopDatabaseInfo>> handoffQueue, @NotNull ForkJoinPool deserializePool, @NotNull LoadStatistics statistics) {
+        long begin = System.nanoTime();
+        try (WarpedResultSet warpRS = plugin.getDatabaseHelper().selectAllShops(); ResultSet rs = warpRS.getResultSet()) {
+            while (rs.next()) {
+                ShopRawDatabaseInfo origin = new ShopRawDatabaseInfo(rs);
+                statistics.rawInfos.add(origin);
+                if (worldName != null && !origin.getWorld().equals(worldName)) {
+                    continue;
                 }
-                this.plugin
-                        .getLogger()
-                        .info(
-                                "Successfully loaded "
-                                        + pendingLoadShops.size()
-                                        + " shops!");
-            }, 1);
-            this.plugin.getLogger().info("Scheduled " + pendingLoadShops.size() + " shops to load in next tick, " + loadAfterChunkLoaded
-                    + " shops will load after chunk have loaded, "
-                    + loadAfterWorldLoaded
-                    + " shops will load after the world has loaded.");
+                // The world is loaded but the chunk isn't, keep it dormant
+                Set<Long> chunks = loadedChunks == null ? null : loadedChunks.get(origin.getWorld());
+                boolean dormant = chunks != null && !chunks.contains(chunkKey(origin.getX() >> 4, origin.getZ() >> 4));
+                handoffQueue.put(deserializePool.submit(() -> {
+                    long deserializeBegin = System.nanoTime();
+                    ShopDatabaseInfo data = new ShopDatabaseInfo(origin, dormant);
+                    statistics.deserializeNanos.add(System.nanoTime() - deserializeBegin);
+                    return data;
+                }));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            statistics.readError = e;
         } catch (Exception e) {
-            exceptionHandler(e, null);
+            statistics.readError = e;
+        } finally {
+            statistics.readNanos = System.nanoTime() - begin;
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    handoffQueue.put(END_OF_STREAM);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
@@ -259,7 +386,7 @@ public class ShopLoader {
     }
 
     private void exceptionHandler(@NotNull Exception ex, @Nullable Location shopLocation) {
-        errors++;
+        int errors = this.errors.incrementAndGet();
         Logger logger = plugin.getLogger();
         logger.warning("##########FAILED TO LOAD SHOP##########");
         logger.warning("  >> Error Info:");
@@ -273,7 +400,7 @@ public class ShopLoader {
         logger.warning("  >> Target Location Info");
         logger.warning("Location: " + ((shopLocation == null) ? "NULL" : shopLocation.toString()));
         logger.warning(
-                "Block: " + ((shopLocation == null) ? "NULL" : shopLocation.getBlock().getType().name()));
+                "Block: " + ((shopLocation == null || !Bukkit.isPrimaryThread()) ? "NULL" : shopLocation.getBlock().getType().name()));
         logger.warning("#######################################");
         if (errors > 10) {
             logger.severe(
@@ -326,6 +453,57 @@ public class ShopLoader {
         return new ArrayList<>(shopsInDatabase);
     }
 
+    /**
+     * Create the shop from a dormant row and put it into memory, call shop.onLoad by yourself
+     *
+     * @param raw The database row
+     * @return The shop, null if it is broken or its world not loaded
+     */
+    @Nullable
+    Shop materialize(@NotNull ShopRawDatabaseInfo raw) {
+        ShopDatabaseInfo data = new ShopDatabaseInfo(raw);
+        if (data.getWorld() == null) {
+            return null;
+        }
+        Shop shop;
+        try {
+            shop = new ContainerShop(plugin,
+                    data.getLocation(),
+                    data.getPrice(),
+                    data.getItem(),
+                    data.getModerators(),
+                    data.isUnlimited(),
+                    data.getType(),
+                    data.getExtra());
+        } catch (Exception e) {
+            Util.debugLog("Trouble database loading debug: " + data);
+            exceptionHandler(e, data.getLocation());
+            return null;
+        }
+        if (data.needUpdate.get()) {
+            shop.setDirty();
+        }
+        if (shopNullCheck(shop)) {
+            Util.debugLog("Trouble database loading debug: " + data);
+            Util.debugLog("Somethings gone wrong, skipping the materializing...");
+            return null;
+        }
+        plugin.getShopManager().loadShop(data.getWorld().getName(), shop);
+        return shop;
+    }
+
+    /**
+     * Drop the references of the shops gone dormant, so they can be collected
+     *
+     * @param shops The shops
+     */
+    void forgetShops(@NotNull Collection<Shop> shops) {
+        Set<Shop> forgotten = Collections.newSetFromMap(new IdentityHashMap<>());
+        forgotten.addAll(shops);
+        // One copy for all shops
+        this.shopsInDatabase.removeIf(forgotten::contains);
+    }
+
     public void removeShopFromShopLoader(Shop shop) {
         if (this.shopsInDatabase.remove(shop)) {
             for (ShopRawDatabaseInfo rawDatabaseInfo : this.shopRawDatabaseInfoList) {
@@ -371,6 +549,10 @@ public class ShopLoader {
 
         private String extra;
 
+        /* The binary item, null if the row still in YAML (itemConfig) */
+        @Nullable
+        private byte[] itemData;
+
         ShopRawDatabaseInfo(ResultSet rs) throws SQLException {
             this.x = rs.getInt("x");
             this.y = rs.getInt("y");
@@ -382,6 +564,7 @@ public class ShopLoader {
             this.type = rs.getInt("type");
             this.unlimited = rs.getBoolean("unlimited");
             this.extra = rs.getString("extra");
+            this.itemData = rs.getBytes("itemData");
             //handle old shops
             if (extra == null) {
                 extra = "";
@@ -414,6 +597,7 @@ public class ShopLoader {
     @Getter
     @Setter
     public class ShopDatabaseInfo {
+        /* The shared prototype from the item cache, never modify it */
         private ItemStack item;
 
         private Location location;
@@ -438,7 +622,20 @@ public class ShopLoader {
 
         private AtomicBoolean needUpdate = new AtomicBoolean(false);
 
+        private ShopRawDatabaseInfo origin;
+
+        private boolean dormant;
+
         ShopDatabaseInfo(ShopRawDatabaseInfo origin) {
+            this(origin, false);
+        }
+
+        /**
+         * @param dormant Only deserialize the moderator, the rest will be deserialized when it materialized
+         */
+        ShopDatabaseInfo(ShopRawDatabaseInfo origin, boolean dormant) {
+            this.origin = origin;
+            this.dormant = dormant;
             try {
                 this.x = origin.getX();
                 this.y = origin.getY();
@@ -448,20 +645,35 @@ public class ShopLoader {
                 this.price = origin.getPrice();
                 this.unlimited = origin.isUnlimited();
                 this.moderators = deserializeModerator(origin.getModerators(), needUpdate);
+                if (dormant) {
+                    return;
+                }
                 this.type = ShopType.fromID(origin.getType());
-                this.item = deserializeItem(origin.getItem());
+                this.item = deserializeItem(origin);
                 this.extra = deserializeExtra(origin.getExtra(), needUpdate);
             } catch (Exception ex) {
                 exceptionHandler(ex, this.location);
             }
         }
 
-        private @Nullable ItemStack deserializeItem(@NotNull String itemConfig) {
+        private @Nullable ItemStack deserializeItem(@NotNull ShopRawDatabaseInfo origin) {
+            long begin = System.nanoTime();
+            byte[] itemData = origin.getItemData();
             try {
-                return Util.deserialize(itemConfig);
+                // ContainerShop clones it, so the shared prototype is enough
+                if (ItemCodec.isEncoded(itemData)) {
+                    ItemStack item = Util.deserializePrototype(itemData);
+                    binaryItemStatistics.record(itemData.length, System.nanoTime() - begin);
+                    return item;
+                }
+                // The legacy rows, they will be migrated at next save
+                ItemStack item = Util.deserializePrototype(origin.getItem());
+                // Mostly ASCII, the length is close enough to the bytes
+                yamlItemStatistics.record(origin.getItem().length(), System.nanoTime() - begin);
+                return item;
             } catch (InvalidConfigurationException e) {
                 plugin.getLogger().log(Level.WARNING, "Failed load shop data, because target config can't deserialize the ItemStack", e);
-                Util.debugLog("Failed to load data to the ItemStack: " + itemConfig);
+                Util.debugLog("Failed to load data to the ItemStack: " + (ItemCodec.isEncoded(itemData) ? Base64.getEncoder().encodeToString(itemData) : origin.getItem()));
                 return null;
             }
         }
@@ -488,4 +700,119 @@ public class ShopLoader {
 
     }
 
+    /**
+     * Timings of a loading, the fields written by the stage owner and read after the stage finished
+     */
+    private static class LoadStatistics {
+        private final List<ShopRawDatabaseInfo> rawInfos = new ArrayList<>();
+        private final LongAdder deserializeNanos = new LongAdder();
+        private volatile long readNanos;
+        private long createNanos;
+        @Nullable
+        private volatile Exception readError;
+    }
+
+    /**
+     * The parse time and stored size of the items in a format, the two formats can be compared by them
+     */
+    public static class ItemFormatStatistics {
+        private final String format;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        private ItemFormatStatistics(@NotNull String format) {
+            this.format = format;
+        }
+
+        private void record(int size, long nanos) {
+            this.count.increment();
+            this.bytes.add(size);
+            this.nanos.add(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getAverageBytes() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) bytes.sum() / count;
+        }
+
+        /**
+         * Gets the average parse time, the item cache hits are included
+         *
+         * @return The average parse time in microseconds
+         */
+        public double getAverageParseMicros() {
+            long count = getCount();
+            return count == 0 ? 0 : nanos.sum() / 1000.0 / count;
+        }
+
+        @Override
+        public String toString() {
+            return getCount() + " " + format + " (" + String.format("%.1f", getAverageBytes()) + " bytes, "
+                    + String.format("%.1f", getAverageParseMicros()) + "us per shop)";
+        }
+    }
+
+    /**
+     * Attach the loaded shops to the world, spends at most the time budget per tick
+     */
+    private class ShopAttachTask extends BukkitRunnable {
+        private final List<Shop> shops;
+        private final long timeBudgetNanos;
+        private int index;
+        private int ticks;
+        private long workNanos;
+        private int lastReported;
+
+        private ShopAttachTask(@NotNull List<Shop> shops) {
+            this.shops = shops;
+            this.timeBudgetNanos = TimeUnit.MICROSECONDS.toNanos((long) (plugin.getConfig().getDouble("shop.loader.attach-time-budget", 20) * 1000));
+        }
+
+        @Override
+        public void run() {
+            if (ticks++ == 0) {
+                plugin.getLogger().info("Loading the shops in worlds...");
+            }
+            long beginTime = System.nanoTime();
+            while (index < shops.size()) {
+                attach(shops.get(index++));
+                if (System.nanoTime() - beginTime > timeBudgetNanos) {
+                    break;
+                }
+            }
+            workNanos += System.nanoTime() - beginTime;
+            if (index >= shops.size()) {
+                cancel();
+                plugin.getLogger().info("Successfully loaded " + shops.size() + " shops! (" + ticks + " ticks, "
+                        + TimeUnit.NANOSECONDS.toMillis(workNanos) + "ms on main thread)");
+            } else if (index - lastReported >= PROGRESS_STEP) {
+                lastReported = index;
+                plugin.getLogger().info("Loading the shops in worlds... " + index + "/" + shops.size());
+            }
+        }
+
+        private void attach(@NotNull Shop shop) {
+            // The chunk or shop may changed after it read
+            if (shop.isDeleted() || shop.isLoaded() || !Util.isLoaded(shop.getLocation())) {
+                return;
+            }
+            // Load to World
+            if (!Util.canBeShop(shop.getLocation().getBlock())) {
+                Util.debugLog("Target block can't be a shop, removing it from the memory...");
+                // shop.delete();
+                plugin.getShopManager().removeShop(shop); // Remove from Mem
+                //TODO: Only remove from memory, so if it actually is a bug, user won't lost all shops.
+                //TODO: Old shop will be deleted when in same location creating new shop.
+                return;
+            }
+            shop.onLoad();
+            shop.update();
+        }
+    }
+
 }
@@ -0,0 +1,352 @@
+/*
+ * This file is a part of project QuickShop, the name is ShopLocationIndex.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.maxgamer.quickshop.shop;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.maxgamer.quickshop.util.LongObjectHashMap;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BiConsumer;
+
+/**
+ * The primitive spatial index of shops, world names resolved to a world-id once
+ * and each world keeps a long keyed open-addressing table.
+ * <p>
+ * Key layout (same as vanilla BlockPos): x 26 bits | z 26 bits | y 12 bits,
+ * so the chunk coordinates are simply the upper 22 bits of x and z.
+ * <p>
+ * Each world also keeps a per-chunk entry, holding the shops in that chunk (for the chunk lookups) and
+ * a counting bloom filter of the shop blocks and their horizontal neighbours (where the wall signs and
+ * the double chest second half can be), so the lookups on the blocks that can't be a shop are rejected
+ * without touching the world.
+ * <p>
+ * Writes are serialized, {@link #mightContain(Location)} and {@link #getChunk(String, int, int)} are lock-free.
+ * The counters are atomic, the shops of a chunk are a copy-on-write array, and a chunk entry is never removed
+ * from its table once created (only {@link #clear()} drops them).
+ */
+class ShopLocationIndex {
+    private final Map<String, Integer> worldIds = new ConcurrentHashMap<>();
+
+    private volatile LongObjectHashMap<Shop>[] worlds = newArray(0);
+
+    private volatile LongObjectHashMap<ChunkEntry>[] chunks = newArray(0);
+
+    @SuppressWarnings("unchecked")
+    private static <T> LongObjectHashMap<T>[] newArray(int size) {
+        return (LongObjectHashMap<T>[]) new LongObjectHashMap[size];
+    }
+
+    static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    static int unpackX(long key) {
+        return (int) (key >> 38);
+    }
+
+    static int unpackY(long key) {
+        return (int) (key << 52 >> 52);
+    }
+
+    static int unpackZ(long key) {
+        return (int) (key << 26 >> 38);
+    }
+
+    private static long chunkKey(int x, int z) {
+        return ((long) (x >> 4) << 32) | ((z >> 4) & 0xFFFFFFFFL);
+    }
+
+    static int unpackChunkX(long chunkKey) {
+        return (int) (chunkKey >> 32);
+    }
+
+    static int unpackChunkZ(long chunkKey) {
+        return (int) chunkKey;
+    }
+
+    private static int bucket(int x, int y, int z) {
+        return (((x & 15) | (z & 15) << 4 | y << 8) * 0x9E3779B9) >>> (32 - ChunkEntry.BITS);
+    }
+
+    /**
+     * Gets the world id, -1 if that world never had shops
+     *
+     * @param world The world name
+     * @return The world id
+     */
+    int getWorldId(@NotNull String world) {
+        Integer id = worldIds.get(world);
+        return id == null ? -1 : id;
+    }
+
+    private synchronized int getOrCreateWorldId(@NotNull String world) {
+        Integer id = worldIds.get(world);
+        if (id != null) {
+            return id;
+        }
+        LongObjectHashMap<ChunkEntry>[] expandedChunks = newArray(chunks.length + 1);
+        System.arraycopy(chunks, 0, expandedChunks, 0, chunks.length);
+        expandedChunks[chunks.length] = new LongObjectHashMap<>();
+        chunks = expandedChunks;
+        LongObjectHashMap<Shop>[] expanded = newArray(worlds.length + 1);
+        System.arraycopy(worlds, 0, expanded, 0, worlds.length);
+        expanded[worlds.length] = new LongObjectHashMap<>();
+        worlds = expanded;
+        // Publish the id after both tables are ready
+        worldIds.put(world, worlds.length - 1);
+        return worlds.length - 1;
+    }
+
+    @Nullable
+    Shop get(@NotNull String world, int x, int y, int z) {
+        int id = getWorldId(world);
+        if (id == -1) {
+            return null;
+        }
+        return worlds[id].get(pack(x, y, z));
+    }
+
+    @Nullable
+    Shop get(@NotNull Location location) {
+        World world = location.getWorld();
+        if (world == null) {
+            return null;
+        }
+        return get(world.getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+
+    /**
+     * Check whether the location may be a shop, its sign or its second half.
+     * False means definitely not, true may be a false positive.
+     *
+     * @param location The location
+     * @return May be a shop related block
+     */
+    boolean mightContain(@NotNull Location location) {
+        World world = location.getWorld();
+        if (world == null) {
+            return false;
+        }
+        int id = getWorldId(world.getName());
+        if (id == -1) {
+            return false;
+        }
+        int x = location.getBlockX();
+        int z = location.getBlockZ();
+        ChunkEntry entry = chunks[id].get(chunkKey(x, z));
+        return entry != null && entry.counts.get(bucket(x, location.getBlockY(), z)) != 0;
+    }
+
+    /**
+     * Gets the shops in the chunk
+     *
+     * @param world  The world name
+     * @param chunkX The chunk x
+     * @param chunkZ The chunk z
+     * @return The shops, never modify it, empty if none
+     */
+    @NotNull
+    Shop[] getChunk(@NotNull String world, int chunkX, int chunkZ) {
+        int id = getWorldId(world);
+        if (id == -1) {
+            return ChunkEntry.NO_SHOPS;
+        }
+        ChunkEntry entry = chunks[id].get(chunkKey(chunkX << 4, chunkZ << 4));
+        return entry == null ? ChunkEntry.NO_SHOPS : entry.shops;
+    }
+
+    /**
+     * Iterate the chunks that have shops in the world
+     *
+     * @param world    The world name
+     * @param consumer The consumer accept chunk key and the shops in it, use unpackChunkX/Z to read the key
+     */
+    void forEachChunk(@NotNull String world, @NotNull LongObjectHashMap.EntryConsumer<Shop[]> consumer) {
+        int id = getWorldId(world);
+        if (id == -1) {
+            return;
+        }
+        chunks[id].forEach((key, entry) -> {
+            Shop[] shops = entry.shops;
+            if (shops.length != 0) {
+                consumer.accept(key, shops);
+            }
+        });
+    }
+
+    @Nullable
+    synchronized Shop put(@NotNull String world, @NotNull Location location, @NotNull Shop shop) {
+        int id = getOrCreateWorldId(world);
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+        Shop previous = worlds[id].put(pack(x, y, z), shop);
+        if (previous == null) {
+            markAround(id, x, y, z, 1);
+        }
+        ChunkEntry entry = chunks[id].get(chunkKey(x, z));
+        // The entry of its own chunk was created by markAround
+        if (entry != null) {
+            entry.replace(previous, shop);
+        }
+        return previous;
+    }
+
+    @Nullable
+    synchronized Shop remove(@NotNull String world, @NotNull Location location) {
+        int id = getWorldId(world);
+        if (id == -1) {
+            return null;
+        }
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+        Shop removed = worlds[id].remove(pack(x, y, z));
+        if (removed != null) {
+            markAround(id, x, y, z, -1);
+            ChunkEntry entry = chunks[id].get(chunkKey(x, z));
+            if (entry != null) {
+                entry.replace(removed, null);
+            }
+        }
+        return removed;
+    }
+
+    private void markAround(int id, int x, int y, int z, int delta) {
+        // Wall signs and the second half of double chest are always on horizontal faces
+        mark(id, x, y, z, delta);
+        mark(id, x + 1, y, z, delta);
+        mark(id, x - 1, y, z, delta);
+        mark(id, x, y, z + 1, delta);
+        mark(id, x, y, z - 1, delta);
+    }
+
+    private void mark(int id, int x, int y, int z, int delta) {
+        LongObjectHashMap<ChunkEntry> inWorld = chunks[id];
+        long key = chunkKey(x, z);
+        ChunkEntry entry = inWorld.get(key);
+        if (entry == null) {
+            if (delta < 0) {
+                return;
+            }
+            entry = new ChunkEntry();
+            // Fill the counter before publishing the entry
+            entry.counts.addAndGet(bucket(x, y, z), delta);
+            inWorld.put(key, entry);
+            return;
+        }
+        // Empty entries are kept, chunks with shops once likely get shops again
+        entry.counts.addAndGet(bucket(x, y, z), delta);
+    }
+
+    /**
+     * Gets the table of specified world, null if that world never had shops
+     *
+     * @param world The world name
+     * @return The table
+     */
+    @Nullable
+    LongObjectHashMap<Shop> getWorld(@NotNull String world) {
+        int id = getWorldId(world);
+        return id == -1 ? null : worlds[id];
+    }
+
+    /**
+     * Iterate the tables of all worlds that ever had shops
+     *
+     * @param consumer The consumer accept world name and its table
+     */
+    void forEachWorld(@NotNull BiConsumer<String, LongObjectHashMap<Shop>> consumer) {
+        LongObjectHashMap<Shop>[] tables = worlds;
+        for (Map.Entry<String, Integer> entry : worldIds.entrySet()) {
+            if (entry.getValue() < tables.length) {
+                consumer.accept(entry.getKey(), tables[entry.getValue()]);
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (LongObjectHashMap<Shop> world : worlds) {
+            size += world.size();
+        }
+        return size;
+    }
+
+    void clear() {
+        // Keep the world-id table, ids are stable for the whole runtime
+        for (LongObjectHashMap<Shop> world : worlds) {
+            world.clear();
+        }
+        for (LongObjectHashMap<ChunkEntry> inWorld : chunks) {
+            inWorld.clear();
+        }
+    }
+
+    private static class ChunkEntry {
+        private static final int BITS = 8;
+        private static final Shop[] NO_SHOPS = new Shop[0];
+        /* Counting bloom filter with single hash, counters make removal possible */
+        private final AtomicIntegerArray counts = new AtomicIntegerArray(1 << BITS);
+        /* The shops in this chunk, copy on write */
+        private volatile Shop[] shops = NO_SHOPS;
+
+        /**
+         * Replace the shop in this chunk, only called under the index lock
+         *
+         * @param previous The shop to replace, null to add
+         * @param shop     The new shop, null to remove
+         */
+        private void replace(@Nullable Shop previous, @Nullable Shop shop) {
+            Shop[] current = this.shops;
+            int index = -1;
+            if (previous != null) {
+                for (int i = 0; i < current.length; i++) {
+                    if (current[i] == previous) {
+                        index = i;
+                        break;
+                    }
+                }
+            }
+            Shop[] updated;
+            if (index == -1) {
+                if (shop == null) {
+                    return;
+                }
+                updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = shop;
+            } else if (shop != null) {
+                updated = current.clone();
+                updated[index] = shop;
+            } else {
+                updated = new Shop[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            }
+            this.shops = updated;
+        }
+    }
+}
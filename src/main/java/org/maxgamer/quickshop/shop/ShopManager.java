@@ -19,12 +19,10 @@
 
 package org.maxgamer.quickshop.shop;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import io.papermc.lib.PaperLib;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import org.apache.commons.lang.StringUtils;
 import org.bukkit.*;
@@ -42,23 +40,45 @@ import org.maxgamer.quickshop.economy.Economy;
 import org.maxgamer.quickshop.economy.EconomyTransaction;
 import org.maxgamer.quickshop.economy.Trader;
 import org.maxgamer.quickshop.event.*;
+import org.maxgamer.quickshop.shop.search.ShopSearchEngine;
 import org.maxgamer.quickshop.util.CalculateUtil;
+import org.maxgamer.quickshop.util.LongObjectHashMap;
 import org.maxgamer.quickshop.util.MsgUtil;
 import org.maxgamer.quickshop.util.PriceLimiter;
 import org.maxgamer.quickshop.util.Util;
 import org.maxgamer.quickshop.util.holder.Result;
+import org.maxgamer.quickshop.util.matcher.item.ItemFingerprint;
+import org.maxgamer.quickshop.util.matcher.item.ItemMatcher;
+import org.maxgamer.quickshop.util.matcher.item.ItemScanResult;
+import org.maxgamer.quickshop.watcher.SignUpdateWatcher;
 
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Manage a lot of shops.
  */
 public class ShopManager {
 
-    private final Map<String, Map<ShopChunk, Map<Location, Shop>>> shops = Maps.newConcurrentMap();
+    /* The shops in memory, the getShops maps are views over it */
+    private final ShopLocationIndex shopIndex = new ShopLocationIndex();
+
+    /* Player -> (Shop runtime uuid -> Shop), ContainerShop hashCode changes with its data so it can't be a set */
+    private final Map<UUID, Map<UUID, Shop>> ownerIndex = Maps.newConcurrentMap();
+
+    private final Map<UUID, Map<UUID, Shop>> staffIndex = Maps.newConcurrentMap();
+
+    @Getter
+    private final ShopSearchEngine searchEngine = new ShopSearchEngine(this::getShopIterator);
 
     private final Set<Shop> loadedShops = Sets.newConcurrentHashSet();
 
@@ -75,14 +95,42 @@ public class ShopManager {
     private final boolean useFastShopSearchAlgorithm;
     private final boolean useOldCanBuildAlgorithm;
     private final boolean autoSign;
-    private final Cache<UUID, Shop> shopRuntimeUUIDCaching =
-            CacheBuilder.newBuilder()
-                    .expireAfterAccess(10, TimeUnit.MINUTES)
-                    .maximumSize(50)
-                    .weakValues()
-                    .initialCapacity(50)
-                    .build();
+    /* Shop runtime uuid -> Shop, contains every shop added to ShopManager */
+    private final Map<UUID, Shop> runtimeIdIndex = Maps.newConcurrentMap();
+
+    private final LongAdder runtimeIdHits = new LongAdder();
+
+    private final LongAdder runtimeIdMisses = new LongAdder();
+
+    /* Bumped on every add or remove, the snapshot will be rebuilt lazily when it's outdated */
+    private final AtomicLong shopsVersion = new AtomicLong();
+
+    /* Bumped when the sign texts need to be rendered again, e.g the messages reloaded */
+    private final AtomicLong signTextGeneration = new AtomicLong();
+
+    private volatile ShopSnapshot shopSnapshot = new ShopSnapshot(0, new Shop[0], Collections.emptyList(), Collections.emptyMap());
+
+    /* The shops still in raw database rows, they will be materialized when their chunk loaded or someone asks for them */
+    private final DormantShopStore dormantShops = new DormantShopStore();
 
+    /* Chunk -> the time it unloaded, the shops in it will go dormant after the idle time */
+    private final Map<ShopChunk, Long> unloadedChunks = Maps.newConcurrentMap();
+
+    private final LongAdder materializedCount = new LongAdder();
+
+    /* How long an off-main caller waits for the main thread to materialize the dormant shops */
+    private static final long MATERIALIZE_WAIT_SECONDS = 5;
+
+    /* The dormant shops being materialized, main thread only */
+    private final Set<DormantShopStore.DormantShop> materializing = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final LongAdder dematerializedCount = new LongAdder();
+
+    /* Bumped when an off-main caller got a result without the dormant shops */
+    private final LongAdder partialResultCount = new LongAdder();
+
+    @Getter
+    private final boolean lazyLoad;
 
     public ShopManager(@NotNull QuickShop plugin) {
         Util.ensureThread(false);
@@ -116,6 +164,7 @@ public class ShopManager {
                 plugin.getConfig().getBoolean("whole-number-prices-only"));
         this.useOldCanBuildAlgorithm = plugin.getConfig().getBoolean("limits.old-algorithm");
         this.autoSign = plugin.getConfig().getBoolean("shop.auto-sign");
+        this.lazyLoad = plugin.getConfig().getBoolean("shop.lazy-load.enable", false);
     }
 
     /**
@@ -130,10 +179,13 @@ public class ShopManager {
         Util.ensureThread(false);
         if (plugin.isLimit()) {
             int owned = 0;
+            final Collection<Shop> ownedShops = getIndexedShops(ownerIndex, p.getUniqueId());
+            // Count the dormant shops by their rows, no need to materialize them
+            owned += dormantShops.countOwned(p.getUniqueId(), useOldCanBuildAlgorithm);
             if (useOldCanBuildAlgorithm) {
-                owned = getPlayerAllShops(p.getUniqueId()).size();
+                owned += ownedShops.size();
             } else {
-                for (final Shop shop : getPlayerAllShops(p.getUniqueId())) {
+                for (final Shop shop : ownedShops) {
                     if (!shop.isUnlimited()) {
                         owned++;
                     }
@@ -151,16 +203,22 @@ public class ShopManager {
 
     /**
      * Returns a map of World - Chunk - Shop
+     * <p>
+     * All dormant shops will be materialized before it returns.
+     * The map is an unmodifiable snapshot view over the shop index, get it again to see the later changes.
      *
      * @return a map of World - Chunk - Shop
      */
     public @NotNull Map<String, Map<ShopChunk, Map<Location, Shop>>> getShops() {
-        return this.shops;
+        materialize(dormantShops.all());
+        return getMaterializedShops();
     }
 
     /**
      * Returns a new shop iterator object, allowing iteration over shops easily, instead of sorting
      * through a 3D map.
+     * <p>
+     * It only iterates the shops in memory, the dormant shops are not included.
      *
      * @return a new shop iterator object.
      */
@@ -177,11 +235,7 @@ public class ShopManager {
         if (plugin.isDisplay()) {
             for (World world : plugin.getServer().getWorlds()) {
                 for (Chunk chunk : world.getLoadedChunks()) {
-                    Map<Location, Shop> inChunk = this.getShops(chunk);
-                    if (inChunk == null || inChunk.isEmpty()) {
-                        continue;
-                    }
-                    for (Shop shop : inChunk.values()) {
+                    for (Shop shop : shopIndex.getChunk(world.getName(), chunk.getX(), chunk.getZ())) {
                         if (shop.isLoaded()) {
                             shop.onUnload();
                         }
@@ -190,7 +244,14 @@ public class ShopManager {
             }
         }
         this.actions.clear();
-        this.shops.clear();
+        this.dormantShops.clear();
+        this.unloadedChunks.clear();
+        this.shopIndex.clear();
+        this.ownerIndex.clear();
+        this.staffIndex.clear();
+        this.runtimeIdIndex.clear();
+        this.searchEngine.clear();
+        this.shopsVersion.incrementAndGet();
     }
 
     /**
@@ -198,28 +259,57 @@ public class ShopManager {
      *
      * @param c The chunk to search. Referencing doesn't matter, only coordinates and world are
      *          used.
-     * @return Shops
+     * @return Shops, an unmodifiable snapshot view, null if no shops in this chunk
      */
     public @Nullable Map<Location, Shop> getShops(@NotNull Chunk c) {
         return getShops(c.getWorld().getName(), c.getX(), c.getZ());
     }
 
     public @Nullable Map<Location, Shop> getShops(@NotNull String world, int chunkX, int chunkZ) {
-        final Map<ShopChunk, Map<Location, Shop>> inWorld = this.getShops(world);
-        if (inWorld == null) {
-            return null;
-        }
-        return inWorld.get(new ShopChunk(world, chunkX, chunkZ));
+        materializeChunk(world, chunkX, chunkZ);
+        Shop[] inChunk = shopIndex.getChunk(world, chunkX, chunkZ);
+        return inChunk.length == 0 ? null : new ChunkShopMap(inChunk);
     }
 
     /**
      * Returns a map of Chunk - Shop
      *
      * @param world The name of the world (case sensitive) to get the list of shops from
-     * @return a map of Chunk - Shop
+     * @return a map of Chunk - Shop, an unmodifiable snapshot view, null if no shops in this world
      */
     public @Nullable Map<ShopChunk, Map<Location, Shop>> getShops(@NotNull String world) {
-        return this.shops.get(world);
+        materialize(dormantShops.inWorld(world));
+        return getMaterializedShops(world);
+    }
+
+    /**
+     * Returns a map of World - Chunk - Shop, the dormant shops are not included
+     *
+     * @return a map of World - Chunk - Shop, an unmodifiable snapshot view
+     */
+    public @NotNull Map<String, Map<ShopChunk, Map<Location, Shop>>> getMaterializedShops() {
+        Map<String, Map<ShopChunk, Map<Location, Shop>>> worlds = new HashMap<>();
+        shopIndex.forEachWorld((world, table) -> {
+            Map<ShopChunk, Map<Location, Shop>> inWorld = getMaterializedShops(world);
+            if (inWorld != null) {
+                worlds.put(world, inWorld);
+            }
+        });
+        return Collections.unmodifiableMap(worlds);
+    }
+
+    /**
+     * Returns a map of Chunk - Shop, the dormant shops are not included
+     *
+     * @param world The name of the world (case sensitive) to get the list of shops from
+     * @return a map of Chunk - Shop, an unmodifiable snapshot view, null if no shops in this world
+     */
+    public @Nullable Map<ShopChunk, Map<Location, Shop>> getMaterializedShops(@NotNull String world) {
+        Map<ShopChunk, Map<Location, Shop>> inWorld = new HashMap<>();
+        shopIndex.forEachChunk(world, (key, shops) -> inWorld.put(
+                new ShopChunk(world, ShopLocationIndex.unpackChunkX(key), ShopLocationIndex.unpackChunkZ(key)),
+                new ChunkShopMap(shops)));
+        return inWorld.isEmpty() ? null : Collections.unmodifiableMap(inWorld);
     }
 
     private void processWaterLoggedSign(@NotNull Block container, @NotNull Block signBlock) {
@@ -331,21 +421,26 @@ public class ShopManager {
      * @return The shop at that location
      */
     public @Nullable Shop getShop(@NotNull Location loc, boolean skipShopableChecking) {
-        if (!skipShopableChecking && !Util.isShoppables(loc.getBlock().getType())) {
+        materializeAt(loc);
+        if (!shopIndex.mightContain(loc)) {
             return null;
         }
-        final Map<Location, Shop> inChunk = getShops(loc.getChunk());
-        if (inChunk == null) {
+        if (!skipShopableChecking && !Util.isShoppables(loc.getBlock().getType())) {
             return null;
         }
-        loc = loc.clone();
-        // Fix double chest XYZ issue
-        loc.setX(loc.getBlockX());
-        loc.setY(loc.getBlockY());
-        loc.setZ(loc.getBlockZ());
-        // We can do this because WorldListener updates the world reference so
-        // the world in loc is the same as world in inChunk.get(loc)
-        return inChunk.get(loc);
+        // Index keyed by block coordinates, so double chest XYZ issue won't happen
+        return shopIndex.get(loc);
+    }
+
+    /**
+     * Check whether the location may be a shop, its sign or the second half of its double chest.
+     * It doesn't touch the world, false means there is definitely no shop related to that block.
+     *
+     * @param loc The location
+     * @return May be a shop related block, may be a false positive
+     */
+    public boolean mightBeShopBlock(@NotNull Location loc) {
+        return shopIndex.mightContain(loc);
     }
 
     /**
@@ -370,6 +465,10 @@ public class ShopManager {
             Util.debugLog("Location is null.");
             return null;
         }
+        materializeAt(loc);
+        if (!shopIndex.mightContain(loc)) {
+            return null;
+        }
 
         if (this.useFastShopSearchAlgorithm) {
             return getShopIncludeAttached_Fast(loc, false, useCache);
@@ -379,30 +478,20 @@ public class ShopManager {
     }
 
     public @Nullable Shop getShopIncludeAttached_Classic(@NotNull Location loc) {
-        @Nullable Shop shop;
-        // Get location's chunk all shops
-        @Nullable Map<Location, Shop> inChunk = getShops(loc.getChunk());
-        // Found some shops in this chunk.
-        if (inChunk != null) {
-            shop = inChunk.get(loc);
-            if (shop != null) {
-                // Okay, shop was founded.
-                return shop;
-            }
-            // Ooops, not founded that shop in this chunk.
+        @Nullable Shop shop = shopIndex.get(loc);
+        if (shop != null) {
+            // Okay, shop was founded.
+            return shop;
         }
         @Nullable Block secondHalfShop = Util
                 .getSecondHalf(loc.getBlock());
         if (secondHalfShop != null) {
-            inChunk = getShops(secondHalfShop.getChunk());
-            if (inChunk != null) {
-                shop = inChunk.get(secondHalfShop.getLocation());
-                if (shop != null) {
-                    // Okay, shop was founded.
-                    return shop;
-                }
-                // Oooops, no any shops matched.
+            shop = shopIndex.get(secondHalfShop.getLocation());
+            if (shop != null) {
+                // Okay, shop was founded.
+                return shop;
             }
+            // Oooops, no any shops matched.
         }
 
         // only check if is sign
@@ -417,22 +506,18 @@ public class ShopManager {
                 return null;
             } else {
                 // Okay we know it on some blocks.
-                // We need set new location and chunk.
-                inChunk = getShops(attachedBlock.getChunk());
-                // Found some shops in this chunk
-                if (inChunk != null) {
-                    shop = inChunk.get(attachedBlock.getLocation());
-                    // Okay, shop was founded.
-                    return shop;
-                    // Oooops, no any shops matched.
-                }
+                return shopIndex.get(attachedBlock.getLocation());
             }
         }
         return null;
     }
 
+    /**
+     * @param shop The shop
+     * @deprecated Shops are indexed by runtime uuid when added to ShopManager, no need to bake anymore
+     */
+    @Deprecated
     public void bakeShopRuntimeRandomUniqueIdCache(@NotNull Shop shop) {
-        shopRuntimeUUIDCaching.put(shop.getRuntimeRandomUniqueId(), shop);
     }
 
     @Nullable
@@ -443,15 +528,12 @@ public class ShopManager {
     @Nullable
     public Shop getShopFromRuntimeRandomUniqueId(
             @NotNull UUID runtimeRandomUniqueId, boolean includeInvalid) {
-        Shop shop = shopRuntimeUUIDCaching.getIfPresent(runtimeRandomUniqueId);
+        Shop shop = runtimeIdIndex.get(runtimeRandomUniqueId);
         if (shop == null) {
-            for (Shop shopWithoutCache : this.getLoadedShops()) {
-                if (shopWithoutCache.getRuntimeRandomUniqueId().equals(runtimeRandomUniqueId)) {
-                    return shopWithoutCache;
-                }
-            }
+            runtimeIdMisses.increment();
             return null;
         }
+        runtimeIdHits.increment();
         if (includeInvalid) {
             return shop;
         }
@@ -511,23 +593,19 @@ public class ShopManager {
      * @param shop  The shop to add
      */
     public void addShop(@NotNull String world, @NotNull Shop shop) {
-        Map<ShopChunk, Map<Location, Shop>> inWorld =
-                this.getShops()
-                        .computeIfAbsent(world, k -> new MapMaker().initialCapacity(3).makeMap());
-        // There's no world storage yet. We need to create that map.
-        // Put it in the data universe
-        // Calculate the chunks coordinates. These are 1,2,3 for each chunk, NOT
-        // location rounded to the nearest 16.
-        int x = (int) Math.floor((shop.getLocation().getBlockX()) / 16.0);
-        int z = (int) Math.floor((shop.getLocation().getBlockZ()) / 16.0);
-        // Get the chunk set from the world info
-        ShopChunk shopChunk = new ShopChunk(world, x, z);
-        Map<Location, Shop> inChunk =
-                inWorld.computeIfAbsent(shopChunk, k -> new MapMaker().initialCapacity(1).makeMap());
-        // That chunk data hasn't been created yet - Create it!
-        // Put it in the world
-        // Put the shop in its location in the chunk list.
-        inChunk.put(shop.getLocation(), shop);
+        // The index keeps the shops by world, chunk and block, all getShops maps are views over it
+        Shop replaced = shopIndex.put(world, shop.getLocation(), shop);
+        if (replaced != shop) {
+            if (replaced != null) {
+                unindexModerator(replaced, replaced.getOwner(), replaced.getModerator().getStaffs());
+                runtimeIdIndex.remove(replaced.getRuntimeRandomUniqueId(), replaced);
+                searchEngine.remove(world, replaced);
+            }
+            indexModerator(shop);
+            runtimeIdIndex.put(shop.getRuntimeRandomUniqueId(), shop);
+            searchEngine.add(world, shop);
+            shopsVersion.incrementAndGet();
+        }
         // shop.onLoad();
 
     }
@@ -541,15 +619,103 @@ public class ShopManager {
     public void removeShop(@NotNull Shop shop) {
         Location loc = shop.getLocation();
         String world = Objects.requireNonNull(loc.getWorld()).getName();
-        Map<ShopChunk, Map<Location, Shop>> inWorld = this.getShops().get(world);
-        int x = (int) Math.floor((loc.getBlockX()) / 16.0);
-        int z = (int) Math.floor((loc.getBlockZ()) / 16.0);
-        ShopChunk shopChunk = new ShopChunk(world, x, z);
-        Map<Location, Shop> inChunk = inWorld.get(shopChunk);
-        if (inChunk == null) {
+        Shop removed = shopIndex.remove(world, loc);
+        if (removed != null) {
+            unindexModerator(removed, removed.getOwner(), removed.getModerator().getStaffs());
+            runtimeIdIndex.remove(removed.getRuntimeRandomUniqueId(), removed);
+            searchEngine.remove(world, removed);
+            shopsVersion.incrementAndGet();
+        }
+        SignUpdateWatcher signUpdateWatcher = plugin.getSignUpdateWatcher();
+        if (signUpdateWatcher != null) {
+            signUpdateWatcher.forget(shop);
+        }
+    }
+
+    private void indexModerator(@NotNull Shop shop) {
+        linkIndex(ownerIndex, shop.getOwner(), shop);
+        for (UUID staff : shop.getModerator().getStaffs()) {
+            linkIndex(staffIndex, staff, shop);
+        }
+    }
+
+    private void unindexModerator(@NotNull Shop shop, @NotNull UUID owner, @NotNull Collection<UUID> staffs) {
+        unlinkIndex(ownerIndex, owner, shop);
+        for (UUID staff : staffs) {
+            unlinkIndex(staffIndex, staff, shop);
+        }
+    }
+
+    private static void linkIndex(@NotNull Map<UUID, Map<UUID, Shop>> index, @NotNull UUID uuid, @NotNull Shop shop) {
+        index.compute(uuid, (key, shops) -> {
+            if (shops == null) {
+                shops = Maps.newConcurrentMap();
+            }
+            shops.put(shop.getRuntimeRandomUniqueId(), shop);
+            return shops;
+        });
+    }
+
+    private static void unlinkIndex(@NotNull Map<UUID, Map<UUID, Shop>> index, @NotNull UUID uuid, @NotNull Shop shop) {
+        index.computeIfPresent(uuid, (key, shops) -> {
+            shops.remove(shop.getRuntimeRandomUniqueId(), shop);
+            return shops.isEmpty() ? null : shops;
+        });
+    }
+
+    private static @NotNull Collection<Shop> getIndexedShops(@NotNull Map<UUID, Map<UUID, Shop>> index, @NotNull UUID uuid) {
+        Map<UUID, Shop> indexed = index.get(uuid);
+        return indexed == null ? Collections.emptyList() : Collections.unmodifiableCollection(indexed.values());
+    }
+
+    /**
+     * Update the owner and staffs index after shop's moderator changed.
+     * Shops that not added to ShopManager will be ignored.
+     *
+     * @param shop           The shop
+     * @param previousOwner  The owner before changes
+     * @param previousStaffs The staffs before changes (a copy)
+     */
+    public void reindexModerator(@NotNull Shop shop, @NotNull UUID previousOwner, @NotNull Collection<UUID> previousStaffs) {
+        if (shopIndex.get(shop.getLocation()) != shop) {
             return;
         }
-        inChunk.remove(loc);
+        unindexModerator(shop, previousOwner, previousStaffs);
+        indexModerator(shop);
+    }
+
+    /**
+     * Gets the generation of the sign texts, shops cache their rendered sign text within a generation
+     *
+     * @return The generation
+     */
+    public long getSignTextGeneration() {
+        return signTextGeneration.get();
+    }
+
+    /**
+     * Let all shops render their sign text again at next update
+     */
+    public void invalidateSignTexts() {
+        signTextGeneration.incrementAndGet();
+    }
+
+    /**
+     * Gets how many runtime uuid lookups found a shop
+     *
+     * @return The hit count
+     */
+    public long getRuntimeIdLookupHits() {
+        return runtimeIdHits.sum();
+    }
+
+    /**
+     * Gets how many runtime uuid lookups found nothing (e.g clicked a removed shop's control panel)
+     *
+     * @return The miss count
+     */
+    public long getRuntimeIdLookupMisses() {
+        return runtimeIdMisses.sum();
     }
 
     /**
@@ -571,36 +737,41 @@ public class ShopManager {
     /**
      * Get a players all shops.
      *
-     * <p>Make sure you have caching this, because this need a while to get player's all shops
-     *
      * @param playerUUID The player's uuid.
      * @return The list have this player's all shops.
      */
     public @NotNull List<Shop> getPlayerAllShops(@NotNull UUID playerUUID) {
-        final List<Shop> playerShops = new ArrayList<>(10);
-        for (final Shop shop : getAllShops()) {
-            if (shop.getOwner().equals(playerUUID)) {
-                playerShops.add(shop);
-            }
+        materialize(dormantShops.ownedBy(playerUUID));
+        return new ArrayList<>(getIndexedShops(ownerIndex, playerUUID));
+    }
+
+    /**
+     * Get the shops that player is a staff of.
+     *
+     * @param playerUUID The player's uuid.
+     * @return The list have the shops this player is a staff of.
+     */
+    public @NotNull List<Shop> getPlayerStaffShops(@NotNull UUID playerUUID) {
+        if (!dormantShops.isEmpty()) {
+            materialize(dormantShops.filter(shop -> shop.getModerator().isStaff(playerUUID)));
         }
-        return playerShops;
+        return new ArrayList<>(getIndexedShops(staffIndex, playerUUID));
     }
 
     /**
      * Returns all shops in the whole database, include unloaded.
      *
-     * <p>Make sure you have caching this, because this need a while to get all shops
+     * <p>The list is an immutable snapshot shared by all callers, it only rebuilt after shops changed,
+     * so it is cheap to call and safe to iterate on any thread.
+     * <p>
+     * All dormant shops will be materialized before it returns, use {@link #getShopCount()} if only the count needed.
+     * Called off the main thread, the result may leave the dormant shops out, see {@link #materializeChunk(String, int, int)}.
      *
      * @return All shop in the database
      */
     public @NotNull List<Shop> getAllShops() {
-        final List<Shop> shops = new ArrayList<>();
-        for (final Map<ShopChunk, Map<Location, Shop>> shopMapData : getShops().values()) {
-            for (final Map<Location, Shop> shopData : shopMapData.values()) {
-                shops.addAll(shopData.values());
-            }
-        }
-        return shops;
+        materialize(dormantShops.all());
+        return getShopSnapshot().allShops;
     }
 
     /**
@@ -610,16 +781,386 @@ public class ShopManager {
      * @return The list have this world all shops
      */
     public @NotNull List<Shop> getShopsInWorld(@NotNull World world) {
-        final List<Shop> worldShops = new ArrayList<>();
-        for (final Shop shop : getAllShops()) {
-            Location location = shop.getLocation();
-            if (location.isWorldLoaded()) {
-                if (Objects.equals(location.getWorld(), world)) {
-                    worldShops.add(shop);
+        return getShopsInWorld(world.getName());
+    }
+
+    /**
+     * Get the all shops in the world.
+     *
+     * @param world The world name you want get the shops.
+     * @return The list have this world all shops
+     */
+    public @NotNull List<Shop> getShopsInWorld(@NotNull String world) {
+        materialize(dormantShops.inWorld(world));
+        return getShopSnapshot().worldShops.getOrDefault(world, Collections.emptyList());
+    }
+
+    /**
+     * Gets a spliterator over the current snapshot of all shops (include unloaded).
+     * <p>
+     * It is backed by an array so it splits evenly, and it is immutable so it never throws
+     * ConcurrentModificationException even shops changed while it's running.
+     * Called off the main thread, it may leave the dormant shops out, see {@link #materializeChunk(String, int, int)}.
+     *
+     * @return The spliterator
+     */
+    public @NotNull Spliterator<Shop> spliterator() {
+        materialize(dormantShops.all());
+        return Spliterators.spliterator(getShopSnapshot().shopArray,
+                Spliterator.IMMUTABLE | Spliterator.NONNULL | Spliterator.DISTINCT | Spliterator.ORDERED);
+    }
+
+    /**
+     * Gets a sequential stream of all shops (include unloaded), see {@link #spliterator()}
+     *
+     * @return The stream
+     */
+    public @NotNull Stream<Shop> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Gets a parallel stream of all shops (include unloaded), see {@link #spliterator()}
+     * <p>
+     * The stream runs on the common ForkJoinPool, don't touch the Bukkit world in it.
+     *
+     * @return The stream
+     */
+    public @NotNull Stream<Shop> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * Gets the count of all shops, include the dormant shops
+     *
+     * @return The count
+     */
+    public int getShopCount() {
+        return shopIndex.size() + dormantShops.size();
+    }
+
+    /**
+     * Gets the count of shops in the world, include the dormant shops
+     *
+     * @param world The world name
+     * @return The count
+     */
+    public int getShopCount(@NotNull String world) {
+        LongObjectHashMap<Shop> inWorld = shopIndex.getWorld(world);
+        return (inWorld == null ? 0 : inWorld.size()) + dormantShops.size(world);
+    }
+
+    /**
+     * Gets the count of shops still in their raw database rows
+     *
+     * @return The count
+     */
+    public int getDormantShopCount() {
+        return dormantShops.size();
+    }
+
+    /**
+     * Gets how many dormant shops have been materialized
+     *
+     * @return The count
+     */
+    public long getMaterializedCount() {
+        return materializedCount.sum();
+    }
+
+    /**
+     * Gets how many idle shops have gone dormant
+     *
+     * @return The count
+     */
+    public long getDematerializedCount() {
+        return dematerializedCount.sum();
+    }
+
+    /**
+     * Gets how many times the dormant shops were left out of a result, because the main thread
+     * didn't materialize them in time for an off-main caller
+     * <p>
+     * Compare it before and after the call to know whether the result is partial.
+     *
+     * @return The count
+     */
+    public long getPartialResultCount() {
+        return partialResultCount.sum();
+    }
+
+    /**
+     * Keep the shop as a raw database row, it will be materialized when its chunk loaded or someone asks for it
+     *
+     * @param raw       The database row
+     * @param moderator The moderator deserialized from the row
+     */
+    void addDormantShop(@NotNull ShopLoader.ShopRawDatabaseInfo raw, @NotNull ShopModerator moderator) {
+        dormantShops.add(new DormantShopStore.DormantShop(raw, moderator));
+    }
+
+    /**
+     * Materialize the dormant shops in the chunk, call shop.onLoad by yourself
+     * <p>
+     * The shops are always materialized on the main thread. Called from another thread, it waits for the main thread
+     * to materialize them, if the main thread doesn't respond in time (e.g it is waiting for the calling thread,
+     * or the server is stopping) the dormant shops are left out and this returns an empty list, a warning is logged
+     * and {@link #getPartialResultCount()} is bumped. All the methods materializing the dormant shops follow this.
+     *
+     * @param world  The world name
+     * @param chunkX The chunk x
+     * @param chunkZ The chunk z
+     * @return The shops materialized
+     */
+    public @NotNull List<Shop> materializeChunk(@NotNull String world, int chunkX, int chunkZ) {
+        if (dormantShops.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return materialize(dormantShops.inChunk(world, chunkX, chunkZ));
+    }
+
+    /**
+     * Materialize the dormant shops in the chunks around the location, e.g before searching shops nearby
+     *
+     * @param center The center
+     * @param radius The radius in blocks
+     */
+    public void materializeAround(@NotNull Location center, double radius) {
+        World world = center.getWorld();
+        if (dormantShops.isEmpty() || world == null) {
+            return;
+        }
+        int minX = (int) Math.floor(center.getX() - radius) >> 4;
+        int maxX = (int) Math.floor(center.getX() + radius) >> 4;
+        int minZ = (int) Math.floor(center.getZ() - radius) >> 4;
+        int maxZ = (int) Math.floor(center.getZ() + radius) >> 4;
+        for (int x = minX; x <= maxX; x++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                if (dormantShops.hasChunk(world.getName(), x, z)) {
+                    materializeChunk(world.getName(), x, z);
+                }
+            }
+        }
+    }
+
+    /**
+     * Materialize the dormant shops in the loaded chunks, the chunks may loaded before their shops added
+     *
+     * @return The shops materialized
+     */
+    @NotNull List<Shop> materializeLoadedChunks() {
+        Util.ensureThread(false);
+        if (dormantShops.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Shop> materialized = new ArrayList<>();
+        for (World world : plugin.getServer().getWorlds()) {
+            for (Chunk chunk : world.getLoadedChunks()) {
+                if (dormantShops.hasChunk(world.getName(), chunk.getX(), chunk.getZ())) {
+                    materialized.addAll(materializeChunk(world.getName(), chunk.getX(), chunk.getZ()));
+                }
+            }
+        }
+        return materialized;
+    }
+
+    private void materializeAt(@NotNull Location loc) {
+        World world = loc.getWorld();
+        if (dormantShops.isEmpty() || world == null) {
+            return;
+        }
+        DormantShopStore.DormantShop dormant = dormantShops.get(world.getName(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+        if (dormant != null) {
+            materialize(Collections.singletonList(dormant));
+        }
+    }
+
+    private @NotNull List<Shop> materialize(@NotNull List<DormantShopStore.DormantShop> dormants) {
+        if (dormants.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (!plugin.getServer().isPrimaryThread()) {
+            return materializeOnMainThread(dormants);
+        }
+        List<Shop> materialized = new ArrayList<>(dormants.size());
+        for (DormantShopStore.DormantShop dormant : dormants) {
+            // Already materialized since the snapshot taken, or it is being materialized right now (re-entered)
+            if (!dormantShops.contains(dormant) || !materializing.add(dormant)) {
+                continue;
+            }
+            try {
+                Shop shop = plugin.getShopLoader().materialize(dormant.getRaw());
+                // Leave the row until the shop is in memory, a failed one stays dormant and will be retried
+                if (shop != null) {
+                    dormantShops.remove(dormant);
+                    materialized.add(shop);
+                }
+            } finally {
+                materializing.remove(dormant);
+            }
+        }
+        materializedCount.add(materialized.size());
+        if (dormants.size() > 1) {
+            Util.debugLog("Materialized " + materialized.size() + " dormant shops.");
+        }
+        return materialized;
+    }
+
+    private @NotNull List<Shop> materializeOnMainThread(@NotNull List<DormantShopStore.DormantShop> dormants) {
+        Future<List<Shop>> future;
+        try {
+            future = plugin.getServer().getScheduler().callSyncMethod(plugin, () -> materialize(dormants));
+        } catch (RuntimeException e) {
+            // Plugin disabled, nobody will run it
+            return leaveOut(dormants, e);
+        }
+        try {
+            return future.get(MATERIALIZE_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            return leaveOut(dormants, e);
+        } catch (ExecutionException | TimeoutException e) {
+            future.cancel(false);
+            return leaveOut(dormants, e);
+        }
+    }
+
+    private @NotNull List<Shop> leaveOut(@NotNull List<DormantShopStore.DormantShop> dormants, @NotNull Exception reason) {
+        partialResultCount.increment();
+        plugin.getLogger().warning("Failed to materialize " + dormants.size() + " dormant shops on the main thread ("
+                + reason + "), they are left out of the result on thread " + Thread.currentThread().getName() + ".");
+        return Collections.emptyList();
+    }
+
+    /**
+     * Mark the chunk unloaded, its shops may go dormant after the idle time
+     *
+     * @param chunk The chunk
+     */
+    public void markChunkUnloaded(@NotNull Chunk chunk) {
+        if (lazyLoad) {
+            unloadedChunks.put(new ShopChunk(chunk.getWorld().getName(), chunk.getX(), chunk.getZ()), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Mark the chunk loaded, its shops won't go dormant
+     *
+     * @param chunk The chunk
+     */
+    public void markChunkLoaded(@NotNull Chunk chunk) {
+        if (!unloadedChunks.isEmpty()) {
+            unloadedChunks.remove(new ShopChunk(chunk.getWorld().getName(), chunk.getX(), chunk.getZ()));
+        }
+    }
+
+    /**
+     * Turn the shops in the chunks unloaded longer than idle time back to raw database rows.
+     * The shops have unsaved changes or in the middle of a trade stay in memory and will be tried again later.
+     *
+     * @param idleMillis The idle time
+     * @return The count of shops went dormant
+     */
+    public int dematerializeIdleChunks(long idleMillis) {
+        Util.ensureThread(false);
+        if (unloadedChunks.isEmpty()) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        Set<Location> trading = new HashSet<>();
+        for (Info info : actions.values()) {
+            trading.add(info.getLocation());
+        }
+        List<Shop> dematerialized = new ArrayList<>();
+        Iterator<Map.Entry<ShopChunk, Long>> iterator = unloadedChunks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ShopChunk, Long> entry = iterator.next();
+            if (now - entry.getValue() < idleMillis) {
+                continue;
+            }
+            ShopChunk shopChunk = entry.getKey();
+            World world = plugin.getServer().getWorld(shopChunk.getWorld());
+            Shop[] inChunk = shopIndex.getChunk(shopChunk.getWorld(), shopChunk.getX(), shopChunk.getZ());
+            if (world == null || world.isChunkLoaded(shopChunk.getX(), shopChunk.getZ()) || inChunk.length == 0) {
+                iterator.remove();
+                continue;
+            }
+            boolean retry = false;
+            // The array is a snapshot, removing the shops doesn't affect it
+            for (Shop shop : inChunk) {
+                if (shop.isDeleted()) {
+                    continue;
                 }
+                if (shop.isLoaded() || shop.isDirty() || trading.contains(shop.getLocation())) {
+                    retry = true;
+                    continue;
+                }
+                // The binary item is smaller and faster to materialize again
+                byte[] itemData = Util.serializeBinary(shop.getItem());
+                ShopLoader.ShopRawDatabaseInfo raw = new ShopLoader.ShopRawDatabaseInfo(
+                        shop.getLocation().getBlockX(),
+                        shop.getLocation().getBlockY(),
+                        shop.getLocation().getBlockZ(),
+                        shopChunk.getWorld(),
+                        itemData == null ? Util.serialize(shop.getItem()) : "",
+                        ShopModerator.serialize(shop.getModerator()),
+                        shop.getPrice(),
+                        shop.getShopType().toID(),
+                        shop.isUnlimited(),
+                        shop.saveExtraToYaml());
+                raw.setItemData(itemData);
+                removeShop(shop);
+                addDormantShop(raw, shop.getModerator().clone());
+                dematerialized.add(shop);
+            }
+            if (!retry) {
+                iterator.remove();
             }
         }
-        return worldShops;
+        if (!dematerialized.isEmpty()) {
+            plugin.getShopLoader().forgetShops(dematerialized);
+            dematerializedCount.add(dematerialized.size());
+        }
+        return dematerialized.size();
+    }
+
+    /**
+     * Gets the version of shops, it changes after any shop added or removed.
+     *
+     * @return The version
+     */
+    public long getShopsVersion() {
+        return shopsVersion.get();
+    }
+
+    private @NotNull ShopSnapshot getShopSnapshot() {
+        ShopSnapshot snapshot = this.shopSnapshot;
+        if (snapshot.version == shopsVersion.get()) {
+            return snapshot;
+        }
+        synchronized (this.shopsVersion) {
+            snapshot = this.shopSnapshot;
+            // Read version before copying, a mutation while copying makes it outdated again
+            long version = shopsVersion.get();
+            if (snapshot.version == version) {
+                return snapshot;
+            }
+            List<Shop> allShops = new ArrayList<>();
+            Map<String, List<Shop>> worldShops = new HashMap<>();
+            shopIndex.forEachWorld((world, table) -> {
+                if (table.isEmpty()) {
+                    return;
+                }
+                List<Shop> shops = table.values();
+                allShops.addAll(shops);
+                worldShops.put(world, Collections.unmodifiableList(shops));
+            });
+            Shop[] array = allShops.toArray(new Shop[0]);
+            snapshot = new ShopSnapshot(version, array, Collections.unmodifiableList(Arrays.asList(array)), Collections.unmodifiableMap(worldShops));
+            this.shopSnapshot = snapshot;
+            return snapshot;
+        }
     }
 
     public void actionBuy(
@@ -641,7 +1182,7 @@ public class ShopManager {
             MsgUtil.sendMessage(buyer, "shop-has-no-space", Integer.toString(space), Util.getItemStackName(shop.getItem()));
             return;
         }
-        int count = Util.countItems(buyerInventory, shop.getItem());
+        int count = scanInventory(buyerInventory, shop).getTotalAmount() / shop.getItem().getAmount();
         // Not enough items
         if (amount > count) {
             MsgUtil.sendMessage(buyer,
@@ -1011,7 +1552,7 @@ public class ShopManager {
             MsgUtil.sendMessage(seller, "negative-amount");
             return;
         }
-        int pSpace = Util.countSpace(sellerInventory, shop.getItem());
+        int pSpace = scanInventory(sellerInventory, shop).getFreeSpace() / shop.getItem().getAmount();
         if (amount > pSpace) {
             MsgUtil.sendMessage(seller, "not-enough-space", String.valueOf(pSpace));
             return;
@@ -1165,9 +1706,10 @@ public class ShopManager {
             } else {
                 if (message.equalsIgnoreCase(
                         plugin.getConfig().getString("shop.word-for-trade-all-items", "all"))) {
-                    int shopHaveSpaces =
-                            Util.countSpace(((ContainerShop) shop).getInventory(), shop.getItem());
-                    int invHaveItems = Util.countItems(p.getInventory(), shop.getItem());
+                    int shopHaveSpaces = shop.isUnlimited()
+                            ? Util.countSpace(((ContainerShop) shop).getInventory(), shop.getItem())
+                            : shop.getRemainingSpace();
+                    int invHaveItems = scanInventory(p.getInventory(), shop).getTotalAmount() / shop.getItem().getAmount();
                     // Check if shop owner has enough money
                     double ownerBalance = eco
                             .getBalance(shop.getOwner(), shop.getLocation().getWorld(),
@@ -1184,7 +1726,7 @@ public class ShopManager {
                         amount = Math.min(shopHaveSpaces, invHaveItems);
                         amount = Math.min(amount, ownerCanAfford);
                     } else {
-                        amount = Util.countItems(p.getInventory(), shop.getItem());
+                        amount = invHaveItems;
                         // even if the shop is unlimited, the config option pay-unlimited-shop-owners is set to
                         // true,
                         // the unlimited shop owner should have enough money.
@@ -1235,15 +1777,16 @@ public class ShopManager {
             } else {
                 if (message.equalsIgnoreCase(
                         plugin.getConfig().getString("shop.word-for-trade-all-items", "all"))) {
-                    int shopHaveItems = Util
-                            .countItems(((ContainerShop) shop).getInventory(), shop.getItem());
-                    int invHaveSpaces = Util.countSpace(p.getInventory(), shop.getItem());
+                    int shopHaveItems = shop.isUnlimited()
+                            ? Util.countItems(((ContainerShop) shop).getInventory(), shop.getItem())
+                            : shop.getRemainingStock();
+                    int invHaveSpaces = scanInventory(p.getInventory(), shop).getFreeSpace() / shop.getItem().getAmount();
                     if (!shop.isUnlimited()) {
                         amount = Math.min(shopHaveItems, invHaveSpaces);
                     } else {
                         // should check not having items but having empty slots, cause player is trying to buy
                         // items from the shop.
-                        amount = Util.countSpace(p.getInventory(), shop.getItem());
+                        amount = invHaveSpaces;
                     }
                     // typed 'all', check if player has enough money than price * amount
                     double price = shop.getPrice();
@@ -1331,6 +1874,21 @@ public class ShopManager {
         return shop;
     }
 
+    /**
+     * Scan the inventory with shop item in one pass, reuse the shop's fingerprint if possible
+     *
+     * @param inventory The inventory
+     * @param shop      The shop
+     * @return The scan result, amounts are not divided by shop item amount
+     */
+    private @NotNull ItemScanResult scanInventory(@NotNull Inventory inventory, @NotNull Shop shop) {
+        ItemMatcher matcher = plugin.getItemMatcher();
+        ItemFingerprint fingerprint = shop instanceof ContainerShop
+                ? ((ContainerShop) shop).getItemFingerprint()
+                : matcher.fingerprint(shop.getItem());
+        return matcher.scan(fingerprint, inventory.getStorageContents());
+    }
+
     /**
      * Change the owner to unlimited shop owner.
      * It defined in configuration.
@@ -1340,16 +1898,85 @@ public class ShopManager {
         shop.setSignText();
     }
 
-    public class ShopIterator implements Iterator<Shop> {
+    /**
+     * Immutable view of all shops at a specific version, shared by all readers
+     */
+    @AllArgsConstructor
+    private static class ShopSnapshot {
+        private final long version;
+        private final Shop[] shopArray;
+        private final List<Shop> allShops;
+        private final Map<String, List<Shop>> worldShops;
+    }
 
-        private final Iterator<Map<ShopChunk, Map<Location, Shop>>> worlds;
+    /* Unmodifiable Location - Shop view over the shops of a chunk in the index */
+    private static class ChunkShopMap extends AbstractMap<Location, Shop> {
+        private final Shop[] shops;
 
-        private Iterator<Map<Location, Shop>> chunks;
+        private ChunkShopMap(@NotNull Shop[] shops) {
+            this.shops = shops;
+        }
 
-        private Iterator<Shop> shops;
+        @Override
+        public int size() {
+            return shops.length;
+        }
+
+        @Override
+        public @Nullable Shop get(Object key) {
+            // A chunk only has a few shops, scanning is cheaper than hashing the locations
+            for (Shop shop : shops) {
+                if (shop.getLocation().equals(key)) {
+                    return shop;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public @NotNull Set<Entry<Location, Shop>> entrySet() {
+            return new AbstractSet<Entry<Location, Shop>>() {
+                @Override
+                public @NotNull Iterator<Entry<Location, Shop>> iterator() {
+                    return new Iterator<Entry<Location, Shop>>() {
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < shops.length;
+                        }
+
+                        @Override
+                        public Entry<Location, Shop> next() {
+                            if (next >= shops.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Shop shop = shops[next++];
+                            return new SimpleImmutableEntry<>(shop.getLocation(), shop);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return shops.length;
+                }
+            };
+        }
+    }
+
+    public class ShopIterator implements Iterator<Shop> {
+
+        private final Iterator<Shop> shops;
 
         public ShopIterator() {
-            worlds = getShops().values().iterator();
+            // The snapshot only rebuilt after shops changed, it never throws ConcurrentModificationException
+            shops = getShopSnapshot().allShops.iterator();
         }
 
         /**
@@ -1357,20 +1984,7 @@ public class ShopManager {
          */
         @Override
         public boolean hasNext() {
-            if (shops == null || !shops.hasNext()) {
-                if (chunks == null || !chunks.hasNext()) {
-                    if (!worlds.hasNext()) {
-                        return false;
-                    } else {
-                        chunks = worlds.next().values().iterator();
-                        return hasNext();
-                    }
-                } else {
-                    shops = chunks.next().values().iterator();
-                    return hasNext();
-                }
-            }
-            return true;
+            return shops.hasNext();
         }
 
         /**
@@ -1378,17 +1992,8 @@ public class ShopManager {
          */
         @Override
         public @NotNull Shop next() {
-            if (shops == null || !shops.hasNext()) {
-                if (chunks == null || !chunks.hasNext()) {
-                    if (!worlds.hasNext()) {
-                        throw new NoSuchElementException("No more shops to iterate over!");
-                    }
-                    chunks = worlds.next().values().iterator();
-                }
-                shops = chunks.next().values().iterator();
-            }
             if (!shops.hasNext()) {
-                return this.next(); // Skip to the next one (Empty iterator?)
+                throw new NoSuchElementException("No more shops to iterate over!");
             }
             return shops.next();
         }
@@ -275,6 +275,8 @@ public class VirtualDisplayItem extends DisplayItem {
                         //chunk z
                         int z = integerStructureModifier.read(1);
 
+                        plugin.getSignUpdateWatcher().onChunkSent(player.getWorld().getName(), x, z);
+
                         chunksMapping.computeIfPresent(new ShopChunk(player.getWorld().getName(), x, z), (chunkLocation, targetList) -> {
                             for (VirtualDisplayItem target : targetList) {
                                 if (!target.shop.isLoaded() || !target.isDisplay || target.shop.isLeftShop()) {
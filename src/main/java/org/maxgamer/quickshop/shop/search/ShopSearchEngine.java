@@ -0,0 +1,186 @@
+/*
+ * This file is a part of project QuickShop, the name is ShopSearchEngine.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.maxgamer.quickshop.shop.search;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+import org.maxgamer.quickshop.shop.Shop;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Search shops by item keyword around a location.
+ * <p>
+ * The query plan picks the smaller candidate source, the item token index or the spatial grid,
+ * and streams the candidates into a top-K collector so only the nearest matched shops survive.
+ */
+public class ShopSearchEngine {
+    private final ShopSpatialIndex spatialIndex = new ShopSpatialIndex();
+
+    private final ShopTokenIndex tokenIndex;
+
+    /* Used to build the token index at first search, item names need the i18n loaded */
+    private final Supplier<Iterator<Shop>> allShops;
+
+    private volatile boolean tokenIndexBuilt = false;
+
+    public ShopSearchEngine(@NotNull Supplier<Iterator<Shop>> allShops) {
+        this(allShops, new ShopTokenIndex());
+    }
+
+    /**
+     * Create a search engine with a custom tokenizer
+     *
+     * @param allShops  All shops, used to build the token index
+     * @param tokenizer Shop to its lowercase item tokens
+     */
+    ShopSearchEngine(@NotNull Supplier<Iterator<Shop>> allShops, @NotNull Function<Shop, String[]> tokenizer) {
+        this(allShops, new ShopTokenIndex(tokenizer));
+    }
+
+    private ShopSearchEngine(@NotNull Supplier<Iterator<Shop>> allShops, @NotNull ShopTokenIndex tokenIndex) {
+        this.allShops = allShops;
+        this.tokenIndex = tokenIndex;
+    }
+
+    public synchronized void add(@NotNull String world, @NotNull Shop shop) {
+        spatialIndex.add(world, shop);
+        if (tokenIndexBuilt) {
+            tokenIndex.add(shop);
+        }
+    }
+
+    public synchronized void remove(@NotNull String world, @NotNull Shop shop) {
+        spatialIndex.remove(world, shop);
+        if (tokenIndexBuilt) {
+            tokenIndex.remove(shop);
+        }
+    }
+
+    /**
+     * Re-tokenize the shop after its item changed
+     *
+     * @param shop The shop
+     */
+    public synchronized void updateItem(@NotNull Shop shop) {
+        if (tokenIndexBuilt) {
+            tokenIndex.update(shop);
+        }
+    }
+
+    public synchronized void clear() {
+        spatialIndex.clear();
+        tokenIndex.clear();
+        tokenIndexBuilt = false;
+    }
+
+    /**
+     * Drop the token index, it will be rebuilt at next search (e.g the language changed)
+     */
+    public synchronized void invalidateTokens() {
+        tokenIndex.clear();
+        tokenIndexBuilt = false;
+    }
+
+    private synchronized void ensureTokenIndex() {
+        if (tokenIndexBuilt) {
+            return;
+        }
+        Iterator<Shop> iterator = allShops.get();
+        while (iterator.hasNext()) {
+            tokenIndex.add(iterator.next());
+        }
+        tokenIndexBuilt = true;
+    }
+
+    /**
+     * Search the nearest shops which trading the item matches the keyword
+     *
+     * @param center     The center location
+     * @param radius     The max distance
+     * @param keyword    The keyword, matches localized item name or material name
+     * @param limit      The max results
+     * @param loadedOnly Only search in loaded shops
+     * @param filter     Extra filter, only called on shops that can enter the result
+     * @return The results sorted by distance, nearest first, score is the distance
+     */
+    @NotNull
+    public List<TopKCollector.Scored<Shop>> search(@NotNull Location center, double radius, @NotNull String keyword, int limit,
+                                                   boolean loadedOnly, @NotNull Predicate<Shop> filter) {
+        World world = Objects.requireNonNull(center.getWorld());
+        String worldName = world.getName();
+        String lowerKeyword = keyword.toLowerCase();
+        ensureTokenIndex();
+        TopKCollector<Shop> collector = new TopKCollector<>(limit);
+        double cx = center.getX();
+        double cy = center.getY();
+        double cz = center.getZ();
+        double radiusSquared = radius * radius;
+        Consumer<Shop> distanceCheck = shop -> {
+            if (loadedOnly && !shop.isLoaded()) {
+                return;
+            }
+            Location location = shop.getLocation();
+            double dx = location.getX() - cx;
+            double dy = location.getY() - cy;
+            double dz = location.getZ() - cz;
+            double distanceSquared = dx * dx + dy * dy + dz * dz;
+            if (distanceSquared <= radiusSquared) {
+                // Collect with squared distance, sqrt only for the survivors
+                collector.offer(shop, distanceSquared, filter);
+            }
+        };
+        if (tokenIndex.count(lowerKeyword) <= spatialIndex.estimateCells(worldName, radius)) {
+            Set<UUID> visited = new HashSet<>();
+            tokenIndex.visit(lowerKeyword, shop -> {
+                if (!visited.add(shop.getRuntimeRandomUniqueId())) {
+                    return;
+                }
+                Location location = shop.getLocation();
+                if (!location.isWorldLoaded() || !worldName.equals(Objects.requireNonNull(location.getWorld()).getName())) {
+                    return;
+                }
+                distanceCheck.accept(shop);
+            });
+        } else {
+            spatialIndex.visit(worldName, cx, cz, radius, shop -> {
+                if (tokenIndex.matches(shop, lowerKeyword)) {
+                    distanceCheck.accept(shop);
+                }
+            });
+        }
+        List<TopKCollector.Scored<Shop>> results = new ArrayList<>(collector.size());
+        for (TopKCollector.Scored<Shop> scored : collector.getResults()) {
+            results.add(new TopKCollector.Scored<>(scored.getElement(), Math.sqrt(scored.getScore())));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is a part of project QuickShop, the name is ShopSpatialIndex.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.maxgamer.quickshop.shop.search;
+
+import com.google.common.collect.Maps;
+import org.bukkit.Location;
+import org.jetbrains.annotations.NotNull;
+import org.maxgamer.quickshop.shop.Shop;
+import org.maxgamer.quickshop.util.LongObjectHashMap;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Per-world uniform grid of shops, one cell per chunk.
+ */
+class ShopSpatialIndex {
+    private final Map<String, LongObjectHashMap<Map<UUID, Shop>>> worlds = Maps.newConcurrentMap();
+
+    private static long cellKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private static int cellX(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int cellZ(long key) {
+        return (int) key;
+    }
+
+    synchronized void add(@NotNull String world, @NotNull Shop shop) {
+        Location location = shop.getLocation();
+        LongObjectHashMap<Map<UUID, Shop>> grid = worlds.computeIfAbsent(world, k -> new LongObjectHashMap<>());
+        long key = cellKey(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+        Map<UUID, Shop> cell = grid.get(key);
+        if (cell == null) {
+            cell = Maps.newConcurrentMap();
+            grid.put(key, cell);
+        }
+        cell.put(shop.getRuntimeRandomUniqueId(), shop);
+    }
+
+    synchronized void remove(@NotNull String world, @NotNull Shop shop) {
+        LongObjectHashMap<Map<UUID, Shop>> grid = worlds.get(world);
+        if (grid == null) {
+            return;
+        }
+        Location location = shop.getLocation();
+        long key = cellKey(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+        Map<UUID, Shop> cell = grid.get(key);
+        if (cell == null) {
+            return;
+        }
+        cell.remove(shop.getRuntimeRandomUniqueId(), shop);
+        if (cell.isEmpty()) {
+            grid.remove(key);
+        }
+    }
+
+    synchronized void clear() {
+        worlds.clear();
+    }
+
+    /**
+     * Visit the shops in the cells which intersect the cube around the center.
+     * The caller still needs to check the exact distance.
+     *
+     * @param world   The world name
+     * @param x       Center x
+     * @param z       Center z
+     * @param radius  The radius
+     * @param visitor The visitor
+     */
+    void visit(@NotNull String world, double x, double z, double radius, @NotNull Consumer<Shop> visitor) {
+        LongObjectHashMap<Map<UUID, Shop>> grid = worlds.get(world);
+        if (grid == null) {
+            return;
+        }
+        int minX = ((int) Math.floor(x - radius)) >> 4;
+        int maxX = ((int) Math.floor(x + radius)) >> 4;
+        int minZ = ((int) Math.floor(z - radius)) >> 4;
+        int maxZ = ((int) Math.floor(z + radius)) >> 4;
+        long cells = (long) (maxX - minX + 1) * (maxZ - minZ + 1);
+        if (cells <= grid.size()) {
+            // Probe the cells in range
+            for (int cx = minX; cx <= maxX; cx++) {
+                for (int cz = minZ; cz <= maxZ; cz++) {
+                    Map<UUID, Shop> cell = grid.get(cellKey(cx, cz));
+                    if (cell != null) {
+                        cell.values().forEach(visitor);
+                    }
+                }
+            }
+        } else {
+            // Huge radius, walk the populated cells instead
+            grid.forEach((key, cell) -> {
+                int cx = cellX(key);
+                int cz = cellZ(key);
+                if (cx >= minX && cx <= maxX && cz >= minZ && cz <= maxZ) {
+                    cell.values().forEach(visitor);
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets how many cells would be visited by the query, used to choose the cheaper query plan
+     *
+     * @param world  The world name
+     * @param radius The radius
+     * @return Cells count
+     */
+    long estimateCells(@NotNull String world, double radius) {
+        LongObjectHashMap<Map<UUID, Shop>> grid = worlds.get(world);
+        if (grid == null) {
+            return 0;
+        }
+        long side = ((long) Math.ceil(radius * 2) >> 4) + 2;
+        return Math.min(side * side, grid.size());
+    }
+}
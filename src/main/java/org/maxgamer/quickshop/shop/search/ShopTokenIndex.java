@@ -0,0 +1,152 @@
+/*
+ * This file is a part of project QuickShop, the name is ShopTokenIndex.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.maxgamer.quickshop.shop.search;
+
+import com.google.common.collect.Maps;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.maxgamer.quickshop.shop.Shop;
+import org.maxgamer.quickshop.util.Util;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Inverted index from item tokens (localized item name and material name, lowercase) to shops.
+ * <p>
+ * There are far less distinct item names than shops, so a keyword lookup scans the
+ * distinct tokens only and touches the shops of matched tokens.
+ */
+class ShopTokenIndex {
+    private final Map<String, Map<UUID, Shop>> tokens = Maps.newConcurrentMap();
+
+    private final Map<UUID, String[]> shopTokens = Maps.newConcurrentMap();
+
+    /* Shop -> its lowercase tokens */
+    private final Function<Shop, String[]> tokenizer;
+
+    ShopTokenIndex() {
+        this(ShopTokenIndex::tokenize);
+    }
+
+    ShopTokenIndex(@NotNull Function<Shop, String[]> tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+
+    @NotNull
+    static String[] tokenize(@NotNull Shop shop) {
+        String name = Util.getItemStackName(shop.getItem()).toLowerCase();
+        String material = shop.getItem().getType().name().toLowerCase();
+        if (name.equals(material)) {
+            return new String[]{name};
+        }
+        return new String[]{name, material};
+    }
+
+    synchronized void add(@NotNull Shop shop) {
+        remove(shop);
+        String[] shopToken = tokenizer.apply(shop);
+        shopTokens.put(shop.getRuntimeRandomUniqueId(), shopToken);
+        for (String token : shopToken) {
+            tokens.computeIfAbsent(token, k -> Maps.newConcurrentMap()).put(shop.getRuntimeRandomUniqueId(), shop);
+        }
+    }
+
+    /**
+     * Re-tokenize the shop if it is indexed
+     *
+     * @param shop The shop
+     */
+    synchronized void update(@NotNull Shop shop) {
+        if (shopTokens.containsKey(shop.getRuntimeRandomUniqueId())) {
+            add(shop);
+        }
+    }
+
+    synchronized void remove(@NotNull Shop shop) {
+        String[] shopToken = shopTokens.remove(shop.getRuntimeRandomUniqueId());
+        if (shopToken == null) {
+            return;
+        }
+        for (String token : shopToken) {
+            tokens.computeIfPresent(token, (k, shops) -> {
+                shops.remove(shop.getRuntimeRandomUniqueId());
+                return shops.isEmpty() ? null : shops;
+            });
+        }
+    }
+
+    synchronized void clear() {
+        tokens.clear();
+        shopTokens.clear();
+    }
+
+    /**
+     * Check the shop have a token which contains the keyword
+     *
+     * @param shop    The shop
+     * @param keyword The keyword, lowercase
+     * @return Matched, false if the shop is not indexed
+     */
+    boolean matches(@NotNull Shop shop, @NotNull String keyword) {
+        @Nullable String[] shopToken = shopTokens.get(shop.getRuntimeRandomUniqueId());
+        if (shopToken == null) {
+            return false;
+        }
+        for (String token : shopToken) {
+            if (token.contains(keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Count the shops which have a token contains the keyword, a shop may be counted twice
+     *
+     * @param keyword The keyword, lowercase
+     * @return The count
+     */
+    int count(@NotNull String keyword) {
+        int count = 0;
+        for (Map.Entry<String, Map<UUID, Shop>> entry : tokens.entrySet()) {
+            if (entry.getKey().contains(keyword)) {
+                count += entry.getValue().size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Visit the shops which have a token contains the keyword, a shop may be visited twice
+     *
+     * @param keyword The keyword, lowercase
+     * @param visitor The visitor
+     */
+    void visit(@NotNull String keyword, @NotNull Consumer<Shop> visitor) {
+        for (Map.Entry<String, Map<UUID, Shop>> entry : tokens.entrySet()) {
+            if (entry.getKey().contains(keyword)) {
+                entry.getValue().values().forEach(visitor);
+            }
+        }
+    }
+}
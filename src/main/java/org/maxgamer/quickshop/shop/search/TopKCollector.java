@@ -0,0 +1,114 @@
+/*
+ * This file is a part of project QuickShop, the name is TopKCollector.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.maxgamer.quickshop.shop.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * Streaming top-K collector, keeps the K elements with lowest score.
+ * The expensive filter only runs for elements that can still enter the result.
+ *
+ * @param <T> The element type
+ */
+public class TopKCollector<T> {
+    private final int limit;
+    private final PriorityQueue<Scored<T>> heap;
+
+    /**
+     * Create a collector
+     *
+     * @param limit The maximum elements to keep, must be positive
+     */
+    public TopKCollector(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        this.limit = limit;
+        // Max heap, head is the worst element we kept
+        this.heap = new PriorityQueue<>(Math.min(limit, 64), Comparator.<Scored<T>>comparingDouble(Scored::getScore).reversed());
+    }
+
+    /**
+     * Check if an element with that score would be accepted
+     *
+     * @param score The score, lower is better
+     * @return Accepted
+     */
+    public boolean accepts(double score) {
+        return heap.size() < limit || score < heap.peek().getScore();
+    }
+
+    /**
+     * Offer an element
+     *
+     * @param element The element
+     * @param score   The score, lower is better
+     * @param filter  The filter, only tested when the element can enter the result
+     * @return Accepted
+     */
+    public boolean offer(@NotNull T element, double score, @NotNull Predicate<? super T> filter) {
+        if (!accepts(score) || !filter.test(element)) {
+            return false;
+        }
+        heap.add(new Scored<>(element, score));
+        if (heap.size() > limit) {
+            heap.poll();
+        }
+        return true;
+    }
+
+    public boolean offer(@NotNull T element, double score) {
+        return offer(element, score, t -> true);
+    }
+
+    public int size() {
+        return heap.size();
+    }
+
+    /**
+     * Gets the results sorted by score, lowest first
+     *
+     * @return The results
+     */
+    @NotNull
+    public List<Scored<T>> getResults() {
+        List<Scored<T>> results = new ArrayList<>(heap);
+        results.sort(Comparator.comparingDouble(Scored::getScore));
+        return Collections.unmodifiableList(results);
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Scored<T> {
+        @NotNull
+        private final T element;
+
+        private final double score;
+    }
+}
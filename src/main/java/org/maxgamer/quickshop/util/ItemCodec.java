@@ -0,0 +1,384 @@
+/*
+ * This file is a part of project QuickShop, the name is ItemCodec.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.maxgamer.quickshop.util;
+
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The binary item format, it stores the same tree as the YAML format (the ConfigurationSerializable maps)
+ * but as tagged values, so no text parsing needed.
+ * <p>
+ * Layout: magic 'Q' | codec version (1 byte) | flags (1 byte) | data version (int) | payload,
+ * the payload is deflated if the flag set.
+ */
+public final class ItemCodec {
+    public static final byte CODEC_VERSION = 1;
+    private static final byte MAGIC = 'Q';
+    private static final int HEADER_SIZE = 7;
+    private static final int FLAG_DEFLATE = 1;
+    /* Small items don't benefit from compression */
+    private static final int COMPRESSION_THRESHOLD = 128;
+    private static final String TYPE_KEY = ConfigurationSerialization.SERIALIZED_TYPE_KEY;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_BOOLEAN = 2;
+    private static final byte TAG_BYTE = 3;
+    private static final byte TAG_SHORT = 4;
+    private static final byte TAG_INT = 5;
+    private static final byte TAG_LONG = 6;
+    private static final byte TAG_FLOAT = 7;
+    private static final byte TAG_DOUBLE = 8;
+    private static final byte TAG_LIST = 9;
+    private static final byte TAG_MAP = 10;
+
+    private ItemCodec() {
+    }
+
+    /**
+     * Check the data is in this format
+     *
+     * @param data The data
+     * @return Is binary item
+     */
+    public static boolean isEncoded(@Nullable byte[] data) {
+        return data != null && data.length >= HEADER_SIZE && data[0] == MAGIC;
+    }
+
+    /**
+     * Gets the data version the item saved with
+     *
+     * @param data The encoded item
+     * @return The data version
+     */
+    public static int getDataVersion(@NotNull byte[] data) {
+        checkHeader(data);
+        return (data[3] & 0xFF) << 24 | (data[4] & 0xFF) << 16 | (data[5] & 0xFF) << 8 | (data[6] & 0xFF);
+    }
+
+    /**
+     * Encode the item
+     *
+     * @param item        The item
+     * @param dataVersion The data version of current server
+     * @param compress    Whether deflate the payload
+     * @return The encoded item
+     * @throws IllegalArgumentException The item contains the values this format doesn't support
+     */
+    @NotNull
+    public static byte[] encode(@NotNull ItemStack item, int dataVersion, boolean compress) {
+        return encodeValue(item, dataVersion, compress);
+    }
+
+    /**
+     * Encode any value this format supports, the item is encoded as its serialized map
+     *
+     * @param value       The value
+     * @param dataVersion The data version of current server
+     * @param compress    Whether deflate the payload
+     * @return The encoded value
+     * @throws IllegalArgumentException The value contains the values this format doesn't support
+     */
+    @NotNull
+    static byte[] encodeValue(@Nullable Object value, int dataVersion, boolean compress) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            writeValue(out, value);
+        } catch (IOException e) {
+            // ByteArrayOutputStream never throws
+            throw new IllegalStateException(e);
+        }
+        byte[] body = payload.toByteArray();
+        int flags = 0;
+        if (compress && body.length >= COMPRESSION_THRESHOLD) {
+            byte[] deflated = deflate(body);
+            if (deflated.length < body.length) {
+                body = deflated;
+                flags |= FLAG_DEFLATE;
+            }
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream(HEADER_SIZE + body.length);
+        result.write(MAGIC);
+        result.write(CODEC_VERSION);
+        result.write(flags);
+        result.write(dataVersion >>> 24);
+        result.write(dataVersion >>> 16);
+        result.write(dataVersion >>> 8);
+        result.write(dataVersion);
+        result.write(body, 0, body.length);
+        return result.toByteArray();
+    }
+
+    /**
+     * Decode the item
+     *
+     * @param data            The encoded item
+     * @param overrideVersion Replace the item data version before deserializing (force load downgrade items), null to keep
+     * @return The item
+     * @throws IOException The data is broken
+     */
+    @NotNull
+    public static ItemStack decode(@NotNull byte[] data, @Nullable Integer overrideVersion) throws IOException {
+        Object item = ConfigurationSerialization.deserializeObject(decodeRoot(data, overrideVersion));
+        if (!(item instanceof ItemStack)) {
+            throw new IOException("The root is not an item");
+        }
+        return (ItemStack) item;
+    }
+
+    /**
+     * Decode the serialized map of the item, without deserializing the root
+     *
+     * @param data            The encoded item
+     * @param overrideVersion Replace the item data version, null to keep
+     * @return The serialized map of the item
+     * @throws IOException The data is broken
+     */
+    @NotNull
+    static Map<String, Object> decodeRoot(@NotNull byte[] data, @Nullable Integer overrideVersion) throws IOException {
+        try (DataInputStream in = openPayload(data)) {
+            if (in.readByte() != TAG_MAP) {
+                throw new IOException("The root is not an item");
+            }
+            Map<String, Object> root = readMap(in);
+            if (overrideVersion != null) {
+                root.put("v", overrideVersion);
+            }
+            return root;
+        }
+    }
+
+    /**
+     * Decode the value encoded by {@link #encodeValue(Object, int, boolean)}
+     *
+     * @param data The encoded value
+     * @return The value
+     * @throws IOException The data is broken
+     */
+    @Nullable
+    static Object decodeValue(@NotNull byte[] data) throws IOException {
+        try (DataInputStream in = openPayload(data)) {
+            return readValue(in);
+        }
+    }
+
+    @NotNull
+    private static DataInputStream openPayload(@NotNull byte[] data) {
+        checkHeader(data);
+        InputStream payload = new ByteArrayInputStream(data, HEADER_SIZE, data.length - HEADER_SIZE);
+        if ((data[2] & FLAG_DEFLATE) != 0) {
+            payload = new InflaterInputStream(payload);
+        }
+        return new DataInputStream(payload);
+    }
+
+    private static void checkHeader(@NotNull byte[] data) {
+        if (!isEncoded(data)) {
+            throw new IllegalArgumentException("Not a binary item");
+        }
+        if (data[1] > CODEC_VERSION) {
+            throw new IllegalArgumentException("Binary item saved by a newer codec version " + data[1]);
+        }
+    }
+
+    private static byte[] deflate(@NotNull byte[] body) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+            out.write(body);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+        return compressed.toByteArray();
+    }
+
+    private static void writeValue(@NotNull DataOutputStream out, @Nullable Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(TAG_BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Short) {
+            out.writeByte(TAG_SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TAG_INT);
+            writeVarInt(out, (Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TAG_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Collection) {
+            Collection<?> list = (Collection<?>) value;
+            out.writeByte(TAG_LIST);
+            writeVarInt(out, list.size());
+            for (Object element : list) {
+                writeValue(out, element);
+            }
+        } else if (value instanceof Map) {
+            out.writeByte(TAG_MAP);
+            writeMap(out, (Map<?, ?>) value);
+        } else if (value instanceof ConfigurationSerializable) {
+            // Same as the YAML representer, a map with the type key
+            ConfigurationSerializable serializable = (ConfigurationSerializable) value;
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put(TYPE_KEY, ConfigurationSerialization.getAlias(serializable.getClass()));
+            map.putAll(serializable.serialize());
+            out.writeByte(TAG_MAP);
+            writeMap(out, map);
+        } else {
+            throw new IllegalArgumentException("Unsupported value type " + value.getClass().getName());
+        }
+    }
+
+    private static void writeMap(@NotNull DataOutputStream out, @NotNull Map<?, ?> map) throws IOException {
+        writeVarInt(out, map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!(entry.getKey() instanceof String)) {
+                throw new IllegalArgumentException("Unsupported key type " + entry.getKey());
+            }
+            writeString(out, (String) entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    @Nullable
+    private static Object readValue(@NotNull DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return readString(in);
+            case TAG_BOOLEAN:
+                return in.readBoolean();
+            case TAG_BYTE:
+                return in.readByte();
+            case TAG_SHORT:
+                return in.readShort();
+            case TAG_INT:
+                return readVarInt(in);
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_FLOAT:
+                return in.readFloat();
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_LIST:
+                int size = readVarInt(in);
+                List<Object> list = new ArrayList<>(Math.min(size, 64));
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            case TAG_MAP:
+                Map<String, Object> map = readMap(in);
+                // Deserialize bottom-up like the YAML constructor does
+                return map.containsKey(TYPE_KEY) ? ConfigurationSerialization.deserializeObject(map) : map;
+            default:
+                throw new IOException("Unknown tag " + tag);
+        }
+    }
+
+    @NotNull
+    private static Map<String, Object> readMap(@NotNull DataInputStream in) throws IOException {
+        int size = readVarInt(in);
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            map.put(key, readValue(in));
+        }
+        return map;
+    }
+
+    private static void writeString(@NotNull DataOutputStream out, @NotNull String value) throws IOException {
+        // writeUTF is limited to 64KB, the book pages may be longer
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    @NotNull
+    private static String readString(@NotNull DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0) {
+            throw new IOException("Negative string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarInt(@NotNull DataOutputStream out, int value) throws IOException {
+        // ZigZag, so small negative numbers stay small
+        int zigZag = (value << 1) ^ (value >> 31);
+        while ((zigZag & ~0x7F) != 0) {
+            out.writeByte((zigZag & 0x7F) | 0x80);
+            zigZag >>>= 7;
+        }
+        out.writeByte(zigZag);
+    }
+
+    private static int readVarInt(@NotNull DataInputStream in) throws IOException {
+        int zigZag = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            zigZag |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigZag >>> 1) ^ -(zigZag & 1);
+            }
+        }
+        throw new IOException("VarInt too long");
+    }
+}
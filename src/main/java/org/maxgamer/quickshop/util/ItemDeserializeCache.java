@@ -0,0 +1,118 @@
+/*
+ * This file is a part of project QuickShop, the name is ItemDeserializeCache.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.maxgamer.quickshop.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A content addressed cache of the deserialized items, the same serialized string only be parsed once.
+ * <p>
+ * Keyed by the SHA-256 of the serialized item, so the cache doesn't keep the strings and a crafted
+ * item can't collide with another one. The cached instances are shared prototypes, never modify them.
+ */
+public class ItemDeserializeCache {
+    private static final HashFunction HASH_FUNCTION = Hashing.sha256();
+    /* The first byte of the key tells the format, the texts and the binaries never collide */
+    private static final byte YAML_FORMAT = 0;
+    private static final byte BINARY_FORMAT = 1;
+
+    private final Cache<HashCode, ItemStack> prototypes;
+
+    /**
+     * @param maximumSize The max distinct items to keep, the least recently used ones will be evicted
+     */
+    public ItemDeserializeCache(long maximumSize) {
+        this.prototypes = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Gets the shared prototype of the serialized item, parse it if not cached
+     *
+     * @param config The serialized item
+     * @param parser The parser used on cache miss
+     * @return The shared prototype, null if the parser returns null (not cached)
+     * @throws InvalidConfigurationException The parser failed
+     */
+    @Nullable
+    public ItemStack getPrototype(@NotNull String config, @NotNull Parser<String> parser) throws InvalidConfigurationException {
+        return getPrototype(HASH_FUNCTION.newHasher().putByte(YAML_FORMAT).putString(config, StandardCharsets.UTF_8).hash(), config, parser);
+    }
+
+    /**
+     * Gets the shared prototype of the binary item, parse it if not cached
+     *
+     * @param data   The binary item
+     * @param parser The parser used on cache miss
+     * @return The shared prototype, null if the parser returns null (not cached)
+     * @throws InvalidConfigurationException The parser failed
+     */
+    @Nullable
+    public ItemStack getPrototype(@NotNull byte[] data, @NotNull Parser<byte[]> parser) throws InvalidConfigurationException {
+        return getPrototype(HASH_FUNCTION.newHasher().putByte(BINARY_FORMAT).putBytes(data).hash(), data, parser);
+    }
+
+    @Nullable
+    private <T> ItemStack getPrototype(@NotNull HashCode key, @NotNull T serialized, @NotNull Parser<T> parser) throws InvalidConfigurationException {
+        ItemStack prototype = prototypes.getIfPresent(key);
+        if (prototype != null) {
+            return prototype;
+        }
+        // Two threads may parse the same item at same time, the later one wins and both are equal
+        prototype = parser.parse(serialized);
+        if (prototype != null) {
+            prototypes.put(key, prototype);
+        }
+        return prototype;
+    }
+
+    public long size() {
+        return prototypes.size();
+    }
+
+    public void clear() {
+        prototypes.invalidateAll();
+    }
+
+    @NotNull
+    public CacheStats getStats() {
+        return prototypes.stats();
+    }
+
+    @FunctionalInterface
+    public interface Parser<T> {
+        @Nullable
+        ItemStack parse(@NotNull T serialized) throws InvalidConfigurationException;
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * This file is a part of project QuickShop, the name is LongObjectHashMap.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.maxgamer.quickshop.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A primitive long keyed open-addressing hash map (linear probing, backward shift deletion).
+ * <p>
+ * Lookups never box the key and never allocate. Writes are serialized, reads are lock-free. Each slot holds
+ * an immutable key-value entry, so a lookup never pairs a key with another key's value. A removal shifts the
+ * entries back and bumps a modification counter before and after, a lookup that missed while the counter
+ * moved is retried under the lock, so a present key is never missed.
+ *
+ * @param <V> The value type, null values are not allowed
+ */
+public class LongObjectHashMap<V> {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private volatile AtomicReferenceArray<Entry<V>> table;
+
+    private int size;
+
+    /* Odd while a removal is shifting the entries back, lookups check it to confirm a miss */
+    private volatile int shifting;
+
+    public LongObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a map which can hold expectedSize entries without resizing
+     *
+     * @param expectedSize The expected entries
+     */
+    public LongObjectHashMap(int expectedSize) {
+        this.table = new AtomicReferenceArray<>(tableSizeFor(expectedSize));
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        // Keep load factor under 0.5, probe chains stay short
+        int capacity = Integer.highestOneBit(Math.max(DEFAULT_CAPACITY, expectedSize * 2 - 1)) << 1;
+        return capacity < 0 ? 1 << 30 : capacity;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Gets the value mapped with key
+     *
+     * @param key The key
+     * @return The value, null if not exists
+     */
+    @Nullable
+    public V get(long key) {
+        int before = this.shifting;
+        Entry<V> entry = find(this.table, key);
+        if (entry != null) {
+            return entry.value;
+        }
+        if ((before & 1) == 0 && before == this.shifting) {
+            return null;
+        }
+        // A removal moved the entries while probing, the key may have been shifted past us
+        synchronized (this) {
+            entry = find(this.table, key);
+            return entry == null ? null : entry.value;
+        }
+    }
+
+    @Nullable
+    private static <V> Entry<V> find(@NotNull AtomicReferenceArray<Entry<V>> t, long key) {
+        int mask = t.length() - 1;
+        int i = mix(key) & mask;
+        Entry<V> entry;
+        while ((entry = t.get(i)) != null) {
+            if (entry.key == key) {
+                return entry;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Put the value into map
+     *
+     * @param key   The key
+     * @param value The value
+     * @return The previous value, null if not exists
+     */
+    @Nullable
+    public synchronized V put(long key, @NotNull V value) {
+        AtomicReferenceArray<Entry<V>> t = this.table;
+        int mask = t.length() - 1;
+        int i = mix(key) & mask;
+        Entry<V> exists;
+        while ((exists = t.get(i)) != null) {
+            if (exists.key == key) {
+                t.set(i, new Entry<>(key, value));
+                return exists.value;
+            }
+            i = (i + 1) & mask;
+        }
+        t.set(i, new Entry<>(key, value));
+        if (++size * 2 > t.length()) {
+            resize(t.length() << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Remove the key from map
+     *
+     * @param key The key
+     * @return The removed value, null if not exists
+     */
+    @Nullable
+    public synchronized V remove(long key) {
+        AtomicReferenceArray<Entry<V>> t = this.table;
+        int mask = t.length() - 1;
+        int i = mix(key) & mask;
+        Entry<V> exists;
+        while ((exists = t.get(i)) != null) {
+            if (exists.key == key) {
+                shifting++;
+                shiftBack(t, i);
+                shifting++;
+                size--;
+                return exists.value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Remove the key from map only if it currently mapped to given value
+     *
+     * @param key   The key
+     * @param value The expected value
+     * @return true if removed
+     */
+    public synchronized boolean remove(long key, @NotNull V value) {
+        Entry<V> exists = find(this.table, key);
+        if (exists == null || exists.value != value) {
+            return false;
+        }
+        remove(key);
+        return true;
+    }
+
+    private void shiftBack(AtomicReferenceArray<Entry<V>> t, int hole) {
+        int mask = t.length() - 1;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            Entry<V> entry = t.get(i);
+            if (entry == null) {
+                break;
+            }
+            int home = mix(entry.key) & mask;
+            // Move the entry if its home slot is not between the hole and current slot (cyclic)
+            if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i)) {
+                // Key and value move together, readers see either the old or the moved entry
+                t.set(hole, entry);
+                hole = i;
+            }
+        }
+        t.set(hole, null);
+    }
+
+    private void resize(int capacity) {
+        AtomicReferenceArray<Entry<V>> old = this.table;
+        AtomicReferenceArray<Entry<V>> fresh = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.length(); j++) {
+            Entry<V> entry = old.get(j);
+            if (entry == null) {
+                continue;
+            }
+            int i = mix(entry.key) & mask;
+            while (fresh.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            fresh.set(i, entry);
+        }
+        this.table = fresh;
+    }
+
+    public synchronized void clear() {
+        this.table = new AtomicReferenceArray<>(DEFAULT_CAPACITY);
+        this.size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Iterate all entries in the current table, it is weakly consistent like the concurrent collections.
+     *
+     * @param consumer The consumer accept key and value
+     */
+    public void forEach(@NotNull EntryConsumer<? super V> consumer) {
+        AtomicReferenceArray<Entry<V>> t = this.table;
+        for (int i = 0; i < t.length(); i++) {
+            Entry<V> entry = t.get(i);
+            if (entry != null) {
+                consumer.accept(entry.key, entry.value);
+            }
+        }
+    }
+
+    /**
+     * Copy all values to a new list
+     *
+     * @return The values
+     */
+    @NotNull
+    public List<V> values() {
+        AtomicReferenceArray<Entry<V>> t = this.table;
+        List<V> list = new ArrayList<>(size);
+        for (int i = 0; i < t.length(); i++) {
+            Entry<V> entry = t.get(i);
+            if (entry != null) {
+                list.add(entry.value);
+            }
+        }
+        return list;
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(long key, @NotNull V value);
+    }
+
+    private static class Entry<V> {
+        private final long key;
+        private final V value;
+
+        private Entry(long key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
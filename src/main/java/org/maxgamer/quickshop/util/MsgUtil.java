@@ -376,6 +376,7 @@ public class MsgUtil {
         } catch (IOException e) {
             plugin.getLogger().log(Level.WARNING, "Could not load/save transaction enchname from enchi18n.yml. Skipping...", e);
         }
+        invalidateItemNames();
     }
 
     /**
@@ -413,6 +414,16 @@ public class MsgUtil {
         } catch (IOException e) {
             plugin.getLogger().log(Level.WARNING, "Could not load/save transaction itemname from itemi18n.yml. Skipping...", e);
         }
+        invalidateItemNames();
+    }
+
+    /**
+     * The item names may be changed, let the shop search rebuild its item name index
+     */
+    private static void invalidateItemNames() {
+        if (plugin.getShopManager() != null) {
+            plugin.getShopManager().getSearchEngine().invalidateTokens();
+        }
     }
 
     public static void loadPotioni18n() {
@@ -594,7 +605,6 @@ public class MsgUtil {
             Util.debugLog("ControlPanel blocked by 3rd-party");
             return;
         }
-        plugin.getShopManager().bakeShopRuntimeRandomUniqueIdCache(shop);
         ChatSheetPrinter chatSheetPrinter = new ChatSheetPrinter(sender);
         chatSheetPrinter.printHeader();
         chatSheetPrinter.printLine(MsgUtil.getMessage("controlpanel.infomation", sender));
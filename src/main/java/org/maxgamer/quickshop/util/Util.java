@@ -51,9 +51,12 @@ import org.bukkit.inventory.meta.ItemMeta;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.maxgamer.quickshop.QuickShop;
+import org.maxgamer.quickshop.database.AbstractDatabaseCore;
 import org.maxgamer.quickshop.database.MySQLCore;
+import org.maxgamer.quickshop.database.SQLiteCore;
 import org.maxgamer.quickshop.shop.DisplayItem;
 import org.maxgamer.quickshop.shop.Shop;
+import org.maxgamer.quickshop.util.matcher.item.ItemFingerprint;
 import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.Yaml;
 
@@ -81,7 +84,17 @@ public class Util {
     @Getter
     private static final Map<String, String> currency2Symbol = new HashMap<>();
     private static int bypassedCustomStackSize = -1;
-    private static Yaml yaml = null;
+    /* Yaml is not thread-safe, the shops are deserialized on many threads */
+    private static final ThreadLocal<Yaml> yaml = ThreadLocal.withInitial(() -> {
+        DumperOptions yamlOptions = new DumperOptions();
+        yamlOptions.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        yamlOptions.setIndent(2);
+        return new Yaml(yamlOptions);
+    });
+    @Getter
+    @Nullable
+    private static volatile ItemDeserializeCache itemCache = null;
+    private static boolean binaryItemCompression = true;
     private static boolean devMode = false;
     private static QuickShop plugin;
     private static Object serverInstance;
@@ -135,7 +148,8 @@ public class Util {
      * @return The result for backup
      */
     public static boolean backupDatabase() {
-        if (plugin.getDatabaseManager().getDatabase() instanceof MySQLCore) {
+        AbstractDatabaseCore database = plugin.getDatabaseManager().getDatabase();
+        if (database instanceof MySQLCore) {
             return true; // Backup and logs by MySQL
         }
         File dataFolder = plugin.getDataFolder();
@@ -147,7 +161,12 @@ public class Util {
         String uuid = UUID.randomUUID().toString().replaceAll("_", "");
         File bksqlfile = new File(dataFolder, "/shops_backup_" + uuid + ".db");
         try {
-            Files.copy(sqlfile.toPath(), bksqlfile.toPath());
+            if (database instanceof SQLiteCore) {
+                // The committed changes may still in the WAL file
+                ((SQLiteCore) database).backup(bksqlfile);
+            } else {
+                Files.copy(sqlfile.toPath(), bksqlfile.toPath());
+            }
         } catch (Exception e1) {
             plugin.getLogger().log(Level.WARNING, "Failed to backup the database", e1);
             return false;
@@ -202,16 +221,22 @@ public class Util {
         if (inv == null) {
             return 0;
         }
-        int items = 0;
-        for (final ItemStack iStack : inv.getStorageContents()) {
-            if (iStack == null || iStack.getType() == Material.AIR) {
-                continue;
-            }
-            if (plugin.getItemMatcher().matches(item, iStack)) {
-                items += iStack.getAmount();
-            }
+        return countItems(inv, item, plugin.getItemMatcher().fingerprint(item));
+    }
+
+    /**
+     * Counts the number of items in the given inventory which matches the fingerprint.
+     *
+     * @param inv         The inventory to search
+     * @param item        The ItemStack to search for
+     * @param fingerprint The fingerprint of item
+     * @return The number of items that match in this inventory.
+     */
+    public static int countItems(@Nullable Inventory inv, @NotNull ItemStack item, @NotNull ItemFingerprint fingerprint) {
+        if (inv == null) {
+            return 0;
         }
-        return items / item.getAmount();
+        return plugin.getItemMatcher().scan(fingerprint, inv.getStorageContents()).getTotalAmount() / item.getAmount();
     }
 
     /**
@@ -226,17 +251,22 @@ public class Util {
         if (inv == null) {
             return 0;
         }
-        int space = 0;
-        int itemMaxStackSize = getItemMaxStackSize(item.getType());
-        ItemStack[] contents = inv.getStorageContents();
-        for (final ItemStack iStack : contents) {
-            if (iStack == null || iStack.getType() == Material.AIR) {
-                space += itemMaxStackSize;
-            } else if (plugin.getItemMatcher().matches(item, iStack)) {
-                space += iStack.getAmount() >= itemMaxStackSize ? 0 : itemMaxStackSize - iStack.getAmount();
-            }
+        return countSpace(inv, item, plugin.getItemMatcher().fingerprint(item));
+    }
+
+    /**
+     * Returns the number of items that can be given to the inventory safely.
+     *
+     * @param inv         The inventory to count
+     * @param item        The item prototype
+     * @param fingerprint The fingerprint of item
+     * @return The number of items that can be given to the inventory safely.
+     */
+    public static int countSpace(@Nullable Inventory inv, @NotNull ItemStack item, @NotNull ItemFingerprint fingerprint) {
+        if (inv == null) {
+            return 0;
         }
-        return space / item.getAmount();
+        return plugin.getItemMatcher().scan(fingerprint, inv.getStorageContents()).getFreeSpace() / item.getAmount();
     }
 
     /**
@@ -258,12 +288,30 @@ public class Util {
      */
     @Nullable
     public static ItemStack deserialize(@NotNull String config) throws InvalidConfigurationException {
-        if (yaml == null) {
-            DumperOptions yamlOptions = new DumperOptions();
-            yamlOptions.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
-            yamlOptions.setIndent(2);
-            yaml = new Yaml(yamlOptions); //Caching it!
+        ItemStack prototype = deserializePrototype(config);
+        return prototype == null ? null : prototype.clone();
+    }
+
+    /**
+     * Covert YAML string to ItemStack, the same string only be parsed once.
+     * It returns the shared instance in the cache, never modify it, clone it if you need to.
+     *
+     * @param config serialized ItemStack
+     * @return The shared ItemStack
+     * @throws InvalidConfigurationException when failed deserialize config
+     */
+    @Nullable
+    public static ItemStack deserializePrototype(@NotNull String config) throws InvalidConfigurationException {
+        ItemDeserializeCache cache = itemCache;
+        if (cache == null) {
+            return deserializeYaml(config);
         }
+        return cache.getPrototype(config, Util::deserializeYaml);
+    }
+
+    @Nullable
+    private static ItemStack deserializeYaml(@NotNull String config) throws InvalidConfigurationException {
+        Yaml yaml = Util.yaml.get();
         YamlConfiguration yamlConfiguration = new YamlConfiguration();
         Map<Object, Object> root = yaml.load(config);
         //noinspection unchecked
@@ -271,36 +319,13 @@ public class Util {
         int itemDataVersion = Integer.parseInt(String.valueOf(item.getOrDefault("v", "0")));
         try {
             // Try load the itemDataVersion to do some checks.
-            //noinspection deprecation
-            if (itemDataVersion > Bukkit.getUnsafe().getDataVersion()) {
-                Util.debugLog("WARNING: DataVersion not matched with ItemStack: " + config);
-                // okay we need some things to do
-                if (plugin.getConfig().getBoolean("shop.force-load-downgrade-items.enable")) {
-                    // okay it enabled
-                    Util.debugLog("QuickShop is trying force loading " + config);
-                    if (plugin.getConfig().getInt("shop.force-load-downgrade-items.method") == 0) { // Mode 0
-                        //noinspection deprecation
-                        item.put("v", Bukkit.getUnsafe().getDataVersion() - 1);
-                    } else { // Mode other
-                        //noinspection deprecation
-                        item.put("v", Bukkit.getUnsafe().getDataVersion());
-                    }
-                    // Okay we have hacked the dataVersion, now put it back
-                    root.put("item", item);
-                    config = yaml.dump(root);
-                    Util.debugLog("Updated, we will try load as hacked ItemStack: " + config);
-                } else {
-                    plugin
-                            .getLogger()
-                            .warning(
-                                    "Cannot load ItemStack "
-                                            + config
-                                            + " because it saved from higher Minecraft server version, the action will fail and you will receive a exception, PLELASE DON'T REPORT TO QUICKSHOP!");
-                    plugin
-                            .getLogger()
-                            .warning(
-                                    "You can try force load this ItemStack by our hacked ItemStack read util(shop.force-load-downgrade-items), but beware, the data may damaged if you load on this lower Minecraft server version, Please backup your world and database before enable!");
-                }
+            Integer overrideVersion = getDowngradeDataVersion(itemDataVersion, config);
+            if (overrideVersion != null) {
+                // Okay we have hacked the dataVersion, now put it back
+                item.put("v", overrideVersion);
+                root.put("item", item);
+                config = yaml.dump(root);
+                Util.debugLog("Updated, we will try load as hacked ItemStack: " + config);
             }
             yamlConfiguration.loadFromString(config);
             return yamlConfiguration.getItemStack("item");
@@ -309,6 +334,100 @@ public class Util {
         }
     }
 
+    /**
+     * Check the item saved from a higher Minecraft server version, and decide the DataVersion to force load it
+     * by shop.force-load-downgrade-items
+     *
+     * @param itemDataVersion The DataVersion the item saved with
+     * @param description     The item to show in the logs
+     * @return The DataVersion to load the item as, null if it can be loaded as it is (or force loading disabled)
+     */
+    @Nullable
+    private static Integer getDowngradeDataVersion(int itemDataVersion, @NotNull String description) {
+        //noinspection deprecation
+        int serverDataVersion = Bukkit.getUnsafe().getDataVersion();
+        if (itemDataVersion <= serverDataVersion) {
+            return null;
+        }
+        Util.debugLog("WARNING: DataVersion not matched with ItemStack: " + description);
+        // okay we need some things to do
+        if (plugin.getConfig().getBoolean("shop.force-load-downgrade-items.enable")) {
+            // okay it enabled
+            Util.debugLog("QuickShop is trying force loading " + description);
+            // Mode 0 or mode other
+            return plugin.getConfig().getInt("shop.force-load-downgrade-items.method") == 0 ? serverDataVersion - 1 : serverDataVersion;
+        }
+        plugin
+                .getLogger()
+                .warning(
+                        "Cannot load ItemStack "
+                                + description
+                                + " because it saved from higher Minecraft server version, the action will fail and you will receive a exception, PLELASE DON'T REPORT TO QUICKSHOP!");
+        plugin
+                .getLogger()
+                .warning(
+                        "You can try force load this ItemStack by our hacked ItemStack read util(shop.force-load-downgrade-items), but beware, the data may damaged if you load on this lower Minecraft server version, Please backup your world and database before enable!");
+        return null;
+    }
+
+    /**
+     * Covert binary item to ItemStack, the legacy YAML items are handled by {@link #deserialize(String)}
+     *
+     * @param data The binary item, see {@link ItemCodec}
+     * @return ItemStack iStack
+     * @throws InvalidConfigurationException when failed deserialize data
+     */
+    @Nullable
+    public static ItemStack deserialize(@NotNull byte[] data) throws InvalidConfigurationException {
+        ItemStack prototype = deserializePrototype(data);
+        return prototype == null ? null : prototype.clone();
+    }
+
+    /**
+     * Covert binary item to ItemStack, the same data only be decoded once.
+     * It returns the shared instance in the cache, never modify it, clone it if you need to.
+     *
+     * @param data The binary item, see {@link ItemCodec}
+     * @return The shared ItemStack
+     * @throws InvalidConfigurationException when failed deserialize data
+     */
+    @Nullable
+    public static ItemStack deserializePrototype(@NotNull byte[] data) throws InvalidConfigurationException {
+        ItemDeserializeCache cache = itemCache;
+        if (cache == null) {
+            return deserializeBinary(data);
+        }
+        return cache.getPrototype(data, Util::deserializeBinary);
+    }
+
+    @NotNull
+    private static ItemStack deserializeBinary(@NotNull byte[] data) throws InvalidConfigurationException {
+        try {
+            int itemDataVersion = ItemCodec.getDataVersion(data);
+            Integer overrideVersion = getDowngradeDataVersion(itemDataVersion, "binary item with DataVersion " + itemDataVersion);
+            return ItemCodec.decode(data, overrideVersion);
+        } catch (Exception e) {
+            throw new InvalidConfigurationException("Exception in deserialize binary item", e);
+        }
+    }
+
+    /**
+     * Covert ItemStack to the binary item, see {@link ItemCodec}
+     *
+     * @param iStack target ItemStack
+     * @return The binary item, null if the item contains something the binary format can't store (use YAML instead)
+     */
+    @Nullable
+    public static byte[] serializeBinary(@NotNull ItemStack iStack) {
+        try {
+            //noinspection deprecation
+            return ItemCodec.encode(iStack, Bukkit.getUnsafe().getDataVersion(), binaryItemCompression);
+        } catch (IllegalArgumentException e) {
+            Util.debugLog("Cannot serialize " + iStack + " into binary: " + e.getMessage());
+            return null;
+        }
+    }
+
     @NotNull
     public static List<String> getDebugLogs() {
         lock.readLock().lock();
@@ -562,15 +681,7 @@ public class Util {
      * @return The shops.
      */
     public static int getShopsInWorld(@NotNull String worldName) {
-        int cost = 0;
-        Iterator<Shop> iterator = plugin.getShopManager().getShopIterator();
-        while (iterator.hasNext()) {
-            Shop shop = iterator.next();
-            if (Objects.requireNonNull(shop.getLocation().getWorld()).getName().equals(worldName)) {
-                cost++;
-            }
-        }
-        return cost;
+        return plugin.getShopManager().getShopCount(worldName);
     }
 
     /**
@@ -624,6 +735,9 @@ public class Util {
         currency2Symbol.clear();
         plugin = QuickShop.getInstance();
         devMode = plugin.getConfig().getBoolean("dev-mode");
+        int itemCacheSize = plugin.getConfig().getInt("shop.item-cache-size", 4096);
+        itemCache = itemCacheSize > 0 ? new ItemDeserializeCache(itemCacheSize) : null;
+        binaryItemCompression = plugin.getConfig().getBoolean("database.binary-items.compression", true);
 
         for (String s : plugin.getConfig().getStringList("shop-blocks")) {
             Material mat = Material.matchMaterial(s.toUpperCase());
@@ -149,7 +149,7 @@ public class CollectorAdapter {
             perWorld.put("items", world.getEntities().stream().filter(entity -> entity instanceof Item).count()); //DISPLAY
             perWorld.put("armor_stands", world.getEntities().stream().filter(entity -> entity instanceof ArmorStand).toArray().length); //DISPLAY
             perWorld.put("force_loaded_chunks", world.getForceLoadedChunks().size());
-            perWorld.put("shops_in_force_loaded_chunks", plugin.getShopManager().getShopsInWorld(world).stream().filter(shop -> world.getForceLoadedChunks().contains(shop.getLocation().getChunk())).toArray().length);
+            perWorld.put("shops_in_force_loaded_chunks", plugin.getShopManager().getLoadedShops().stream().filter(shop -> world.equals(shop.getLocation().getWorld()) && world.getForceLoadedChunks().contains(shop.getLocation().getChunk())).toArray().length);
             perWorld.put("max_height", world.getMaxHeight());
             perWorld.put("sea_level", world.getSeaLevel());
             data.put(world.getName(), perWorld);
@@ -218,7 +218,7 @@ public class CollectorAdapter {
                 .stream()
                 .map(ShopLoader.ShopRawDatabaseInfo::toString)
                 .toArray());
-        map.put("memory", plugin.getShopManager().getAllShops().stream().map(Shop::toString).toArray());
+        map.put("memory", plugin.getShopManager().getLoadedShops().stream().map(Shop::toString).toArray());
         return map;
 
     }
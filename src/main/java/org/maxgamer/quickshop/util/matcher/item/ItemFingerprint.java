@@ -0,0 +1,63 @@
+/*
+ * This file is a part of project QuickShop, the name is ItemFingerprint.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.maxgamer.quickshop.util.matcher.item;
+
+import lombok.Getter;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.Predicate;
+
+/**
+ * The precomputed matching data of an item prototype (e.g the shop item).
+ * <p>
+ * The ItemMeta is copied out only once, and the hash covers the type and the meta fields that
+ * the matcher requires to be equal, so candidates with different hash can be rejected without deep compare.
+ * The prototype is not cloned, it must not be modified while this fingerprint in use (amount doesn't matter).
+ */
+@Getter
+public class ItemFingerprint {
+    @NotNull
+    private final ItemMatcher matcher;
+    @NotNull
+    private final ItemStack prototype;
+    @NotNull
+    private final Material type;
+    @Nullable
+    private final ItemMeta meta;
+    private final int hash;
+    /* The matcher specialized to the prototype meta, null to let the ItemMatcher decide */
+    @Nullable
+    private final Predicate<ItemMeta> metaMatcher;
+
+    public ItemFingerprint(@NotNull ItemMatcher matcher, @NotNull ItemStack prototype, @Nullable ItemMeta meta, int hash,
+                           @Nullable Predicate<ItemMeta> metaMatcher) {
+        this.matcher = matcher;
+        this.prototype = prototype;
+        this.type = prototype.getType();
+        this.meta = meta;
+        this.hash = hash;
+        this.metaMatcher = metaMatcher;
+    }
+}
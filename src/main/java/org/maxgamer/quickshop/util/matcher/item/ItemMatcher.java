@@ -19,10 +19,14 @@
 
 package org.maxgamer.quickshop.util.matcher.item;
 
+import org.bukkit.Material;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.Plugin;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.maxgamer.quickshop.util.Util;
+
+import java.util.Arrays;
 
 public interface ItemMatcher {
     /**
@@ -48,4 +52,51 @@ public interface ItemMatcher {
      * @return The result of tests
      */
     boolean matches(@Nullable ItemStack original, @Nullable ItemStack tester);
+
+    /**
+     * Precompute the matching data of an item prototype, reuse it when test many items against same prototype
+     *
+     * @param original The original ItemStack, it won't be cloned
+     * @return The fingerprint
+     */
+    default @NotNull ItemFingerprint fingerprint(@NotNull ItemStack original) {
+        return new ItemFingerprint(this, original, null, original.getType().ordinal(), null);
+    }
+
+    /**
+     * Tests ItemStack is matches the fingerprinted prototype
+     *
+     * @param original The fingerprint of original ItemStack
+     * @param tester   The ItemStack will test matches with original itemstack.
+     * @return The result of tests
+     */
+    default boolean matches(@NotNull ItemFingerprint original, @Nullable ItemStack tester) {
+        return matches(original.getPrototype(), tester);
+    }
+
+    /**
+     * Scan the contents in one pass, locate the matched slots, count the matched items and the free space.
+     *
+     * @param original The fingerprint of original ItemStack
+     * @param contents The contents, e.g Inventory#getStorageContents
+     * @return The scan result
+     */
+    default @NotNull ItemScanResult scan(@NotNull ItemFingerprint original, @NotNull ItemStack[] contents) {
+        int maxStackSize = Util.getItemMaxStackSize(original.getType());
+        int[] slots = new int[contents.length];
+        int matched = 0;
+        int totalAmount = 0;
+        int freeSpace = 0;
+        for (int i = 0; i < contents.length; i++) {
+            ItemStack stack = contents[i];
+            if (stack == null || stack.getType() == Material.AIR) {
+                freeSpace += maxStackSize;
+            } else if (matches(original, stack)) {
+                slots[matched++] = i;
+                totalAmount += stack.getAmount();
+                freeSpace += stack.getAmount() >= maxStackSize ? 0 : maxStackSize - stack.getAmount();
+            }
+        }
+        return new ItemScanResult(Arrays.copyOf(slots, matched), totalAmount, freeSpace);
+    }
 }
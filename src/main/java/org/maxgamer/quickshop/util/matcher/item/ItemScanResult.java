@@ -0,0 +1,46 @@
+/*
+ * This file is a part of project QuickShop, the name is ItemScanResult.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.maxgamer.quickshop.util.matcher.item;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The result of scanning an inventory contents with a prototype, see {@link ItemMatcher#scan(ItemFingerprint, org.bukkit.inventory.ItemStack[])}
+ */
+@Getter
+@AllArgsConstructor
+public class ItemScanResult {
+    /**
+     * The indices of matched slots in the scanned contents, in ascending order
+     */
+    @NotNull
+    private final int[] slots;
+    /**
+     * The total amount of matched items (not divided by the prototype amount)
+     */
+    private final int totalAmount;
+    /**
+     * The amount of prototype items can be put into the contents, empty slots and matched slots not full yet
+     */
+    private final int freeSpace;
+}
@@ -19,21 +19,32 @@
 
 package org.maxgamer.quickshop.util.matcher.item;
 
+import com.google.common.collect.Multimap;
 import lombok.AllArgsConstructor;
+import org.bukkit.Color;
+import org.bukkit.DyeColor;
+import org.bukkit.FireworkEffect;
 import org.bukkit.attribute.Attribute;
+import org.bukkit.attribute.AttributeModifier;
+import org.bukkit.block.BlockState;
 import org.bukkit.block.ShulkerBox;
+import org.bukkit.block.banner.Pattern;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.enchantments.Enchantment;
+import org.bukkit.entity.TropicalFish;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.*;
+import org.bukkit.map.MapView;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.potion.PotionData;
+import org.bukkit.potion.PotionEffect;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.maxgamer.quickshop.QuickShop;
 import org.maxgamer.quickshop.util.Util;
 
 import java.util.*;
+import java.util.function.Predicate;
 
 @AllArgsConstructor
 public class QuickShopItemMatcherImpl implements ItemMatcher {
@@ -135,17 +146,11 @@ public class QuickShopItemMatcherImpl implements ItemMatcher {
             return false; // One of them is null (Can't be both, see above)
         }
 
-        requireStack = requireStack.clone();
-        requireStack.setAmount(1);
-        givenStack = givenStack.clone();
-        givenStack.setAmount(1);
-
-        if (workType == 1) {
+        // isSimilar ignores the amount, so no need to clone and set amount to 1
+        // equals after set amount to 1 (work type 2) is isSimilar too
+        if (workType == 1 || workType == 2) {
             return requireStack.isSimilar(givenStack);
         }
-        if (workType == 2) {
-            return requireStack.equals(givenStack);
-        }
 
         if (!typeMatches(requireStack, givenStack)) {
             return false;
@@ -165,329 +170,324 @@ public class QuickShopItemMatcherImpl implements ItemMatcher {
         return requireStack.getType().equals(givenStack.getType());
     }
 
+    /**
+     * Precompute the matching data of an item prototype, the ItemMeta will be copied only once
+     *
+     * @param original The original ItemStack, it won't be cloned
+     * @return The fingerprint
+     */
+    @Override
+    public @NotNull ItemFingerprint fingerprint(@NotNull ItemStack original) {
+        if (workType != 0 || !original.hasItemMeta()) {
+            return new ItemFingerprint(this, original, null, original.getType().ordinal(), null);
+        }
+        ItemMeta meta = Objects.requireNonNull(original.getItemMeta());
+        return new ItemFingerprint(this, original, meta, 31 * original.getType().ordinal() + itemMetaMatcher.fingerprint(meta),
+                itemMetaMatcher.compile(meta));
+    }
+
+    /**
+     * Tests ItemStack is matches the fingerprinted prototype, the tester's ItemMeta will be copied at most once
+     * and the deep compare only runs when the fingerprint matches.
+     *
+     * @param original The fingerprint of original ItemStack
+     * @param tester   The ItemStack will test matches with original itemstack.
+     * @return The result of tests
+     */
+    @Override
+    public boolean matches(@NotNull ItemFingerprint original, @Nullable ItemStack tester) {
+        if (original.getMatcher() != this) {
+            // Created by the matcher before reload
+            return matches(original.getPrototype(), tester);
+        }
+        if (tester == null) {
+            return false;
+        }
+        if (workType == 1 || workType == 2) {
+            return original.getPrototype().isSimilar(tester);
+        }
+        if (original.getType() != tester.getType()) {
+            return false;
+        }
+        ItemMeta requireMeta = original.getMeta();
+        if ((requireMeta != null) != tester.hasItemMeta()) {
+            return false;
+        }
+        if (requireMeta == null) {
+            return true;
+        }
+        ItemMeta givenMeta = tester.getItemMeta();
+        if (31 * tester.getType().ordinal() + itemMetaMatcher.fingerprint(givenMeta) != original.getHash()) {
+            return false;
+        }
+        Predicate<ItemMeta> metaMatcher = original.getMetaMatcher();
+        return metaMatcher == null ? itemMetaMatcher.matches(requireMeta, givenMeta) : metaMatcher.test(givenMeta);
+    }
+
     private static class ItemMetaMatcher {
 
-        private final List<Matcher> matcherList = new ArrayList<>();
+        private final List<RuleCompiler> compilerList = new ArrayList<>();
 
-        public ItemMetaMatcher(@NotNull ConfigurationSection itemMatcherConfig, @NotNull QuickShopItemMatcherImpl itemMatcher) {
+        /* The rules require the fields to be equal, these fields can be put into fingerprint */
+        private final boolean fingerprintDisplayName;
 
-            addIfEnable(itemMatcherConfig, "damage", (meta1, meta2) -> {
-                if (meta1 instanceof Damageable != meta2 instanceof Damageable) {
-                    return false;
-                }
-                if (meta1 instanceof Damageable) {
-                    Damageable damage1 = (Damageable) meta1;
-                    Damageable damage2 = (Damageable) meta2;
-                    // Check them damages, if givenDamage >= requireDamage, allow it.
-                    return damage2.getDamage() <= damage1.getDamage();
-                }
-                return true;
+        private final boolean fingerprintLores;
+
+        private final boolean fingerprintEnchs;
+
+        private final boolean fingerprintCustomModelData;
+
+        public ItemMetaMatcher(@NotNull ConfigurationSection itemMatcherConfig, @NotNull QuickShopItemMatcherImpl itemMatcher) {
+            fingerprintDisplayName = itemMatcherConfig.getBoolean("displayname");
+            fingerprintLores = itemMatcherConfig.getBoolean("lores");
+            fingerprintEnchs = itemMatcherConfig.getBoolean("enchs");
+            fingerprintCustomModelData = itemMatcherConfig.getBoolean("custommodeldata")
+                    && !"v1_13_R1".equals(Util.getNMSVersion()) && !"v1_13_R2".equals(Util.getNMSVersion());
+
+            // The metas being compared always come from same material, so they are always same meta type.
+            // A rule which can't apply to the prototype's meta type can be skipped entirely.
+            addIfEnable(itemMatcherConfig, "damage", meta1 -> {
+                if (!(meta1 instanceof Damageable)) {
+                    return null;
+                }
+                // Check them damages, if givenDamage >= requireDamage, allow it.
+                int damage1 = ((Damageable) meta1).getDamage();
+                return meta2 -> ((Damageable) meta2).getDamage() <= damage1;
             });
-            addIfEnable(itemMatcherConfig, "repaircost", (meta1, meta2) -> {
-                if (meta1 instanceof Repairable != meta2 instanceof Repairable) {
-                    return false;
+            addIfEnable(itemMatcherConfig, "repaircost", meta1 -> {
+                if (!(meta1 instanceof Repairable)) {
+                    return null;
                 }
-                if (meta1 instanceof Repairable) {
-                    Repairable repairable1 = (Repairable) meta1;
-                    Repairable repairable2 = (Repairable) meta2;
-                    if (repairable1.hasRepairCost() != repairable2.hasRepairCost()) {
-                        return false;
-                    }
-                    if (repairable1.hasRepairCost()) {
-                        return repairable2.getRepairCost() <= repairable1.getRepairCost();
-                    }
+                if (!((Repairable) meta1).hasRepairCost()) {
+                    return meta2 -> !((Repairable) meta2).hasRepairCost();
                 }
-                return true;
+                int repairCost1 = ((Repairable) meta1).getRepairCost();
+                return meta2 -> ((Repairable) meta2).hasRepairCost() && ((Repairable) meta2).getRepairCost() <= repairCost1;
             });
-            addIfEnable(itemMatcherConfig, "displayname", ((meta1, meta2) -> {
-
-                if (meta1.hasDisplayName() != meta2.hasDisplayName()) {
-                    return false;
+            addIfEnable(itemMatcherConfig, "displayname", meta1 -> {
+                if (!meta1.hasDisplayName()) {
+                    return meta2 -> !meta2.hasDisplayName();
                 }
-                if (meta1.hasDisplayName()) {
-                    return meta1.getDisplayName().equals(meta2.getDisplayName());
-                }
-                return true;
-            }));
+                String displayName1 = meta1.getDisplayName();
+                return meta2 -> meta2.hasDisplayName() && displayName1.equals(meta2.getDisplayName());
+            });
             // We didn't touch the loresMatches because many plugin use this check item.
-            addIfEnable(itemMatcherConfig, "lores", ((meta1, meta2) -> {
-                if (meta1.hasLore() != meta2.hasLore()) {
-                    return false;
-                }
-                if (meta1.hasLore()) {
-                    List<String> lores1 = meta1.getLore();
-                    List<String> lores2 = meta2.getLore();
-                    return Arrays.deepEquals(
-                            Objects.requireNonNull(lores1).toArray(), Objects.requireNonNull(lores2).toArray());
-                }
-
-                return true;
-
-            }));
-            addIfEnable(itemMatcherConfig, "enchs", ((meta1, meta2) -> {
-
-                if (meta1.hasEnchants() != meta2.hasEnchants()) {
-                    return false;
+            addIfEnable(itemMatcherConfig, "lores", meta1 -> {
+                if (!meta1.hasLore()) {
+                    return meta2 -> !meta2.hasLore();
                 }
+                List<String> lores1 = Objects.requireNonNull(meta1.getLore());
+                return meta2 -> meta2.hasLore() && lores1.equals(meta2.getLore());
+            });
+            addIfEnable(itemMatcherConfig, "enchs", meta1 -> {
                 if (meta1.hasEnchants()) {
                     Map<Enchantment, Integer> enchMap1 = meta1.getEnchants();
-                    Map<Enchantment, Integer> enchMap2 = meta2.getEnchants();
-                    return enchMap1.equals(enchMap2);
-                }
-
-
-                if (meta1 instanceof EnchantmentStorageMeta != meta2 instanceof EnchantmentStorageMeta) {
-                    return false;
+                    return meta2 -> meta2.hasEnchants() && enchMap1.equals(meta2.getEnchants());
                 }
                 if (meta1 instanceof EnchantmentStorageMeta) {
                     Map<Enchantment, Integer> stor1 = ((EnchantmentStorageMeta) meta1).getStoredEnchants();
-                    Map<Enchantment, Integer> stor2 = ((EnchantmentStorageMeta) meta2).getStoredEnchants();
-                    return stor1.equals(stor2);
+                    return meta2 -> !meta2.hasEnchants() && stor1.equals(((EnchantmentStorageMeta) meta2).getStoredEnchants());
                 }
-                return true;
-            }));
-            addIfEnable(itemMatcherConfig, "potions", ((meta1, meta2) -> {
-
-                if (meta1 instanceof PotionMeta != meta2 instanceof PotionMeta) {
-                    return false;
-                }
-                if (meta1 instanceof PotionMeta) {
-                    PotionMeta potion1 = (PotionMeta) meta1;
+                return meta2 -> !meta2.hasEnchants();
+            });
+            addIfEnable(itemMatcherConfig, "potions", meta1 -> {
+                if (!(meta1 instanceof PotionMeta)) {
+                    return null;
+                }
+                PotionMeta potion1 = (PotionMeta) meta1;
+                boolean hasColor1 = potion1.hasColor();
+                Color color1 = hasColor1 ? potion1.getColor() : null;
+                boolean hasCustomEffects1 = potion1.hasCustomEffects();
+                List<PotionEffect> customEffects1 = hasCustomEffects1 ? potion1.getCustomEffects() : null;
+                // PotionData equals covers type, extended and upgraded
+                PotionData data1 = potion1.getBasePotionData();
+                return meta2 -> {
                     PotionMeta potion2 = (PotionMeta) meta2;
-
-                    if (potion1.hasColor() != potion2.hasColor()) {
+                    if (potion2.hasColor() != hasColor1) {
                         return false;
                     }
-                    if (potion1.hasColor() && !Objects.equals(potion1.getColor(), potion2.getColor())) {
+                    if (hasColor1 && !Objects.equals(color1, potion2.getColor())) {
                         return false;
                     }
-
-                    if (potion1.hasCustomEffects() != potion2.hasCustomEffects()) {
-                        return false;
-                    }
-                    if (potion1.hasCustomEffects() && !Arrays.deepEquals(potion1.getCustomEffects().toArray(), potion2.getCustomEffects().toArray())) {
+                    if (potion2.hasCustomEffects() != hasCustomEffects1) {
                         return false;
                     }
-
-                    PotionData data1 = potion1.getBasePotionData();
-                    PotionData data2 = potion2.getBasePotionData();
-
-                    if (!data1.equals(data2)) {
+                    if (hasCustomEffects1 && !customEffects1.equals(potion2.getCustomEffects())) {
                         return false;
                     }
-                    if (!data2.getType().equals(data1.getType())) {
-                        return false;
-                    }
-                    if (data1.isExtended() != data2.isExtended()) {
+                    return data1.equals(potion2.getBasePotionData());
+                };
+            });
+            addIfEnable(itemMatcherConfig, "attributes", meta1 -> {
+                if (!meta1.hasAttributeModifiers()) {
+                    return meta2 -> !meta2.hasAttributeModifiers();
+                }
+                Multimap<Attribute, AttributeModifier> modifiers1 = Objects.requireNonNull(meta1.getAttributeModifiers());
+                return meta2 -> {
+                    if (!meta2.hasAttributeModifiers()) {
                         return false;
                     }
-                    return data1.isUpgraded() == data2.isUpgraded();
-                }
-                return true;
-            }));
-            addIfEnable(itemMatcherConfig, "attributes", (meta1, meta2) -> {
-                if (meta1.hasAttributeModifiers() != meta2.hasAttributeModifiers()) {
-                    return false;
-                }
-                if (meta1.hasAttributeModifiers() && meta2.hasAttributeModifiers()) {
-                    Set<Attribute> set1 = Objects.requireNonNull(meta1.getAttributeModifiers()).keySet();
-                    Set<Attribute> set2 = Objects.requireNonNull(meta2.getAttributeModifiers()).keySet();
-                    for (Attribute att : set1) {
-                        if (!set2.contains(att)) {
-                            return false;
-                        } else if (!meta1
-                                .getAttributeModifiers()
-                                .get(att)
-                                .equals(meta2.getAttributeModifiers().get(att))) {
+                    Multimap<Attribute, AttributeModifier> modifiers2 = Objects.requireNonNull(meta2.getAttributeModifiers());
+                    for (Attribute att : modifiers1.keySet()) {
+                        if (!modifiers2.containsKey(att) || !modifiers1.get(att).equals(modifiers2.get(att))) {
                             return false;
                         }
                     }
-                }
-                return true;
+                    return true;
+                };
             });
-            addIfEnable(itemMatcherConfig, "itemflags", ((meta1, meta2) -> Arrays.deepEquals(meta1.getItemFlags().toArray(), meta2.getItemFlags().toArray())));
-            addIfEnable(itemMatcherConfig, "books", ((meta1, meta2) -> {
-                if (meta1 instanceof BookMeta != meta2 instanceof BookMeta) {
-                    return false;
-                }
-                if (meta1 instanceof BookMeta) {
-                    BookMeta book1 = (BookMeta) meta1;
+            addIfEnable(itemMatcherConfig, "itemflags", meta1 -> {
+                Object[] itemFlags1 = meta1.getItemFlags().toArray();
+                return meta2 -> Arrays.deepEquals(itemFlags1, meta2.getItemFlags().toArray());
+            });
+            addIfEnable(itemMatcherConfig, "books", meta1 -> {
+                if (!(meta1 instanceof BookMeta)) {
+                    return null;
+                }
+                BookMeta book1 = (BookMeta) meta1;
+                String title1 = book1.hasTitle() ? book1.getTitle() : null;
+                List<String> pages1 = book1.hasPages() ? book1.getPages() : null;
+                String author1 = book1.hasAuthor() ? book1.getAuthor() : null;
+                BookMeta.Generation generation1 = book1.hasGeneration() ? book1.getGeneration() : null;
+                return meta2 -> {
                     BookMeta book2 = (BookMeta) meta2;
-                    if (book1.hasTitle() != book2.hasTitle()) {
-                        return false;
-                    }
-                    if (book1.hasTitle() && !Objects.equals(book1.getTitle(), book2.getTitle())) {
-                        return false;
-                    }
-
-                    if (book1.hasPages() != book2.hasPages()) {
-                        return false;
-                    }
-                    if (book1.hasPages() && !book1.getPages().equals(book2.getPages())) {
-                        return false;
-                    }
-
-                    if (book1.hasAuthor() != book2.hasAuthor()) {
-                        return false;
-                    }
-                    if (book1.hasAuthor() && !Objects.equals(book1.getAuthor(), book2.getAuthor())) {
+                    if (book2.hasTitle() != (title1 != null) || (title1 != null && !title1.equals(book2.getTitle()))) {
                         return false;
                     }
-
-                    if (book1.hasGeneration() != book2.hasGeneration()) {
+                    if (book2.hasPages() != (pages1 != null) || (pages1 != null && !pages1.equals(book2.getPages()))) {
                         return false;
                     }
-                    return !book1.hasGeneration() || Objects.equals(book1.getGeneration(), book2.getGeneration());
-                }
-                return true;
-            }));
-            addIfEnable(itemMatcherConfig, "banner", ((meta1, meta2) -> {
-                if (meta1 instanceof BannerMeta != meta2 instanceof BannerMeta) {
-                    return false;
-                }
-                if (meta1 instanceof BannerMeta) {
-                    BannerMeta bannerMeta1 = (BannerMeta) meta1;
-                    BannerMeta bannerMeta2 = (BannerMeta) meta2;
-                    if (bannerMeta1.numberOfPatterns() != bannerMeta2.numberOfPatterns()) {
+                    if (book2.hasAuthor() != (author1 != null) || (author1 != null && !author1.equals(book2.getAuthor()))) {
                         return false;
                     }
-                    return bannerMeta1.getPatterns().containsAll(bannerMeta2.getPatterns());
-                }
-                return true;
-            }));
-            addIfEnable(itemMatcherConfig, "skull", (meta1, meta2) -> {
-                if (meta1 instanceof SkullMeta != meta2 instanceof SkullMeta) {
-                    return false;
-                }
-                if (meta1 instanceof SkullMeta) {
-                    //getOwningPlayer will let server query playerProfile in server thread
-                    //Causing huge lag, so using String instead
-                    String player1 = ((SkullMeta) meta1).getOwner(); //FIXME: Update this when drop 1.15 supports
-                    String player2 = ((SkullMeta) meta2).getOwner(); //FIXME: Update this when drop 1.15 supports
-                    return Objects.equals(player1, player2);
-                }
-                return true;
+                    return book2.hasGeneration() == (generation1 != null) && (generation1 == null || generation1 == book2.getGeneration());
+                };
             });
-            addIfEnable(itemMatcherConfig, "map", (meta1, meta2) -> {
-                if (meta1 instanceof MapMeta != meta2 instanceof MapMeta) {
-                    return false;
-                }
-                if (meta1 instanceof MapMeta) {
-                    MapMeta mapMeta1 = ((MapMeta) meta1);
-                    MapMeta mapMeta2 = ((MapMeta) meta2);
-                    if (mapMeta1.hasMapView() != mapMeta2.hasMapView()) {
-                        return false;
-                    }
-                    if (mapMeta1.hasMapView() && mapMeta2.hasMapView() && !Objects.equals(mapMeta1.getMapView(), mapMeta2.getMapView())) {
-                        return false;
-                    }
-
-                    if (mapMeta1.hasColor() != mapMeta2.hasColor()) {
-                        return false;
-                    }
-                    if (mapMeta1.hasColor() && mapMeta2.hasColor() && !Objects.equals(mapMeta1.getColor(), mapMeta2.getColor())) {
-                        return false;
-                    }
-
-                    if (mapMeta1.hasLocationName() != mapMeta2.hasLocationName()) {
-                        return false;
-                    }
-                    return !mapMeta1.hasLocationName() || !mapMeta2.hasLocationName() || Objects.equals(mapMeta1.getLocationName(), mapMeta2.getLocationName());
-                }
-                return true;
+            addIfEnable(itemMatcherConfig, "banner", meta1 -> {
+                if (!(meta1 instanceof BannerMeta)) {
+                    return null;
+                }
+                int numberOfPatterns1 = ((BannerMeta) meta1).numberOfPatterns();
+                List<Pattern> patterns1 = ((BannerMeta) meta1).getPatterns();
+                return meta2 -> ((BannerMeta) meta2).numberOfPatterns() == numberOfPatterns1
+                        && patterns1.containsAll(((BannerMeta) meta2).getPatterns());
             });
-            addIfEnable(itemMatcherConfig, "firework", (meta1, meta2) -> {
-                if ((meta1 instanceof FireworkMeta) != (meta2 instanceof FireworkMeta)) {
-                    return false;
-                }
-                if (meta1 instanceof FireworkMeta) {
-                    FireworkMeta fireworkMeta1 = ((FireworkMeta) meta1);
-                    FireworkMeta fireworkMeta2 = ((FireworkMeta) meta2);
-                    if (fireworkMeta1.hasEffects() != fireworkMeta2.hasEffects()) {
+            addIfEnable(itemMatcherConfig, "skull", meta1 -> {
+                if (!(meta1 instanceof SkullMeta)) {
+                    return null;
+                }
+                //getOwningPlayer will let server query playerProfile in server thread
+                //Causing huge lag, so using String instead
+                String player1 = ((SkullMeta) meta1).getOwner(); //FIXME: Update this when drop 1.15 supports
+                return meta2 -> Objects.equals(player1, ((SkullMeta) meta2).getOwner()); //FIXME: Update this when drop 1.15 supports
+            });
+            addIfEnable(itemMatcherConfig, "map", meta1 -> {
+                if (!(meta1 instanceof MapMeta)) {
+                    return null;
+                }
+                MapMeta mapMeta1 = (MapMeta) meta1;
+                MapView mapView1 = mapMeta1.hasMapView() ? mapMeta1.getMapView() : null;
+                Color color1 = mapMeta1.hasColor() ? mapMeta1.getColor() : null;
+                String locationName1 = mapMeta1.hasLocationName() ? mapMeta1.getLocationName() : null;
+                return meta2 -> {
+                    MapMeta mapMeta2 = (MapMeta) meta2;
+                    if (mapMeta2.hasMapView() != mapMeta1.hasMapView()
+                            || (mapMeta2.hasMapView() && !Objects.equals(mapView1, mapMeta2.getMapView()))) {
                         return false;
                     }
-                    if (!fireworkMeta1.getEffects().equals(fireworkMeta2.getEffects())) {
+                    if (mapMeta2.hasColor() != mapMeta1.hasColor()
+                            || (mapMeta2.hasColor() && !Objects.equals(color1, mapMeta2.getColor()))) {
                         return false;
                     }
-                    return fireworkMeta1.getPower() == fireworkMeta2.getPower();
-                }
-                return true;
+                    return mapMeta2.hasLocationName() == mapMeta1.hasLocationName()
+                            && (!mapMeta2.hasLocationName() || Objects.equals(locationName1, mapMeta2.getLocationName()));
+                };
             });
-            addIfEnable(itemMatcherConfig, "leatherArmor", ((meta1, meta2) -> {
-                if ((meta1 instanceof LeatherArmorMeta) != (meta2 instanceof LeatherArmorMeta)) {
-                    return false;
-                }
-                if (meta1 instanceof LeatherArmorMeta) {
-                    return ((LeatherArmorMeta) meta1).getColor().equals(((LeatherArmorMeta) meta2).getColor());
-                }
-                return true;
-            }));
-            addIfEnable(itemMatcherConfig, "fishBucket", (meta1, meta2) -> {
-                if ((meta1 instanceof TropicalFishBucketMeta) != (meta2 instanceof TropicalFishBucketMeta)) {
-                    return false;
-                }
-                if (meta1 instanceof TropicalFishBucketMeta) {
-                    TropicalFishBucketMeta fishBucketMeta1 = ((TropicalFishBucketMeta) meta1);
-                    TropicalFishBucketMeta fishBucketMeta2 = ((TropicalFishBucketMeta) meta2);
-                    if (fishBucketMeta1.hasVariant() != fishBucketMeta2.hasVariant()) {
-                        return false;
-                    }
-                    return !fishBucketMeta1.hasVariant()
-                            || (fishBucketMeta1.getPattern() == fishBucketMeta2.getPattern()
-                            && fishBucketMeta1.getBodyColor().equals(fishBucketMeta2.getBodyColor())
-                            && fishBucketMeta1.getPatternColor().equals(fishBucketMeta2.getPatternColor()));
+            addIfEnable(itemMatcherConfig, "firework", meta1 -> {
+                if (!(meta1 instanceof FireworkMeta)) {
+                    return null;
+                }
+                FireworkMeta fireworkMeta1 = (FireworkMeta) meta1;
+                boolean hasEffects1 = fireworkMeta1.hasEffects();
+                List<FireworkEffect> effects1 = fireworkMeta1.getEffects();
+                int power1 = fireworkMeta1.getPower();
+                return meta2 -> {
+                    FireworkMeta fireworkMeta2 = (FireworkMeta) meta2;
+                    return fireworkMeta2.hasEffects() == hasEffects1
+                            && effects1.equals(fireworkMeta2.getEffects())
+                            && fireworkMeta2.getPower() == power1;
+                };
+            });
+            addIfEnable(itemMatcherConfig, "leatherArmor", meta1 -> {
+                if (!(meta1 instanceof LeatherArmorMeta)) {
+                    return null;
                 }
-                return true;
+                Color color1 = ((LeatherArmorMeta) meta1).getColor();
+                return meta2 -> color1.equals(((LeatherArmorMeta) meta2).getColor());
             });
-            addIfEnable(itemMatcherConfig, "shulkerBox", ((meta1, meta2) -> {
+            addIfEnable(itemMatcherConfig, "fishBucket", meta1 -> {
+                if (!(meta1 instanceof TropicalFishBucketMeta)) {
+                    return null;
+                }
+                TropicalFishBucketMeta fishBucketMeta1 = (TropicalFishBucketMeta) meta1;
+                if (!fishBucketMeta1.hasVariant()) {
+                    return meta2 -> !((TropicalFishBucketMeta) meta2).hasVariant();
+                }
+                TropicalFish.Pattern pattern1 = fishBucketMeta1.getPattern();
+                DyeColor bodyColor1 = fishBucketMeta1.getBodyColor();
+                DyeColor patternColor1 = fishBucketMeta1.getPatternColor();
+                return meta2 -> {
+                    TropicalFishBucketMeta fishBucketMeta2 = (TropicalFishBucketMeta) meta2;
+                    return fishBucketMeta2.hasVariant()
+                            && fishBucketMeta2.getPattern() == pattern1
+                            && fishBucketMeta2.getBodyColor() == bodyColor1
+                            && fishBucketMeta2.getPatternColor() == patternColor1;
+                };
+            });
+            addIfEnable(itemMatcherConfig, "shulkerBox", meta1 -> {
                 //https://www.spigotmc.org/threads/getting-the-inventory-of-a-shulker-box-itemstack.212369
-                if ((meta1 instanceof BlockStateMeta) != (meta2 instanceof BlockStateMeta)) {
-                    return false;
-                }
-                if (meta1 instanceof BlockStateMeta) {
-                    if ((((BlockStateMeta) meta1).getBlockState() instanceof ShulkerBox) != ((BlockStateMeta) meta2).getBlockState() instanceof ShulkerBox) {
-                        return false;
-                    }
-                    if (((BlockStateMeta) meta1).getBlockState() instanceof ShulkerBox) {
-                        return itemMatcher.matches(((ShulkerBox) ((BlockStateMeta) meta1).getBlockState()).getInventory().getContents(), ((ShulkerBox) ((BlockStateMeta) meta2).getBlockState()).getInventory().getContents());
-                    }
-                }
-                return true;
-            }));
+                if (!(meta1 instanceof BlockStateMeta)) {
+                    return null;
+                }
+                BlockState state1 = ((BlockStateMeta) meta1).getBlockState();
+                if (!(state1 instanceof ShulkerBox)) {
+                    return null;
+                }
+                // Block state is rebuilt on every call, only do it once for the prototype
+                ItemStack[] contents1 = ((ShulkerBox) state1).getInventory().getContents();
+                return meta2 -> {
+                    BlockState state2 = ((BlockStateMeta) meta2).getBlockState();
+                    return state2 instanceof ShulkerBox && itemMatcher.matches(contents1, ((ShulkerBox) state2).getInventory().getContents());
+                };
+            });
             if (!"v1_13_R1".equals(Util.getNMSVersion()) && !"v1_13_R2".equals(Util.getNMSVersion())) {
-                addIfEnable(itemMatcherConfig, "custommodeldata", ((meta1, meta2) -> {
-                    if (meta1.hasCustomModelData() != meta2.hasCustomModelData()) {
-                        return false;
-                    }
-                    if (meta1.hasCustomModelData()) {
-                        return meta1.getCustomModelData() == meta2.getCustomModelData();
+                addIfEnable(itemMatcherConfig, "custommodeldata", meta1 -> {
+                    if (!meta1.hasCustomModelData()) {
+                        return meta2 -> !meta2.hasCustomModelData();
                     }
-                    return true;
-                }));
+                    int customModelData1 = meta1.getCustomModelData();
+                    return meta2 -> meta2.hasCustomModelData() && meta2.getCustomModelData() == customModelData1;
+                });
                 if (!"v1_14_R1".equals(Util.getNMSVersion())) {
-                    addIfEnable(itemMatcherConfig, "suspiciousStew", ((meta1, meta2) -> {
-                        if ((meta1 instanceof SuspiciousStewMeta) != (meta2 instanceof SuspiciousStewMeta)) {
-                            return false;
+                    addIfEnable(itemMatcherConfig, "suspiciousStew", meta1 -> {
+                        if (!(meta1 instanceof SuspiciousStewMeta)) {
+                            return null;
                         }
-                        if (meta1 instanceof SuspiciousStewMeta) {
-                            SuspiciousStewMeta stewMeta1 = ((SuspiciousStewMeta) meta1);
-                            SuspiciousStewMeta stewMeta2 = ((SuspiciousStewMeta) meta2);
-                            if (stewMeta1.hasCustomEffects() != stewMeta2.hasCustomEffects()) {
-                                return false;
-                            }
-                            if (stewMeta1.hasCustomEffects()) {
-                                return stewMeta1.getCustomEffects().equals(stewMeta2.getCustomEffects());
-                            }
+                        SuspiciousStewMeta stewMeta1 = (SuspiciousStewMeta) meta1;
+                        if (!stewMeta1.hasCustomEffects()) {
+                            return meta2 -> !((SuspiciousStewMeta) meta2).hasCustomEffects();
                         }
-                        return true;
-                    }));
+                        List<PotionEffect> customEffects1 = stewMeta1.getCustomEffects();
+                        return meta2 -> ((SuspiciousStewMeta) meta2).hasCustomEffects()
+                                && customEffects1.equals(((SuspiciousStewMeta) meta2).getCustomEffects());
+                    });
                 }
             }
         }
 
-        private void addIfEnable(ConfigurationSection itemMatcherConfig, String path, Matcher matcher) {
+        private void addIfEnable(ConfigurationSection itemMatcherConfig, String path, RuleCompiler compiler) {
             if (itemMatcherConfig.getBoolean(path)) {
-                matcherList.add(matcher);
+                compilerList.add(compiler);
             }
         }
 
@@ -498,33 +498,110 @@ public class QuickShopItemMatcherImpl implements ItemMatcher {
             if (!requireStack.hasItemMeta()) {
                 return true; // Passed check. no meta need to check.
             }
-            ItemMeta meta1 = requireStack.getItemMeta();
-            ItemMeta meta2 = givenStack.getItemMeta();
-            for (Matcher matcher : matcherList) {
-                if (!matcher.match(meta1, meta2)) {
+            return matches(requireStack.getItemMeta(), givenStack.getItemMeta());
+        }
+
+        /**
+         * Compare two metas directly, for the one-shot matches there is no prototype to reuse,
+         * so no matcher is built: each rule is evaluated once and the compare stops at the first mismatch.
+         *
+         * @param requireMeta The prototype meta
+         * @param givenMeta   The tested meta, must come from the same material as prototype
+         * @return true if all enabled rules pass
+         */
+        boolean matches(@NotNull ItemMeta requireMeta, @NotNull ItemMeta givenMeta) {
+            for (RuleCompiler compiler : compilerList) {
+                if (!compiler.test(requireMeta, givenMeta)) {
                     return false;
                 }
             }
             return true;
         }
 
-        private boolean rootMatches(ItemMeta meta1, ItemMeta meta2) {
-            return (meta1.hashCode() == meta2.hashCode());
+        /**
+         * Compile the enabled rules into a matcher specialized to the prototype meta,
+         * only the rules apply to its meta type are kept, and its values are extracted once.
+         * The tested meta must come from the same material as prototype.
+         *
+         * @param prototype The prototype meta
+         * @return The compiled matcher
+         */
+        @NotNull
+        Predicate<ItemMeta> compile(@NotNull ItemMeta prototype) {
+            List<Predicate<ItemMeta>> rules = new ArrayList<>(compilerList.size());
+            for (RuleCompiler compiler : compilerList) {
+                Predicate<ItemMeta> rule = compiler.compile(prototype);
+                if (rule != null) {
+                    rules.add(rule);
+                }
+            }
+            if (rules.isEmpty()) {
+                return meta -> true;
+            }
+            if (rules.size() == 1) {
+                return rules.get(0);
+            }
+            @SuppressWarnings("unchecked")
+            Predicate<ItemMeta>[] compiled = rules.toArray(new Predicate[0]);
+            return meta -> {
+                for (Predicate<ItemMeta> rule : compiled) {
+                    if (!rule.test(meta)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        }
+
+        /**
+         * Hash the meta fields that must be equal when matches, only use the cheap ones
+         *
+         * @param meta The ItemMeta
+         * @return The hash
+         */
+        int fingerprint(ItemMeta meta) {
+            int hash = 1;
+            if (fingerprintDisplayName) {
+                hash = 31 * hash + (meta.hasDisplayName() ? meta.getDisplayName().hashCode() : 0);
+            }
+            if (fingerprintLores) {
+                // Only the presence, lores list copy isn't cheap
+                hash = 31 * hash + (meta.hasLore() ? 1 : 0);
+            }
+            if (fingerprintEnchs) {
+                hash = 31 * hash + (meta.hasEnchants() ? 1 : 0);
+            }
+            if (fingerprintCustomModelData) {
+                hash = 31 * hash + (meta.hasCustomModelData() ? meta.getCustomModelData() : -1);
+            }
+            return hash;
         }
 
 
-        interface Matcher {
+        interface RuleCompiler {
             /**
-             * Matches between ItemMeta
+             * Compile the rule for the prototype meta
              *
-             * @param meta1 ItemMeta 1
-             * @param meta2 ItemMeta 2
-             * @return is same
+             * @param meta1 The prototype ItemMeta
+             * @return The rule tests the other ItemMeta, null if the rule doesn't apply to the prototype
              */
-            boolean match(ItemMeta meta1, ItemMeta meta2);
+            @Nullable
+            Predicate<ItemMeta> compile(ItemMeta meta1);
+
+            /**
+             * Test the rule against two metas without keeping the compiled rule
+             *
+             * @param meta1 The prototype ItemMeta
+             * @param meta2 The tested ItemMeta
+             * @return true if the rule passes or doesn't apply to the prototype
+             */
+            default boolean test(ItemMeta meta1, ItemMeta meta2) {
+                Predicate<ItemMeta> rule = compile(meta1);
+                return rule == null || rule.test(meta2);
+            }
 
         }
 
 
     }
-}
\ No newline at end of file
+}
@@ -28,12 +28,17 @@ import org.bukkit.plugin.Plugin;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.maxgamer.quickshop.QuickShop;
+import org.maxgamer.quickshop.database.DatabaseManager;
+import org.maxgamer.quickshop.database.MySQLCore;
 import org.maxgamer.quickshop.database.WarpedResultSet;
 import org.maxgamer.quickshop.economy.Economy;
 import org.maxgamer.quickshop.economy.EconomyCore;
 import org.maxgamer.quickshop.economy.Economy_Vault;
+import org.maxgamer.quickshop.util.ItemDeserializeCache;
 import org.maxgamer.quickshop.util.MsgUtil;
 import org.maxgamer.quickshop.util.Util;
+import org.maxgamer.quickshop.watcher.ShopSaveWatcher;
+import org.maxgamer.quickshop.watcher.SignUpdateWatcher;
 
 import java.io.File;
 import java.lang.management.ManagementFactory;
@@ -241,6 +246,66 @@ public class Paste {
             finalReport.append("\t\tRequest      Count: ").append(stats.requestCount()).append("\n");
             finalReport.append("\t\tTotal Loading Time: ").append(stats.totalLoadTime()).append("\n");
         }
+        ItemDeserializeCache itemCache = Util.getItemCache();
+        finalReport.append("\tItem Deserialize Cache:\n");
+        finalReport.append("\t\tCache      Enabled: ").append(itemCache != null).append("\n");
+        if (itemCache != null) {
+            CacheStats stats = itemCache.getStats();
+            finalReport.append("\t\tSize              : ").append(itemCache.size()).append("\n");
+            finalReport.append("\t\tHit           Rate: ").append(stats.hitRate()).append("\n");
+            finalReport.append("\t\tHit          Count: ").append(stats.hitCount()).append("\n");
+            finalReport.append("\t\tMiss         Count: ").append(stats.missCount()).append("\n");
+            finalReport.append("\t\tEviction     Count: ").append(stats.evictionCount()).append("\n");
+        }
+        finalReport.append("\tItem Format:\n");
+        finalReport.append("\t\tYAML  : ").append(plugin.getShopLoader().getYamlItemStatistics()).append("\n");
+        finalReport.append("\t\tBinary: ").append(plugin.getShopLoader().getBinaryItemStatistics()).append("\n");
+        finalReport.append("\tShop Runtime Id Lookup:\n");
+        finalReport.append("\t\tHit          Count: ").append(plugin.getShopManager().getRuntimeIdLookupHits()).append("\n");
+        finalReport.append("\t\tMiss         Count: ").append(plugin.getShopManager().getRuntimeIdLookupMisses()).append("\n");
+        if (plugin.getShopManager().isLazyLoad()) {
+            finalReport.append("\tShop Lazy Load:\n");
+            finalReport.append("\t\tDormant      Count: ").append(plugin.getShopManager().getDormantShopCount()).append("\n");
+            finalReport.append("\t\tMaterialized Count: ").append(plugin.getShopManager().getMaterializedCount()).append("\n");
+            finalReport.append("\t\tDematerialized Count: ").append(plugin.getShopManager().getDematerializedCount()).append("\n");
+        }
+        DatabaseManager databaseManager = plugin.getDatabaseManager();
+        finalReport.append("\tDatabase Queue:\n");
+        finalReport.append("\t\tQueue Depth / Capacity: ").append(databaseManager.getQueueDepth()).append(" / ").append(databaseManager.getQueueCapacity()).append("\n");
+        finalReport.append("\t\tCompleted    Count: ").append(databaseManager.getCompletedTasks()).append("\n");
+        finalReport.append("\t\tOverflowed   Count: ").append(databaseManager.getOverflowedTasks()).append("\n");
+        finalReport.append("\t\tFlush        Count: ").append(databaseManager.getFlushCount()).append("\n");
+        finalReport.append("\t\tAverage Flush (ms): ").append(String.format("%.2f", databaseManager.getAverageFlushMillis())).append("\n");
+        finalReport.append("\t\tMax     Flush (ms): ").append(String.format("%.2f", databaseManager.getMaxFlushMillis())).append("\n");
+        if (plugin.getDatabaseManager().getDatabase() instanceof MySQLCore) {
+            MySQLCore mySQLCore = (MySQLCore) plugin.getDatabaseManager().getDatabase();
+            finalReport.append("\tDatabase Connection Pool:\n");
+            finalReport.append("\t\tActive / Idle / Max: ").append(mySQLCore.getActiveConnections()).append(" / ").append(mySQLCore.getIdleConnections()).append(" / ").append(mySQLCore.getMaxConnections()).append("\n");
+            finalReport.append("\t\tAverage Wait (ms): ").append(String.format("%.2f", mySQLCore.getAverageWaitMillis())).append("\n");
+            finalReport.append("\t\tMax     Wait (ms): ").append(String.format("%.2f", mySQLCore.getMaxWaitMillis())).append("\n");
+            finalReport.append("\t\tTimeout      Count: ").append(mySQLCore.getAcquireTimeouts()).append("\n");
+            finalReport.append("\t\tEvicted      Count: ").append(mySQLCore.getEvictedConnections()).append("\n");
+        }
+        ShopSaveWatcher shopSaveWatcher = plugin.getShopSaveWatcher();
+        if (shopSaveWatcher != null) {
+            finalReport.append("\tShop Save Queue:\n");
+            finalReport.append("\t\tPending      Count: ").append(shopSaveWatcher.getPendingCount()).append("\n");
+            finalReport.append("\t\tRequested    Count: ").append(shopSaveWatcher.getRequestedCount()).append("\n");
+            finalReport.append("\t\tSaved        Count: ").append(shopSaveWatcher.getSavedCount()).append("\n");
+        }
+        SignUpdateWatcher signUpdateWatcher = plugin.getSignUpdateWatcher();
+        if (signUpdateWatcher != null) {
+            finalReport.append("\tSign Update Queue:\n");
+            finalReport.append("\t\tQueue        Depth: ").append(signUpdateWatcher.getQueueDepth()).append("\n");
+            finalReport.append("\t\tScheduled    Count: ").append(signUpdateWatcher.getScheduledCount()).append("\n");
+            finalReport.append("\t\tCoalesced    Count: ").append(signUpdateWatcher.getCoalescedCount()).append("\n");
+            finalReport.append("\t\tUpdated      Count: ").append(signUpdateWatcher.getUpdatedCount()).append("\n");
+            finalReport.append("\t\tAverage  Lag (ms): ").append(String.format("%.2f", signUpdateWatcher.getAverageLagMillis())).append("\n");
+            finalReport.append("\t\tMax      Lag (ms): ").append(String.format("%.2f", signUpdateWatcher.getMaxLagMillis())).append("\n");
+            finalReport.append("\t\tOver Budget Ticks: ").append(signUpdateWatcher.getOverBudgetTicks()).append("\n");
+            finalReport.append("\t\tDeferred     Count: ").append(signUpdateWatcher.getDeferredCount()).append("\n");
+            finalReport.append("\t\tStale  Sign Count: ").append(signUpdateWatcher.getStaleSignCount()).append("\n");
+        }
 
         finalReport.append("================================================\n");
         finalReport.append("Configurations:\n");
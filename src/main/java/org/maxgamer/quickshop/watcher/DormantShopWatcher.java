@@ -0,0 +1,51 @@
+/*
+ * This file is a part of project QuickShop, the name is DormantShopWatcher.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.maxgamer.quickshop.watcher;
+
+import org.bukkit.scheduler.BukkitRunnable;
+import org.jetbrains.annotations.NotNull;
+import org.maxgamer.quickshop.QuickShop;
+import org.maxgamer.quickshop.util.Util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turn the shops in the chunks unloaded longer than the idle time back to raw database rows.
+ * Main thread only.
+ */
+public class DormantShopWatcher extends BukkitRunnable {
+    private final QuickShop plugin;
+
+    private final long idleMillis;
+
+    public DormantShopWatcher(@NotNull QuickShop plugin) {
+        this.plugin = plugin;
+        this.idleMillis = TimeUnit.SECONDS.toMillis(Math.max(0, plugin.getConfig().getLong("shop.lazy-load.idle-time", 300)));
+    }
+
+    @Override
+    public void run() {
+        int dematerialized = plugin.getShopManager().dematerializeIdleChunks(idleMillis);
+        if (dematerialized > 0) {
+            Util.debugLog(dematerialized + " idle shops have gone dormant.");
+        }
+    }
+}
@@ -32,6 +32,7 @@ import org.maxgamer.quickshop.util.MsgUtil;
 import org.maxgamer.quickshop.util.Util;
 import org.maxgamer.quickshop.util.WarningSender;
 
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 
@@ -57,7 +58,12 @@ public class OngoingFeeWatcher extends BukkitRunnable {
         int cost = plugin.getConfig().getInt("shop.ongoing-fee.cost-per-shop");
         boolean allowLoan = plugin.getConfig().getBoolean("shop.allow-economy-loan");
         boolean ignoreUnlimited = plugin.getConfig().getBoolean("shop.ongoing-fee.ignore-unlimited");
-        for (Shop shop : plugin.getShopManager().getAllShops()) {
+        long partialResults = plugin.getShopManager().getPartialResultCount();
+        List<Shop> shops = plugin.getShopManager().getAllShops();
+        if (plugin.getShopManager().getPartialResultCount() != partialResults) {
+            plugin.getLogger().warning("Some unloaded shops didn't load in time, they will be charged the ongoing fee in the next round.");
+        }
+        for (Shop shop : shops) {
             if ((!shop.isUnlimited() || !ignoreUnlimited) && !shop.isDeleted()) {
                 UUID shopOwner = shop.getOwner();
                 Location location = shop.getLocation();
@@ -0,0 +1,97 @@
+/*
+ * This file is a part of project QuickShop, the name is ShopSaveWatcher.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.maxgamer.quickshop.watcher;
+
+import org.bukkit.scheduler.BukkitRunnable;
+import org.jetbrains.annotations.NotNull;
+import org.maxgamer.quickshop.shop.ContainerShop;
+import org.maxgamer.quickshop.shop.Shop;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Write-behind the shop changes, the shops changed many times in an interval only be saved once.
+ * Main thread only.
+ */
+public class ShopSaveWatcher extends BukkitRunnable {
+    /* Shop runtime uuid -> shop, insertion ordered */
+    private final Map<UUID, Shop> pendingShops = new LinkedHashMap<>();
+
+    private long requested;
+
+    private long saved;
+
+    public void scheduleSave(@NotNull Shop shop) {
+        requested++;
+        pendingShops.putIfAbsent(shop.getRuntimeRandomUniqueId(), shop);
+    }
+
+    @Override
+    public void run() {
+        flush();
+    }
+
+    /**
+     * Save all pending shops right now, must be called before the database shutdown
+     */
+    public void flush() {
+        if (pendingShops.isEmpty()) {
+            return;
+        }
+        List<Shop> shops = new ArrayList<>(pendingShops.values());
+        pendingShops.clear();
+        for (Shop shop : shops) {
+            // Deleted or already saved by someone
+            if (shop.isDeleted() || !shop.isDirty()) {
+                continue;
+            }
+            if (shop instanceof ContainerShop) {
+                ((ContainerShop) shop).save();
+                saved++;
+            }
+        }
+    }
+
+    public int getPendingCount() {
+        return pendingShops.size();
+    }
+
+    /**
+     * Gets how many shop updates requested
+     *
+     * @return The requested count
+     */
+    public long getRequestedCount() {
+        return requested;
+    }
+
+    /**
+     * Gets how many rows written, the difference with requested count is the coalesced updates
+     *
+     * @return The saved count
+     */
+    public long getSavedCount() {
+        return saved;
+    }
+}
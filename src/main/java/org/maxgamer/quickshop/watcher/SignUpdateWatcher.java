@@ -19,30 +19,331 @@
 
 package org.maxgamer.quickshop.watcher;
 
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.jetbrains.annotations.NotNull;
+import org.maxgamer.quickshop.QuickShop;
+import org.maxgamer.quickshop.shop.DisplayItem;
+import org.maxgamer.quickshop.shop.DisplayType;
 import org.maxgamer.quickshop.shop.Shop;
+import org.maxgamer.quickshop.shop.ShopChunk;
+import org.maxgamer.quickshop.shop.VirtualDisplayItem;
 
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Update the shop signs in batches.
+ * <p>
+ * Same shop scheduled many times before its update will be coalesced into one update,
+ * shops near online players are updated first, and each tick only spends the configured time budget,
+ * the rest will be continued at next tick. Main thread only.
+ * <p>
+ * With lazy sign update enabled, the signs in chunks nobody can see are only marked as stale,
+ * they will be rendered when the chunk sent to a player (hooked in the virtual display item packet listener).
+ */
 public class SignUpdateWatcher extends BukkitRunnable {
-    private final Queue<Shop> signUpdateQueue = new LinkedList<>();
+    /* Shop runtime uuid -> pending update, insertion ordered */
+    private final Map<UUID, PendingUpdate> nearbyQueue = new LinkedHashMap<>();
+
+    private final Map<UUID, PendingUpdate> queue = new LinkedHashMap<>();
+
+    private final long timeBudgetNanos;
+
+    private final boolean lazySignUpdate;
+
+    /* Chunk -> stale shops in it, the inner maps are main thread only */
+    private final Map<ShopChunk, Map<UUID, Shop>> staleSigns = new ConcurrentHashMap<>();
+
+    /* Total stale shops in staleSigns, readable from any thread */
+    private final AtomicInteger staleSignCount = new AtomicInteger();
+
+    /* Chunks sent to players that have stale signs, filled by the packet listener thread */
+    private final Queue<ShopChunk> sentChunks = new ConcurrentLinkedQueue<>();
+
+    private long deferred;
+
+    private long scheduled;
+
+    private long coalesced;
+
+    private long updated;
+
+    private long totalLagNanos;
+
+    private long maxLagNanos;
+
+    private long overBudgetTicks;
+
+    public SignUpdateWatcher(@NotNull QuickShop plugin) {
+        this.timeBudgetNanos = TimeUnit.MICROSECONDS.toNanos((long) (plugin.getConfig().getDouble("shop.sign-update-time-budget", 5) * 1000));
+        // We need the MAP_CHUNK listener to know when the stale signs become visible
+        this.lazySignUpdate = plugin.getConfig().getBoolean("shop.lazy-sign-update")
+                && plugin.isDisplay()
+                && DisplayItem.getNowUsing() == DisplayType.VIRTUALITEM;
+        if (this.lazySignUpdate) {
+            VirtualDisplayItem.VirtualDisplayItemManager.load();
+        }
+    }
+
+    /**
+     * Mark the sign of shop as stale instead of updating it if nobody can see it
+     *
+     * @param shop The shop
+     * @return true if deferred, the caller should skip the update
+     */
+    public boolean deferIfUnseen(@NotNull Shop shop) {
+        if (!lazySignUpdate) {
+            return false;
+        }
+        Location location = shop.getLocation();
+        World world = location.getWorld();
+        if (world == null) {
+            return false;
+        }
+        int chunkX = location.getBlockX() >> 4;
+        int chunkZ = location.getBlockZ() >> 4;
+        // One more chunk as margin, the player may see it right now
+        int viewDistance = world.getViewDistance() + 1;
+        for (Player player : world.getPlayers()) {
+            Location playerLocation = player.getLocation();
+            if (Math.abs((playerLocation.getBlockX() >> 4) - chunkX) <= viewDistance
+                    && Math.abs((playerLocation.getBlockZ() >> 4) - chunkZ) <= viewDistance) {
+                return false;
+            }
+        }
+        if (staleSigns.computeIfAbsent(new ShopChunk(world.getName(), chunkX, chunkZ), chunk -> new HashMap<>())
+                .put(shop.getRuntimeRandomUniqueId(), shop) == null) {
+            staleSignCount.incrementAndGet();
+        }
+        deferred++;
+        return true;
+    }
+
+    /**
+     * Drop the pending and stale sign updates of shop, called on main thread when the shop deleted, unloaded or dematerialized
+     *
+     * @param shop The shop
+     */
+    public void forget(@NotNull Shop shop) {
+        UUID id = shop.getRuntimeRandomUniqueId();
+        nearbyQueue.remove(id);
+        queue.remove(id);
+        Location location = shop.getLocation();
+        if (staleSigns.isEmpty() || !location.isWorldLoaded()) {
+            return;
+        }
+        ShopChunk chunk = new ShopChunk(location.getWorld().getName(), location.getBlockX() >> 4, location.getBlockZ() >> 4);
+        Map<UUID, Shop> shops = staleSigns.get(chunk);
+        if (shops != null && shops.remove(id) != null) {
+            staleSignCount.decrementAndGet();
+            if (shops.isEmpty()) {
+                staleSigns.remove(chunk, shops);
+            }
+        }
+    }
+
+    /**
+     * Called when a chunk sent to the player, thread-safe
+     *
+     * @param world  The world name
+     * @param chunkX The chunk x
+     * @param chunkZ The chunk z
+     */
+    public void onChunkSent(@NotNull String world, int chunkX, int chunkZ) {
+        if (staleSigns.isEmpty()) {
+            return;
+        }
+        ShopChunk chunk = new ShopChunk(world, chunkX, chunkZ);
+        if (staleSigns.containsKey(chunk)) {
+            sentChunks.add(chunk);
+        }
+    }
+
+    private void renderSentChunks() {
+        ShopChunk chunk;
+        while ((chunk = sentChunks.poll()) != null) {
+            Map<UUID, Shop> shops = staleSigns.remove(chunk);
+            if (shops == null) {
+                continue;
+            }
+            staleSignCount.addAndGet(-shops.size());
+            for (Map.Entry<UUID, Shop> entry : shops.entrySet()) {
+                if (entry.getValue().isDeleted() || !entry.getValue().isLoaded()) {
+                    // It will be rendered again when loaded
+                    continue;
+                }
+                PendingUpdate update = queue.remove(entry.getKey());
+                if (update == null) {
+                    update = nearbyQueue.get(entry.getKey());
+                }
+                if (update == null) {
+                    update = new PendingUpdate(entry.getValue(), System.nanoTime());
+                }
+                update.render = true;
+                nearbyQueue.put(entry.getKey(), update);
+            }
+        }
+    }
 
     public void scheduleSignUpdate(@NotNull Shop shop) {
-        if (signUpdateQueue.contains(shop)) {
+        scheduled++;
+        UUID id = shop.getRuntimeRandomUniqueId();
+        if (nearbyQueue.containsKey(id) || queue.containsKey(id)) {
+            coalesced++;
             return; // Ignore
         }
-        signUpdateQueue.add(shop);
+        PendingUpdate update = new PendingUpdate(shop, System.nanoTime());
+        if (isNearPlayers(shop)) {
+            nearbyQueue.put(id, update);
+        } else {
+            queue.put(id, update);
+        }
+    }
+
+    private static boolean isNearPlayers(@NotNull Shop shop) {
+        Location location = shop.getLocation();
+        if (!location.isWorldLoaded()) {
+            return false;
+        }
+        World world = location.getWorld();
+        // Only the players can see the sign matter
+        double distance = world.getViewDistance() * 16.0;
+        double distanceSquared = distance * distance;
+        for (Player player : world.getPlayers()) {
+            if (player.getLocation().distanceSquared(location) <= distanceSquared) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public void run() {
-        Shop shop = signUpdateQueue.poll();
-        while (shop != null && !shop.isDeleted()) {
-            shop.setSignText();
-            shop = signUpdateQueue.poll();
+        if (!sentChunks.isEmpty()) {
+            renderSentChunks();
+        }
+        if (nearbyQueue.isEmpty() && queue.isEmpty()) {
+            return;
+        }
+        long beginTime = System.nanoTime();
+        if (drain(nearbyQueue, beginTime) && drain(queue, beginTime)) {
+            return;
         }
+        overBudgetTicks++;
+    }
+
+    /**
+     * Update the shops in queue until the queue is empty or the budget used up
+     *
+     * @param updateQueue The queue
+     * @param beginTime   The begin time of this tick
+     * @return true if the queue is empty
+     */
+    private boolean drain(@NotNull Map<UUID, PendingUpdate> updateQueue, long beginTime) {
+        Iterator<PendingUpdate> iterator = updateQueue.values().iterator();
+        while (iterator.hasNext()) {
+            PendingUpdate update = iterator.next();
+            iterator.remove();
+            if (!update.shop.isDeleted()) {
+                if (update.render && update.shop.isLoaded()) {
+                    // Someone received the chunk, skip the visibility check
+                    update.shop.setSignText(update.shop.getSignText());
+                } else {
+                    update.shop.setSignText();
+                }
+                updated++;
+                long now = System.nanoTime();
+                long lag = now - update.scheduledAt;
+                totalLagNanos += lag;
+                maxLagNanos = Math.max(maxLagNanos, lag);
+                if (now - beginTime > timeBudgetNanos) {
+                    return !iterator.hasNext();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets how many shops waiting for sign update
+     *
+     * @return The queue depth
+     */
+    public int getQueueDepth() {
+        return nearbyQueue.size() + queue.size();
+    }
+
+    /**
+     * Gets how many shops have the stale sign waiting for a viewer
+     *
+     * @return The stale signs count
+     */
+    public int getStaleSignCount() {
+        return staleSignCount.get();
+    }
+
+    public long getDeferredCount() {
+        return deferred;
+    }
+
+    /**
+     * Gets how many update requests merged into a pending update
+     *
+     * @return The coalesced count
+     */
+    public long getCoalescedCount() {
+        return coalesced;
+    }
+
+    public long getScheduledCount() {
+        return scheduled;
+    }
+
+    public long getUpdatedCount() {
+        return updated;
+    }
+
+    /**
+     * Gets the average time between scheduled and updated
+     *
+     * @return The average lag in milliseconds
+     */
+    public double getAverageLagMillis() {
+        return updated == 0 ? 0 : totalLagNanos / (double) updated / 1_000_000;
+    }
+
+    public double getMaxLagMillis() {
+        return maxLagNanos / 1_000_000.0;
+    }
+
+    /**
+     * Gets how many ticks used up the time budget and left updates to next tick
+     *
+     * @return The ticks count
+     */
+    public long getOverBudgetTicks() {
+        return overBudgetTicks;
     }
 
+    private static class PendingUpdate {
+        private final Shop shop;
+        private final long scheduledAt;
+        private boolean render;
+
+        private PendingUpdate(Shop shop, long scheduledAt) {
+            this.shop = shop;
+            this.scheduledAt = scheduledAt;
+        }
+    }
 }
@@ -0,0 +1,187 @@
+/*
+ * This file is a part of project QuickShop, the name is ShopSearchEngineTest.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.maxgamer.quickshop.shop.search;
+
+import be.seeseemelk.mockbukkit.MockBukkit;
+import be.seeseemelk.mockbukkit.ServerMock;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.maxgamer.quickshop.shop.Shop;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+public class ShopSearchEngineTest {
+    private static World world;
+
+    private static World otherWorld;
+
+    /* Shop -> its item name, the tokenizer reads it */
+    private final Map<Shop, String> names = new HashMap<>();
+
+    private final List<Shop> shops = new ArrayList<>();
+
+    private final ShopSearchEngine engine = new ShopSearchEngine(() -> shops.iterator(), shop -> new String[]{names.get(shop)});
+
+    @BeforeAll
+    public static void setUp() {
+        ServerMock server = MockBukkit.mock();
+        world = server.addSimpleWorld("world");
+        otherWorld = server.addSimpleWorld("world_nether");
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        MockBukkit.unmock();
+    }
+
+    private static Shop newShop(Location location, boolean loaded) {
+        UUID id = UUID.randomUUID();
+        return (Shop) Proxy.newProxyInstance(Shop.class.getClassLoader(), new Class<?>[]{Shop.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getLocation":
+                    return location;
+                case "getRuntimeRandomUniqueId":
+                    return id;
+                case "isLoaded":
+                    return loaded;
+                case "hashCode":
+                    return id.hashCode();
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Shop" + location.toVector();
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private Shop addShop(World in, double x, double z, String name, boolean loaded) {
+        Shop shop = newShop(new Location(in, x, 64, z), loaded);
+        names.put(shop, name);
+        shops.add(shop);
+        engine.add(in.getName(), shop);
+        return shop;
+    }
+
+    private Shop addShop(double x, double z, String name) {
+        return addShop(world, x, z, name, true);
+    }
+
+    private List<Shop> search(double x, double z, double radius, String keyword, int limit) {
+        return engine.search(new Location(world, x, 64, z), radius, keyword, limit, false, shop -> true)
+                .stream().map(TopKCollector.Scored::getElement).collect(Collectors.toList());
+    }
+
+    @Test
+    void nearestFirstAndLimited() {
+        List<Shop> expected = new ArrayList<>();
+        for (int i = 10; i >= 1; i--) {
+            Shop shop = addShop(i, 0, "diamond");
+            if (i <= 3) {
+                expected.add(0, shop);
+            }
+        }
+        List<TopKCollector.Scored<Shop>> results = engine.search(new Location(world, 0, 64, 0), 100, "diamond", 3, false, shop -> true);
+        Assertions.assertEquals(expected, results.stream().map(TopKCollector.Scored::getElement).collect(Collectors.toList()));
+        // Scores are the real distance
+        Assertions.assertEquals(1, results.get(0).getScore(), 1e-9);
+        Assertions.assertEquals(3, results.get(2).getScore(), 1e-9);
+    }
+
+    @Test
+    void radiusCutOff() {
+        Shop inside = addShop(-5, 0, "diamond");
+        Shop onEdge = addShop(0, 10, "diamond");
+        addShop(10.5, 0, "diamond");
+        addShop(-8, -8, "diamond");
+        Assertions.assertEquals(Arrays.asList(inside, onEdge), search(0, 0, 10, "diamond", 10));
+    }
+
+    @Test
+    void tokenMatching() {
+        Shop sword = addShop(1, 0, "diamond_sword");
+        Shop diamond = addShop(2, 0, "diamond");
+        Shop ingot = addShop(3, 0, "iron_ingot");
+        Assertions.assertEquals(Arrays.asList(sword, diamond), search(0, 0, 16, "DIAMOND", 10));
+        Assertions.assertEquals(Arrays.asList(sword), search(0, 0, 16, "sword", 10));
+        Assertions.assertEquals(Arrays.asList(ingot), search(0, 0, 16, "iron", 10));
+        Assertions.assertTrue(search(0, 0, 16, "gold", 10).isEmpty());
+    }
+
+    @Test
+    void spatialPlan() {
+        // Many shops match the keyword, the engine walks the few grid cells in range instead
+        for (int i = 0; i < 64; i++) {
+            addShop(i, 0, "stone");
+        }
+        List<Shop> results = search(0, 0, 5, "stone", 10);
+        Assertions.assertEquals(6, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Assertions.assertEquals(i, results.get(i).getLocation().getBlockX());
+        }
+    }
+
+    @Test
+    void otherWorldsAndUnloadedShops() {
+        addShop(otherWorld, 1, 0, "diamond", true);
+        Shop unloaded = addShop(world, 2, 0, "diamond", false);
+        Shop loaded = addShop(3, 0, "diamond");
+        Assertions.assertEquals(Arrays.asList(unloaded, loaded), search(0, 0, 16, "diamond", 10));
+        List<TopKCollector.Scored<Shop>> loadedOnly = engine.search(new Location(world, 0, 64, 0), 16, "diamond", 10, true, shop -> true);
+        Assertions.assertEquals(1, loadedOnly.size());
+        Assertions.assertSame(loaded, loadedOnly.get(0).getElement());
+    }
+
+    @Test
+    void removeAndRename() {
+        Shop first = addShop(1, 0, "diamond");
+        Shop second = addShop(2, 0, "diamond");
+        Assertions.assertEquals(Arrays.asList(first, second), search(0, 0, 16, "diamond", 10));
+        engine.remove(world.getName(), first);
+        shops.remove(first);
+        Assertions.assertEquals(Arrays.asList(second), search(0, 0, 16, "diamond", 10));
+        // The item names changed (e.g. language reloaded)
+        names.put(second, "diamant");
+        engine.invalidateTokens();
+        Assertions.assertTrue(search(0, 0, 16, "diamond", 10).isEmpty());
+        Assertions.assertEquals(Arrays.asList(second), search(0, 0, 16, "diamant", 10));
+    }
+
+    @Test
+    void negativeCoordinates() {
+        Shop west = addShop(-1, -1, "diamond");
+        Shop east = addShop(17, 0, "diamond");
+        Assertions.assertEquals(Arrays.asList(west, east), search(0, 0, 20, "diamond", 10));
+        // Far more cells in range than populated
+        Assertions.assertEquals(Arrays.asList(west, east), search(0, 0, 100000, "diamond", 10));
+    }
+}
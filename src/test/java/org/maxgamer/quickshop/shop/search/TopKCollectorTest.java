@@ -0,0 +1,82 @@
+/*
+ * This file is a part of project QuickShop, the name is TopKCollectorTest.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.maxgamer.quickshop.shop.search;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class TopKCollectorTest {
+
+    @Test
+    void keepsLowestScores() {
+        Random random = new Random(42);
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            values.add(i);
+        }
+        Collections.shuffle(values, random);
+        TopKCollector<Integer> collector = new TopKCollector<>(5);
+        for (int value : values) {
+            collector.offer(value, value);
+        }
+        Assertions.assertEquals(5, collector.size());
+        Assertions.assertEquals(Arrays.asList(0, 1, 2, 3, 4),
+                collector.getResults().stream().map(TopKCollector.Scored::getElement).collect(Collectors.toList()));
+    }
+
+    @Test
+    void fewerThanLimit() {
+        TopKCollector<String> collector = new TopKCollector<>(10);
+        collector.offer("far", 3);
+        collector.offer("near", 1);
+        Assertions.assertEquals(Arrays.asList("near", "far"),
+                collector.getResults().stream().map(TopKCollector.Scored::getElement).collect(Collectors.toList()));
+    }
+
+    @Test
+    void filterOnlyForAcceptedScores() {
+        TopKCollector<String> collector = new TopKCollector<>(2);
+        AtomicInteger filtered = new AtomicInteger();
+        collector.offer("a", 1, s -> filtered.incrementAndGet() > 0);
+        collector.offer("b", 2, s -> filtered.incrementAndGet() > 0);
+        Assertions.assertFalse(collector.accepts(3));
+        // Can't enter the result, the filter is skipped
+        Assertions.assertFalse(collector.offer("c", 3, s -> filtered.incrementAndGet() > 0));
+        Assertions.assertEquals(2, filtered.get());
+        // Rejected by the filter, the result is unchanged
+        Assertions.assertFalse(collector.offer("d", 0, s -> false));
+        Assertions.assertTrue(collector.offer("e", 0.5));
+        Assertions.assertEquals(Arrays.asList("e", "a"),
+                collector.getResults().stream().map(TopKCollector.Scored::getElement).collect(Collectors.toList()));
+    }
+
+    @Test
+    void invalidLimit() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new TopKCollector<>(0));
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * This file is a part of project QuickShop, the name is ItemCodecTest.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.maxgamer.quickshop.util;
+
+import be.seeseemelk.mockbukkit.MockBukkit;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import org.bukkit.ChatColor;
+import org.bukkit.Material;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.configuration.serialization.SerializableAs;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ItemCodecTest {
+    private static final int DATA_VERSION = 2586;
+
+    @BeforeAll
+    public static void setUp() {
+        MockBukkit.mock();
+        ConfigurationSerialization.registerClass(Node.class);
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        ConfigurationSerialization.unregisterClass(Node.class);
+        MockBukkit.unmock();
+    }
+
+    private static Object roundTrip(Object value, boolean compress) throws IOException {
+        return ItemCodec.decodeValue(ItemCodec.encodeValue(value, DATA_VERSION, compress));
+    }
+
+    private static void assumeServerSerializes(@NotNull ItemStack item) {
+        // The mocked server may not implement every part of the item serialization that the YAML format needs too
+        boolean supported;
+        try {
+            YamlConfiguration yaml = new YamlConfiguration();
+            yaml.set("item", item);
+            supported = item.equals(YamlConfiguration.loadConfiguration(new StringReader(yaml.saveToString())).getItemStack("item"));
+        } catch (RuntimeException e) {
+            supported = false;
+        }
+        Assumptions.assumeTrue(supported, "The mocked server can't serialize " + item);
+    }
+
+    @Test
+    void plainItem() throws IOException {
+        ItemStack item = new ItemStack(Material.DIAMOND, 3);
+        assumeServerSerializes(item);
+        byte[] data = ItemCodec.encode(item, DATA_VERSION, true);
+        Assertions.assertTrue(ItemCodec.isEncoded(data));
+        Assertions.assertEquals(item, ItemCodec.decode(data, null));
+    }
+
+    @Test
+    void itemWithMeta() throws IOException {
+        ItemStack item = new ItemStack(Material.DIAMOND_SWORD);
+        ItemMeta meta = item.getItemMeta();
+        Assertions.assertNotNull(meta);
+        meta.setDisplayName(ChatColor.GOLD + "Excalibur");
+        meta.setLore(Arrays.asList("First line", "Second line", ""));
+        meta.addEnchant(Enchantment.DURABILITY, 3, true);
+        item.setItemMeta(meta);
+        assumeServerSerializes(item);
+        Assertions.assertEquals(item, ItemCodec.decode(ItemCodec.encode(item, DATA_VERSION, false), null));
+        Assertions.assertEquals(item, ItemCodec.decode(ItemCodec.encode(item, DATA_VERSION, true), null));
+    }
+
+    @Test
+    void nestedSerializable() throws IOException {
+        Node node = new Node("root", Arrays.asList(1, -1, 300), new Node("child", Collections.emptyList(), new Node("leaf", Collections.singletonList(0), null)));
+        Assertions.assertEquals(node, roundTrip(node, false));
+        Assertions.assertEquals(node, roundTrip(node, true));
+    }
+
+    @Test
+    void allValueTypes() throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("string", "text");
+        map.put("boolean", true);
+        map.put("byte", (byte) -3);
+        map.put("short", (short) 1234);
+        map.put("long", Long.MIN_VALUE);
+        map.put("float", 1.5F);
+        map.put("double", -0.25D);
+        map.put("null", null);
+        map.put("map", Collections.singletonMap("nested", "value"));
+        Assertions.assertEquals(map, roundTrip(map, false));
+    }
+
+    @Test
+    void longString() throws IOException {
+        // Longer than the 64KB limit of writeUTF, with multi-bytes characters
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            builder.append('é').append('a');
+        }
+        String value = builder.toString();
+        Assertions.assertTrue(value.getBytes(StandardCharsets.UTF_8).length > 65535);
+        Assertions.assertEquals(value, roundTrip(value, false));
+        Assertions.assertEquals(value, roundTrip(value, true));
+    }
+
+    @Test
+    void deflate() throws IOException {
+        List<String> pages = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            pages.add("The same page of a written book " + (i % 4));
+        }
+        byte[] plain = ItemCodec.encodeValue(pages, DATA_VERSION, false);
+        byte[] compressed = ItemCodec.encodeValue(pages, DATA_VERSION, true);
+        Assertions.assertEquals(0, plain[2] & 1);
+        Assertions.assertEquals(1, compressed[2] & 1);
+        Assertions.assertTrue(compressed.length < plain.length);
+        Assertions.assertEquals(pages, ItemCodec.decodeValue(compressed));
+        // Small values are never compressed
+        Assertions.assertEquals(0, ItemCodec.encodeValue("small", DATA_VERSION, true)[2] & 1);
+    }
+
+    @Test
+    void varIntEdges() throws IOException {
+        List<Integer> values = Arrays.asList(0, 1, -1, 63, -64, 64, -65, 127, 128, 8191, 8192, -8193,
+                1048575, 1048576, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE - 1, Integer.MIN_VALUE + 1);
+        Assertions.assertEquals(values, roundTrip(values, false));
+        for (int value : values) {
+            Assertions.assertEquals(value, roundTrip(value, false));
+        }
+        // ZigZag keeps the small negative numbers in one byte
+        int oneByte = ItemCodec.encodeValue(63, DATA_VERSION, false).length;
+        Assertions.assertEquals(oneByte, ItemCodec.encodeValue(-64, DATA_VERSION, false).length);
+        Assertions.assertEquals(oneByte + 1, ItemCodec.encodeValue(64, DATA_VERSION, false).length);
+        Assertions.assertEquals(oneByte + 1, ItemCodec.encodeValue(-65, DATA_VERSION, false).length);
+        Assertions.assertEquals(oneByte + 4, ItemCodec.encodeValue(Integer.MIN_VALUE, DATA_VERSION, false).length);
+        // The list size is a varint too
+        List<Integer> longList = new ArrayList<>(Collections.nCopies(300, 7));
+        Assertions.assertEquals(longList, roundTrip(longList, false));
+    }
+
+    @Test
+    void rejectNewerCodecVersion() {
+        byte[] data = ItemCodec.encodeValue("value", DATA_VERSION, false);
+        data[1] = (byte) (ItemCodec.CODEC_VERSION + 1);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ItemCodec.decodeValue(data));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ItemCodec.getDataVersion(data));
+        Assertions.assertFalse(ItemCodec.isEncoded("item:\n  ==: org.bukkit.inventory.ItemStack".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void dataVersionOverride() throws IOException {
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("v", DATA_VERSION);
+        root.put("type", "STONE");
+        byte[] data = ItemCodec.encodeValue(root, DATA_VERSION, false);
+        Assertions.assertEquals(DATA_VERSION, ItemCodec.getDataVersion(data));
+        Assertions.assertEquals(DATA_VERSION, ItemCodec.decodeRoot(data, null).get("v"));
+        Assertions.assertEquals(2230, ItemCodec.decodeRoot(data, 2230).get("v"));
+        Assertions.assertEquals("STONE", ItemCodec.decodeRoot(data, 2230).get("type"));
+    }
+
+    @SerializableAs("QuickShopCodecTestNode")
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Node implements ConfigurationSerializable {
+        private final String name;
+        private final List<?> values;
+        private final Node child;
+
+        @SuppressWarnings("unused")
+        public static Node deserialize(Map<String, Object> map) {
+            return new Node((String) map.get("name"), (List<?>) map.get("values"), (Node) map.get("child"));
+        }
+
+        @Override
+        public @NotNull Map<String, Object> serialize() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", name);
+            map.put("values", values);
+            if (child != null) {
+                map.put("child", child);
+            }
+            return map;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * This file is a part of project QuickShop, the name is LongObjectHashMapTest.java
+ *  Copyright (C) PotatoCraft Studio and contributors
+ *
+ *  This program is free software: you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT
+ *  ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ *  FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *  for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.maxgamer.quickshop.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LongObjectHashMapTest {
+
+    @Test
+    void putGetRemove() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<>();
+        Assertions.assertNull(map.put(0L, "zero"));
+        Assertions.assertNull(map.put(-1L, "minus"));
+        Assertions.assertEquals("zero", map.put(0L, "zero2"));
+        Assertions.assertEquals("zero2", map.get(0L));
+        Assertions.assertEquals("minus", map.get(-1L));
+        Assertions.assertNull(map.get(1L));
+        Assertions.assertEquals(2, map.size());
+        Assertions.assertFalse(map.remove(0L, "zero"));
+        Assertions.assertTrue(map.remove(0L, "zero2"));
+        Assertions.assertNull(map.get(0L));
+        Assertions.assertEquals(1, map.size());
+    }
+
+    @Test
+    void sameAsHashMap() {
+        Random random = new Random(42);
+        LongObjectHashMap<Integer> map = new LongObjectHashMap<>();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            long key = random.nextInt(4096) - 2048;
+            switch (random.nextInt(3)) {
+                case 0:
+                    Assertions.assertEquals(expected.put(key, i), map.put(key, i));
+                    break;
+                case 1:
+                    Assertions.assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    Assertions.assertEquals(expected.get(key), map.get(key));
+            }
+        }
+        Assertions.assertEquals(expected.size(), map.size());
+        Assertions.assertEquals(expected.size(), map.values().size());
+    }
+
+    @Test
+    void concurrentRemoveNeverMismatchValue() throws InterruptedException {
+        // Small key space keeps probe chains colliding, removals shift entries back constantly
+        LongObjectHashMap<Long> map = new LongObjectHashMap<>(64);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            Random random = new Random(7);
+            while (running.get()) {
+                long key = random.nextInt(512);
+                if (random.nextBoolean()) {
+                    map.put(key, key);
+                } else {
+                    map.remove(key);
+                }
+            }
+        });
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                Random random = new Random();
+                while (running.get()) {
+                    long key = random.nextInt(512);
+                    Long value = map.get(key);
+                    if (value != null && value != key) {
+                        failure.compareAndSet(null, "Key " + key + " mapped to " + value);
+                    }
+                }
+            });
+        }
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        Thread.sleep(1000);
+        running.set(false);
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        Assertions.assertNull(failure.get());
+    }
+
+    @Test
+    void concurrentRemoveNeverMissPresentKey() throws InterruptedException {
+        LongObjectHashMap<Long> map = new LongObjectHashMap<>(64);
+        // The pinned keys are never removed, the churn around them shifts them back and forth
+        for (long key = 0; key < 32; key++) {
+            map.put(key, key);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            Random random = new Random(11);
+            while (running.get()) {
+                long key = 32 + random.nextInt(512);
+                if (random.nextBoolean()) {
+                    map.put(key, key);
+                } else {
+                    map.remove(key);
+                }
+            }
+        });
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                Random random = new Random();
+                while (running.get()) {
+                    long key = random.nextInt(32);
+                    if (map.get(key) == null) {
+                        failure.compareAndSet(null, "Missed present key " + key);
+                    }
+                }
+            });
+        }
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        Thread.sleep(1000);
+        running.set(false);
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        Assertions.assertNull(failure.get());
+    }
+}